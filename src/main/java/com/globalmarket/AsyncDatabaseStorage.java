@@ -0,0 +1,152 @@
+package com.globalmarket;
+
+import org.bukkit.Bukkit;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DatabaseStorage 的异步封装
+ * 写入按提交顺序进入批量写入队列（同一上架的新增和删除不会乱序），
+ * 读取在有界线程池中执行；需要操作Bukkit对象的后续逻辑通过 mainThread() 回到主线程
+ */
+public class AsyncDatabaseStorage {
+    
+    private final DatabaseStorage storage;
+    private final ListingWriteQueue writeQueue;
+    private final ThreadPoolExecutor readExecutor;
+    private final Executor mainThread;
+    // 最近一次保存失败、之后也没有删除成功的上架ID，核对时只为这些上架补写
+    private final Set<UUID> failedSaves = ConcurrentHashMap.newKeySet();
+    
+    public AsyncDatabaseStorage(GlobalMarket plugin, DatabaseManager databaseManager, DatabaseStorage storage) {
+        this.storage = storage;
+        
+        int readThreads = Math.max(1, plugin.getConfig().getInt("database.async.read-threads", 2));
+        int readQueueSize = Math.max(1, plugin.getConfig().getInt("database.async.read-queue-size", 1000));
+        ThreadFactory threadFactory = createThreadFactory();
+        
+        this.writeQueue = new ListingWriteQueue(plugin, databaseManager, storage, threadFactory);
+        // 读取队列有界，积压过多时直接失败，不拖慢主线程
+        this.readExecutor = new ThreadPoolExecutor(readThreads, readThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(readQueueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        this.mainThread = Bukkit.getScheduler().getMainThreadExecutor(plugin);
+    }
+    
+    /**
+     * 优先使用虚拟线程，运行环境不支持时退回普通守护线程
+     */
+    private static ThreadFactory createThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "GlobalMarket-DB-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger counter = new AtomicInteger();
+            return runnable -> {
+                Thread thread = new Thread(runnable, "GlobalMarket-DB-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+    
+    /**
+     * 主线程执行器，用于 thenAcceptAsync 等后续操作
+     */
+    public Executor mainThread() {
+        return mainThread;
+    }
+    
+    /**
+     * 返回的 future 在所在批次提交后完成
+     */
+    public CompletableFuture<Void> saveListing(MarketListing listing) {
+        UUID listingId = listing.getListingId();
+        return writeQueue.save(listing).whenComplete((result, error) -> {
+            if (error != null) {
+                failedSaves.add(listingId);
+            } else {
+                failedSaves.remove(listingId);
+            }
+        });
+    }
+    
+    public CompletableFuture<Void> removeListing(UUID listingId) {
+        return writeQueue.remove(listingId).whenComplete((result, error) -> {
+            if (error == null) {
+                failedSaves.remove(listingId);
+            }
+        });
+    }
+    
+    /**
+     * 本服保存该上架失败过，数据库中没有这条上架是本服造成的
+     */
+    public boolean hasFailedSave(UUID listingId) {
+        return failedSaves.contains(listingId);
+    }
+    
+    /**
+     * 全量加载排在已提交的写入之后执行，读到的数据包含这些写入
+     */
+    public CompletableFuture<Map<UUID, MarketListing>> loadListings() {
+        return writeQueue.submit(storage::loadListings);
+    }
+    
+    /**
+     * 同样排在已提交的写入之后，用于与内存数据核对
+     */
+    public CompletableFuture<Set<UUID>> queryListingIds() {
+        return supplyOrdered(storage::queryListingIds);
+    }
+    
+    /**
+     * 在读线程池中执行任意查询
+     */
+    public <T> CompletableFuture<T> supply(SqlSupplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(() -> call(supplier), readExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
+    /**
+     * 在写线程中排在已提交的写入之后执行任意操作
+     */
+    public <T> CompletableFuture<T> supplyOrdered(SqlSupplier<T> supplier) {
+        return writeQueue.submit(supplier);
+    }
+    
+    /**
+     * 停止接收新任务并等待已提交的写入完成
+     */
+    public void close() {
+        readExecutor.shutdown();
+        writeQueue.close();
+        try {
+            readExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static <T> T call(SqlSupplier<T> supplier) {
+        try {
+            return supplier.get();
+        } catch (SQLException e) {
+            throw new CompletionException(e);
+        }
+    }
+    
+    @FunctionalInterface
+    public interface SqlSupplier<T> {
+        T get() throws SQLException;
+    }
+}
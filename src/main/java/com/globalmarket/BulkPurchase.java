@@ -0,0 +1,180 @@
+package com.globalmarket;
+
+import org.bukkit.Material;
+
+import java.util.*;
+
+/**
+ * 一次批量购买
+ * 记录从卖单簿中依次选中的上架和买家收到的物品（最后一个上架可以只买一部分），卖家收入按卖家合并为一封邮件；
+ * 数据库模式下在写线程中提交，未能删除的上架（已被其他服务器售出）通过 retain 剔除
+ */
+public class BulkPurchase {
+    
+    private final UUID buyerId;
+    private final String buyerName;
+    private final Material material;
+    private final double taxRate;
+    private final List<Fill> fills = new ArrayList<>();
+    private Map<UUID, Mailbox.MailboxItem> sellerDeliveries;
+    
+    public BulkPurchase(UUID buyerId, String buyerName, Material material, double taxRate) {
+        this.buyerId = buyerId;
+        this.buyerName = buyerName;
+        this.material = material;
+        this.taxRate = taxRate;
+    }
+    
+    public void addFill(MarketListing listing, Mailbox.MailboxItem buyerDelivery) {
+        fills.add(new Fill(listing, null, buyerDelivery));
+        sellerDeliveries = null;
+    }
+    
+    /**
+     * 只买上架的一部分，remainder 为剩余部分（ID不变）
+     */
+    public void addPartialFill(MarketListing listing, MarketListing remainder, Mailbox.MailboxItem buyerDelivery) {
+        fills.add(new Fill(listing, remainder, buyerDelivery));
+        sellerDeliveries = null;
+    }
+    
+    /**
+     * 只保留实际成交的上架
+     */
+    public void retain(Collection<UUID> claimedIds) {
+        if (fills.removeIf(fill -> !claimedIds.contains(fill.listing.getListingId()))) {
+            sellerDeliveries = null;
+        }
+    }
+    
+    public UUID getBuyerId() {
+        return buyerId;
+    }
+    
+    public String getBuyerName() {
+        return buyerName;
+    }
+    
+    public Material getMaterial() {
+        return material;
+    }
+    
+    public List<Fill> getFills() {
+        return Collections.unmodifiableList(fills);
+    }
+    
+    public List<UUID> getListingIds() {
+        List<UUID> ids = new ArrayList<>(fills.size());
+        for (Fill fill : fills) {
+            ids.add(fill.listing.getListingId());
+        }
+        return ids;
+    }
+    
+    /**
+     * 整个买下、需要删除的上架ID
+     */
+    public List<UUID> getRemovedListingIds() {
+        List<UUID> ids = new ArrayList<>(fills.size());
+        for (Fill fill : fills) {
+            if (fill.remainder == null) {
+                ids.add(fill.listing.getListingId());
+            }
+        }
+        return ids;
+    }
+    
+    public List<Mailbox.MailboxItem> getBuyerDeliveries() {
+        List<Mailbox.MailboxItem> items = new ArrayList<>(fills.size());
+        for (Fill fill : fills) {
+            items.add(fill.buyerDelivery);
+        }
+        return items;
+    }
+    
+    /**
+     * 每个卖家一封邮件，包含合并后的税后收入和交易记录
+     */
+    public Map<UUID, Mailbox.MailboxItem> getSellerDeliveries() {
+        if (sellerDeliveries != null) {
+            return sellerDeliveries;
+        }
+        
+        Map<UUID, double[]> totals = new LinkedHashMap<>();
+        for (Fill fill : fills) {
+            double[] total = totals.computeIfAbsent(fill.listing.getSellerId(), k -> new double[2]);
+            total[0] += fill.getAmount();
+            total[1] += fill.getPrice();
+        }
+        
+        sellerDeliveries = new LinkedHashMap<>();
+        for (Map.Entry<UUID, double[]> entry : totals.entrySet()) {
+            int amount = (int) entry.getValue()[0];
+            double price = entry.getValue()[1];
+            double tax = price * taxRate;
+            Mailbox.TransactionRecord record = new Mailbox.TransactionRecord(material.name(), amount, price, tax, price - tax);
+            if (price - tax > 0) {
+                sellerDeliveries.put(entry.getKey(), new Mailbox.MailboxItem(null, price - tax, record));
+            }
+        }
+        return sellerDeliveries;
+    }
+    
+    public int getTotalAmount() {
+        int amount = 0;
+        for (Fill fill : fills) {
+            amount += fill.getAmount();
+        }
+        return amount;
+    }
+    
+    public double getTotalPrice() {
+        double price = 0;
+        for (Fill fill : fills) {
+            price += fill.getPrice();
+        }
+        return price;
+    }
+    
+    public boolean isEmpty() {
+        return fills.isEmpty();
+    }
+    
+    /**
+     * 一个被买下（或部分买下）的上架
+     */
+    public static final class Fill {
+        private final MarketListing listing;
+        private final MarketListing remainder;
+        private final Mailbox.MailboxItem buyerDelivery;
+        
+        private Fill(MarketListing listing, MarketListing remainder, Mailbox.MailboxItem buyerDelivery) {
+            this.listing = listing;
+            this.remainder = remainder;
+            this.buyerDelivery = buyerDelivery;
+        }
+        
+        public MarketListing getListing() {
+            return listing;
+        }
+        
+        /**
+         * 部分购买后剩余的上架，整个买下时为 null
+         */
+        public MarketListing getRemainder() {
+            return remainder;
+        }
+        
+        public int getAmount() {
+            return remainder != null ? listing.getAmount() - remainder.getAmount() : listing.getAmount();
+        }
+        
+        public double getPrice() {
+            return remainder != null ? Math.round((listing.getPrice() - remainder.getPrice()) * 100) / 100.0 : listing.getPrice();
+        }
+        
+        public Mailbox.MailboxItem getBuyerDelivery() {
+            return buyerDelivery;
+        }
+    }
+}
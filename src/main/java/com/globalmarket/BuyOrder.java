@@ -0,0 +1,84 @@
+package com.globalmarket;
+
+import org.bukkit.Material;
+
+import java.util.Comparator;
+import java.util.UUID;
+
+/**
+ * 求购单：以不高于 maxUnitPrice 的单价收购 quantity 个物品，尚未成交部分的金币已预先扣除（托管）
+ * 对象不可变，部分成交后用 withQuantity 生成新的版本
+ */
+public class BuyOrder {
+    
+    /**
+     * 出价从高到低、同价按挂单时间从早到晚排序（价格优先、时间优先）
+     */
+    public static final Comparator<BuyOrder> PRICE_TIME_ORDER = Comparator
+        .comparingDouble(BuyOrder::getMaxUnitPrice).reversed()
+        .thenComparingLong(BuyOrder::getCreatedAt)
+        .thenComparing(BuyOrder::getOrderId);
+    
+    private final UUID orderId;
+    private final UUID buyerId;
+    private final String buyerName;
+    private final Material material;
+    private final double maxUnitPrice;
+    private final int quantity;
+    private final long createdAt;
+    
+    public BuyOrder(UUID orderId, UUID buyerId, String buyerName, Material material, double maxUnitPrice, int quantity, long createdAt) {
+        this.orderId = orderId;
+        this.buyerId = buyerId;
+        this.buyerName = buyerName;
+        this.material = material;
+        this.maxUnitPrice = maxUnitPrice;
+        this.quantity = quantity;
+        this.createdAt = createdAt;
+    }
+    
+    public UUID getOrderId() {
+        return orderId;
+    }
+    
+    public UUID getBuyerId() {
+        return buyerId;
+    }
+    
+    public String getBuyerName() {
+        return buyerName;
+    }
+    
+    public Material getMaterial() {
+        return material;
+    }
+    
+    public double getMaxUnitPrice() {
+        return maxUnitPrice;
+    }
+    
+    /**
+     * 尚未成交的数量
+     */
+    public int getQuantity() {
+        return quantity;
+    }
+    
+    public long getCreatedAt() {
+        return createdAt;
+    }
+    
+    /**
+     * 尚未成交部分托管的金币
+     */
+    public double getEscrow() {
+        return maxUnitPrice * quantity;
+    }
+    
+    /**
+     * 部分成交后剩余的求购单：ID、出价和挂单时间不变
+     */
+    public BuyOrder withQuantity(int remaining) {
+        return new BuyOrder(orderId, buyerId, buyerName, material, maxUnitPrice, remaining, createdAt);
+    }
+}
@@ -0,0 +1,540 @@
+package com.globalmarket;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * 求购单管理
+ * 每个物品类型一个买单簿，按出价从高到低、同价按时间排序，新上架只需与簿首比较，撮合每步 O(log n)；
+ * 挂单时按最高单价托管金币，按上架单价成交后多出的部分随物品退回买家。
+ * 数据库模式下求购单存入 market_buy_orders，成交时按数量条件更新，并定期从数据库同步其他服务器的变化；
+ * YAML模式下挂单、成交和撤销与上架写入同一市场日志，buy_orders.yml 只在日志压缩前写出；
+ * 日志不可用时定期保存到 buy_orders.yml
+ */
+public class BuyOrderManager {
+    
+    private static final long SAVE_INTERVAL_TICKS = 20L;
+    
+    private final GlobalMarket plugin;
+    private final MarketManager marketManager;
+    private final DatabaseStorage databaseStorage;
+    private final AsyncDatabaseStorage asyncStorage;
+    private final YamlListingJournal journal;
+    private final File file;
+    
+    // 只在主线程访问
+    private final Map<UUID, BuyOrder> orders = new HashMap<>();
+    private final Map<Material, TreeSet<BuyOrder>> books = new EnumMap<>(Material.class);
+    private long modCount;
+    private volatile boolean dirty;
+    private boolean syncing;
+    
+    /**
+     * databaseStorage 为 null 时使用YAML文件保存，journal 不为 null 时变更写入市场日志
+     */
+    BuyOrderManager(GlobalMarket plugin, MarketManager marketManager, DatabaseStorage databaseStorage,
+                    AsyncDatabaseStorage asyncStorage, YamlListingJournal journal) {
+        this.plugin = plugin;
+        this.marketManager = marketManager;
+        this.databaseStorage = databaseStorage;
+        this.asyncStorage = asyncStorage;
+        this.journal = databaseStorage == null ? journal : null;
+        this.file = new File(plugin.getDataFolder(), "buy_orders.yml");
+        
+        MaintenanceScheduler scheduler = plugin.getMaintenanceScheduler();
+        if (databaseStorage != null) {
+            try {
+                replaceAll(databaseStorage.loadBuyOrders());
+            } catch (Exception e) {
+                plugin.getLogger().severe("加载求购单失败: " + e.getMessage());
+            }
+            long intervalTicks = plugin.getConfig().getLong("database.reconcile-interval", 300) * 20L;
+            if (intervalTicks > 0) {
+                scheduler.scheduleRepeating("buy-order-sync", intervalTicks, () -> () -> {
+                    syncFromDatabase();
+                    return true;
+                });
+            }
+        } else if (this.journal != null) {
+            // 在文件之上回放上次压缩之后的变更，之后文件只在压缩前写出
+            load();
+            Map<UUID, BuyOrder> replayed = new HashMap<>(orders);
+            this.journal.replayBuyOrders(replayed);
+            replaceAll(replayed.values());
+            this.journal.addCheckpoint(() -> {
+                List<BuyOrder> snapshot = new ArrayList<>(orders.values());
+                return () -> writeFile(snapshot);
+            });
+        } else {
+            load();
+            scheduler.scheduleRepeating("buy-order-save", SAVE_INTERVAL_TICKS, () -> () -> {
+                saveAsync();
+                return true;
+            });
+        }
+    }
+    
+    public boolean isEnabled() {
+        return plugin.getConfig().getBoolean("buy-orders.enabled", true);
+    }
+    
+    /**
+     * 物品类型当前出价最高（同价最早）的求购单，没有时返回 null
+     */
+    public BuyOrder getBestBid(Material material) {
+        TreeSet<BuyOrder> book = books.get(material);
+        return book == null || book.isEmpty() ? null : book.first();
+    }
+    
+    /**
+     * 物品类型的求购单，按成交顺序排列的只读视图
+     */
+    public NavigableSet<BuyOrder> getBids(Material material) {
+        TreeSet<BuyOrder> book = books.get(material);
+        return book != null ? Collections.unmodifiableNavigableSet(book) : Collections.emptyNavigableSet();
+    }
+    
+    public BuyOrder getOrder(UUID orderId) {
+        return orders.get(orderId);
+    }
+    
+    /**
+     * 玩家的求购单，按挂单时间排序
+     */
+    public List<BuyOrder> getOrders(UUID buyerId) {
+        List<BuyOrder> result = new ArrayList<>();
+        for (BuyOrder order : orders.values()) {
+            if (order.getBuyerId().equals(buyerId)) {
+                result.add(order);
+            }
+        }
+        result.sort(Comparator.comparingLong(BuyOrder::getCreatedAt));
+        return result;
+    }
+    
+    /**
+     * 挂出求购单并托管 数量 x 最高单价 的金币
+     */
+    public boolean placeOrder(Player buyer, Material material, int quantity, double maxUnitPrice) {
+        if (!isEnabled()) {
+            buyer.sendMessage(ChatColor.RED + "求购功能未开启!");
+            return false;
+        }
+        
+        int maxOrders = plugin.getConfig().getInt("buy-orders.max-per-player", 10);
+        if (maxOrders >= 0 && getOrders(buyer.getUniqueId()).size() >= maxOrders) {
+            buyer.sendMessage(ChatColor.RED + "你的求购单数量已达上限: " + maxOrders);
+            return false;
+        }
+        
+        // 与数据库精度一致，避免重新加载后托管金额对不上
+        maxUnitPrice = Math.round(maxUnitPrice * 10000) / 10000.0;
+        if (maxUnitPrice <= 0) {
+            buyer.sendMessage(ChatColor.RED + "单价必须大于0!");
+            return false;
+        }
+        
+        // 已有可以直接成交的上架时不挂单，避免买单簿与卖单簿交叉
+        OrderBook asks = marketManager.getOrderBook(material);
+        if (asks != null) {
+            for (MarketListing listing : asks.getAsks()) {
+                if (listing.getUnitPrice() > maxUnitPrice) {
+                    break;
+                }
+                if (!listing.getSellerId().equals(buyer.getUniqueId())) {
+                    buyer.sendMessage(ChatColor.YELLOW + "市场上已有不高于该单价的上架，请使用 /market buy "
+                        + material.name().toLowerCase(Locale.ROOT) + " " + quantity + " " + maxUnitPrice + " 直接购买");
+                    return false;
+                }
+            }
+        }
+        
+        double escrow = maxUnitPrice * quantity;
+        if (!plugin.getEconomyManager().hasBalance(buyer, escrow)) {
+            buyer.sendMessage(ChatColor.RED + "你没有足够的金币! 需要: " + plugin.getEconomyManager().formatCurrency(escrow));
+            return false;
+        }
+        if (!plugin.getEconomyManager().withdraw(buyer, escrow).transactionSuccess()) {
+            return false;
+        }
+        
+        BuyOrder order = new BuyOrder(UUID.randomUUID(), buyer.getUniqueId(), buyer.getName(), material,
+            maxUnitPrice, quantity, System.currentTimeMillis());
+        put(order);
+        
+        if (databaseStorage != null) {
+            asyncStorage.supplyOrdered(() -> {
+                databaseStorage.insertBuyOrder(order);
+                return null;
+            }).whenCompleteAsync((ignored, error) -> {
+                if (error == null) {
+                    return;
+                }
+                plugin.getLogger().severe("保存求购单失败: " + error.getMessage());
+                // 写入失败时撤回求购单，只退还仍在本服的部分
+                BuyOrder current = orders.get(order.getOrderId());
+                if (current != null) {
+                    remove(current);
+                    plugin.getEconomyManager().deposit(buyer, current.getEscrow());
+                    buyer.sendMessage(ChatColor.RED + "求购单保存失败，金币已退还!");
+                }
+            }, asyncStorage.mainThread());
+        } else if (journal != null) {
+            // 挂单记录落盘后才通知成功，写入失败时撤回并退款
+            journal.append(new YamlListingJournal.Transaction().putOrder(order))
+                .whenCompleteAsync((ignored, error) -> {
+                    if (error == null) {
+                        sendPlaced(buyer, order, escrow);
+                        return;
+                    }
+                    plugin.getLogger().severe("保存求购单失败: " + error.getMessage());
+                    BuyOrder current = orders.get(order.getOrderId());
+                    if (current != null) {
+                        remove(current);
+                        plugin.getEconomyManager().deposit(buyer, current.getEscrow());
+                        buyer.sendMessage(ChatColor.RED + "求购单保存失败，金币已退还!");
+                    }
+                }, asyncStorage.mainThread());
+            return true;
+        } else {
+            dirty = true;
+        }
+        
+        sendPlaced(buyer, order, escrow);
+        return true;
+    }
+    
+    private void sendPlaced(Player buyer, BuyOrder order, double escrow) {
+        buyer.sendMessage(ChatColor.GREEN + "求购单已挂出: " + order.getQuantity() + " 个 " + order.getMaterial().name()
+            + " 最高单价: " + plugin.getEconomyManager().formatCurrency(order.getMaxUnitPrice())
+            + " 托管: " + plugin.getEconomyManager().formatCurrency(escrow));
+        buyer.sendMessage(ChatColor.GRAY + "ID: " + order.getOrderId().toString().substring(0, 8));
+    }
+    
+    /**
+     * 撤销玩家自己的求购单（ID前缀匹配），退还尚未成交部分的托管金币
+     */
+    public boolean cancelOrder(Player buyer, String idPrefix) {
+        BuyOrder order = null;
+        for (BuyOrder candidate : getOrders(buyer.getUniqueId())) {
+            if (candidate.getOrderId().toString().startsWith(idPrefix.toLowerCase(Locale.ROOT))) {
+                order = candidate;
+                break;
+            }
+        }
+        if (order == null) {
+            buyer.sendMessage(ChatColor.RED + "找不到该求购单: " + idPrefix);
+            return false;
+        }
+        
+        // 先从买单簿移除，撤销期间不再参与撮合
+        remove(order);
+        BuyOrder cancelled = order;
+        
+        if (databaseStorage != null) {
+            asyncStorage.supplyOrdered(() -> databaseStorage.cancelBuyOrder(cancelled.getOrderId()))
+                .whenCompleteAsync((quantity, error) -> {
+                    if (error != null) {
+                        plugin.getLogger().severe("撤销求购单失败: " + error.getMessage());
+                        if (!orders.containsKey(cancelled.getOrderId())) {
+                            put(cancelled);
+                        }
+                        buyer.sendMessage(ChatColor.RED + "撤销求购单失败，请稍后再试!");
+                        return;
+                    }
+                    // 按数据库中的剩余数量退款，其他服务器已成交的部分不退
+                    if (quantity > 0) {
+                        refund(buyer, cancelled.withQuantity(quantity));
+                    } else {
+                        buyer.sendMessage(ChatColor.RED + "该求购单已全部成交或已被撤销!");
+                    }
+                }, asyncStorage.mainThread());
+            return true;
+        }
+        
+        if (journal != null) {
+            // 撤销记录落盘后再退款，崩溃时求购单和托管金币都还在
+            journal.append(new YamlListingJournal.Transaction().removeOrder(cancelled.getOrderId()))
+                .whenCompleteAsync((ignored, error) -> {
+                    if (error != null) {
+                        plugin.getLogger().severe("撤销求购单失败: " + error.getMessage());
+                        if (!orders.containsKey(cancelled.getOrderId())) {
+                            put(cancelled);
+                        }
+                        buyer.sendMessage(ChatColor.RED + "撤销求购单失败，请稍后再试!");
+                        return;
+                    }
+                    refund(buyer, cancelled);
+                }, asyncStorage.mainThread());
+            return true;
+        }
+        
+        dirty = true;
+        refund(buyer, order);
+        return true;
+    }
+    
+    private void refund(Player buyer, BuyOrder order) {
+        plugin.getEconomyManager().deposit(buyer, order.getEscrow());
+        buyer.sendMessage(ChatColor.GREEN + "求购单已撤销，退还托管金币: " + plugin.getEconomyManager().formatCurrency(order.getEscrow()));
+    }
+    
+    /**
+     * 将新上架与出价不低于其单价的求购单撮合，按上架单价成交；没有可成交的求购单时返回 null。
+     * 买单簿立即更新，剩余部分由调用方上架，日志模式下求购单变更也由调用方与成交一起写入；
+     * 关闭部分购买时跳过需要拆分上架的求购单
+     */
+    BuyOrderMatch match(MarketListing listing) {
+        TreeSet<BuyOrder> book = books.get(listing.getMaterial());
+        if (!isEnabled() || book == null || book.isEmpty() || book.first().getMaxUnitPrice() < listing.getUnitPrice()) {
+            return null;
+        }
+        
+        boolean partialEnabled = plugin.getConfig().getBoolean("partial-purchases", true);
+        double unitPrice = listing.getUnitPrice();
+        int remaining = listing.getAmount();
+        List<BuyOrder> matched = new ArrayList<>();
+        List<Integer> quantities = new ArrayList<>();
+        List<Double> prices = new ArrayList<>();
+        for (BuyOrder order : book) {
+            if (remaining <= 0 || order.getMaxUnitPrice() < unitPrice) {
+                break;
+            }
+            if (order.getBuyerId().equals(listing.getSellerId())) {
+                continue;
+            }
+            int quantity = Math.min(order.getQuantity(), remaining);
+            if (quantity < remaining && !partialEnabled) {
+                continue;
+            }
+            // 按累计卖出数量的价格差计价，与 MarketListing.withAmount 一致，各笔之和等于卖出部分的总价；
+            // 向上取整后仍不足一分的成交跳过
+            int sold = listing.getAmount() - remaining;
+            double price = Math.round((listing.priceOf(sold + quantity) - listing.priceOf(sold)) * 100) / 100.0;
+            if (price <= 0) {
+                continue;
+            }
+            matched.add(order);
+            quantities.add(quantity);
+            prices.add(price);
+            remaining -= quantity;
+        }
+        if (matched.isEmpty()) {
+            return null;
+        }
+        
+        ItemStack template = listing.getItem();
+        double taxRate = plugin.getConfig().getDouble("transaction-tax", 0) / 100.0;
+        MarketListing remainder = remaining > 0 ? listing.withAmount(remaining) : null;
+        if (remaining > 0 && remainder == null) {
+            // 剩余部分不足一分，不拆分，整个照常上架
+            return null;
+        }
+        BuyOrderMatch result = new BuyOrderMatch(listing, remainder, taxRate);
+        
+        for (int i = 0; i < matched.size(); i++) {
+            BuyOrder order = matched.get(i);
+            int quantity = quantities.get(i);
+            double price = prices.get(i);
+            
+            ItemStack item = template.clone();
+            item.setAmount(quantity);
+            double refund = Math.max(0, order.getMaxUnitPrice() * quantity - price);
+            BuyOrder after = order.getQuantity() > quantity ? order.withQuantity(order.getQuantity() - quantity) : null;
+            result.addFill(order, after, quantity, price, new Mailbox.MailboxItem(item, refund, null));
+            
+            remove(order);
+            if (after != null) {
+                put(after);
+            }
+        }
+        
+        if (databaseStorage == null && journal == null) {
+            dirty = true;
+        }
+        return result;
+    }
+    
+    /**
+     * 撮合提交失败（事务已回滚）时恢复成交前的求购单
+     */
+    void restore(BuyOrderMatch match) {
+        for (BuyOrderMatch.Fill fill : match.getFills()) {
+            BuyOrder current = orders.get(fill.getOrder().getOrderId());
+            if (current == null || current == fill.getAfter()) {
+                if (current != null) {
+                    remove(current);
+                }
+                put(fill.getOrder());
+            }
+        }
+    }
+    
+    /**
+     * 提交时发现已被其他服务器改变的求购单，本服的副本已过期，移除后从数据库重新同步
+     */
+    void discardRejected(BuyOrderMatch match) {
+        if (match.getRejected().isEmpty()) {
+            return;
+        }
+        for (BuyOrderMatch.Fill fill : match.getRejected()) {
+            BuyOrder current = orders.get(fill.getOrder().getOrderId());
+            if (current != null) {
+                remove(current);
+            }
+        }
+        syncFromDatabase();
+    }
+    
+    private void put(BuyOrder order) {
+        orders.put(order.getOrderId(), order);
+        books.computeIfAbsent(order.getMaterial(), k -> new TreeSet<>(BuyOrder.PRICE_TIME_ORDER)).add(order);
+        modCount++;
+    }
+    
+    private void remove(BuyOrder order) {
+        if (orders.remove(order.getOrderId(), order)) {
+            TreeSet<BuyOrder> book = books.get(order.getMaterial());
+            if (book != null) {
+                book.remove(order);
+                if (book.isEmpty()) {
+                    books.remove(order.getMaterial());
+                }
+            }
+            modCount++;
+        }
+    }
+    
+    private void replaceAll(Collection<BuyOrder> loaded) {
+        orders.clear();
+        books.clear();
+        for (BuyOrder order : loaded) {
+            if (order.getQuantity() > 0) {
+                put(order);
+            }
+        }
+    }
+    
+    /**
+     * 后台读取数据库中的全部求购单，期间本服没有修改时替换内存中的买单簿
+     */
+    private void syncFromDatabase() {
+        if (syncing) {
+            return;
+        }
+        syncing = true;
+        long expectedModCount = modCount;
+        asyncStorage.supplyOrdered(databaseStorage::loadBuyOrders).whenCompleteAsync((loaded, error) -> {
+            syncing = false;
+            if (error != null) {
+                plugin.getLogger().warning("同步求购单失败: " + error.getMessage());
+                return;
+            }
+            // 同步期间本服有过修改，结果可能已过期，留到下次同步
+            if (modCount == expectedModCount) {
+                replaceAll(loaded);
+            }
+        }, asyncStorage.mainThread());
+    }
+    
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        FileConfiguration config = YamlConfiguration.loadConfiguration(file);
+        ConfigurationSection section = config.getConfigurationSection("orders");
+        if (section == null) {
+            return;
+        }
+        for (String key : section.getKeys(false)) {
+            try {
+                ConfigurationSection entry = section.getConfigurationSection(key);
+                Material material = Material.matchMaterial(entry.getString("material", ""));
+                if (material == null) {
+                    plugin.getLogger().warning("求购单物品类型无效: " + key);
+                    continue;
+                }
+                put(new BuyOrder(
+                    UUID.fromString(key),
+                    UUID.fromString(entry.getString("buyer_id")),
+                    entry.getString("buyer_name"),
+                    material,
+                    entry.getDouble("max_unit_price"),
+                    entry.getInt("quantity"),
+                    entry.getLong("created_at")
+                ));
+            } catch (Exception e) {
+                plugin.getLogger().warning("求购单数据解析失败: " + key);
+            }
+        }
+    }
+    
+    private void saveAsync() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        List<BuyOrder> snapshot = new ArrayList<>(orders.values());
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> write(snapshot));
+    }
+    
+    /**
+     * 关闭时同步保存
+     */
+    public void close() {
+        MaintenanceScheduler scheduler = plugin.getMaintenanceScheduler();
+        scheduler.cancelRepeating("buy-order-sync");
+        scheduler.cancelRepeating("buy-order-save");
+        if (databaseStorage == null && dirty) {
+            dirty = false;
+            write(new ArrayList<>(orders.values()));
+        }
+    }
+    
+    private synchronized void write(List<BuyOrder> snapshot) {
+        try {
+            writeFile(snapshot);
+        } catch (Exception e) {
+            dirty = true;
+            plugin.getLogger().severe("保存求购单失败: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 落盘后再替换，日志压缩之后文件就是唯一的副本
+     */
+    private void writeFile(List<BuyOrder> snapshot) throws IOException {
+        FileConfiguration config = new YamlConfiguration();
+        for (BuyOrder order : snapshot) {
+            String path = "orders." + order.getOrderId();
+            config.set(path + ".buyer_id", order.getBuyerId().toString());
+            config.set(path + ".buyer_name", order.getBuyerName());
+            config.set(path + ".material", order.getMaterial().name());
+            config.set(path + ".max_unit_price", order.getMaxUnitPrice());
+            config.set(path + ".quantity", order.getQuantity());
+            config.set(path + ".created_at", order.getCreatedAt());
+        }
+        
+        // 先写临时文件再替换，避免写到一半损坏
+        File tempFile = new File(plugin.getDataFolder(), "buy_orders.yml.tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(config.saveToString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
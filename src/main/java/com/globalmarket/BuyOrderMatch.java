@@ -0,0 +1,164 @@
+package com.globalmarket;
+
+import java.util.*;
+
+/**
+ * 一次新上架与求购单的撮合结果
+ * 每笔成交按上架的单价计价，买家收到物品和多托管的金币，卖家收入合并为一封邮件；
+ * 上架未被全部买下时剩余部分照常上架。数据库模式下在写线程中提交，
+ * 已被其他服务器改变的求购单通过 retain 剔除，这部分物品退回卖家邮箱
+ */
+public class BuyOrderMatch {
+    
+    private final MarketListing listing;
+    private final MarketListing remainder;
+    private final double taxRate;
+    private final List<Fill> fills = new ArrayList<>();
+    private final List<Fill> rejected = new ArrayList<>();
+    private final List<Mailbox.MailboxItem> returnedItems = new ArrayList<>();
+    private Mailbox.MailboxItem sellerDelivery;
+    
+    public BuyOrderMatch(MarketListing listing, MarketListing remainder, double taxRate) {
+        this.listing = listing;
+        this.remainder = remainder;
+        this.taxRate = taxRate;
+    }
+    
+    void addFill(BuyOrder order, BuyOrder after, int quantity, double price, Mailbox.MailboxItem buyerDelivery) {
+        fills.add(new Fill(order, after, quantity, price, buyerDelivery));
+        sellerDelivery = null;
+    }
+    
+    /**
+     * 只保留实际成交的求购单，其余记为被拒绝
+     */
+    public void retain(Collection<UUID> claimedOrderIds) {
+        Iterator<Fill> iterator = fills.iterator();
+        while (iterator.hasNext()) {
+            Fill fill = iterator.next();
+            if (!claimedOrderIds.contains(fill.order.getOrderId())) {
+                iterator.remove();
+                rejected.add(fill);
+                // 没有卖出的物品作为下架物品退回卖家
+                Mailbox.MailboxItem returned = new Mailbox.MailboxItem(fill.buyerDelivery.getItem(), 0, null);
+                returned.setRemovedItem(true);
+                returnedItems.add(returned);
+                sellerDelivery = null;
+            }
+        }
+    }
+    
+    /**
+     * 新上架的原始内容
+     */
+    public MarketListing getListing() {
+        return listing;
+    }
+    
+    /**
+     * 成交后剩余继续上架的部分，全部成交时为 null
+     */
+    public MarketListing getRemainder() {
+        return remainder;
+    }
+    
+    public List<Fill> getFills() {
+        return Collections.unmodifiableList(fills);
+    }
+    
+    /**
+     * 未能成交的部分（求购单已被其他服务器成交或撤销）
+     */
+    public List<Fill> getRejected() {
+        return Collections.unmodifiableList(rejected);
+    }
+    
+    /**
+     * 退回卖家的物品，与 getRejected 一一对应
+     */
+    public List<Mailbox.MailboxItem> getReturnedItems() {
+        return Collections.unmodifiableList(returnedItems);
+    }
+    
+    /**
+     * 卖家的合并收入邮件，没有收入时为 null
+     */
+    public Mailbox.MailboxItem getSellerDelivery() {
+        if (sellerDelivery != null || fills.isEmpty()) {
+            return sellerDelivery;
+        }
+        double price = getTotalPrice();
+        double tax = price * taxRate;
+        if (price - tax > 0) {
+            Mailbox.TransactionRecord record = new Mailbox.TransactionRecord(
+                listing.getMaterial().name(), getTotalAmount(), price, tax, price - tax);
+            sellerDelivery = new Mailbox.MailboxItem(null, price - tax, record);
+        }
+        return sellerDelivery;
+    }
+    
+    public int getTotalAmount() {
+        int amount = 0;
+        for (Fill fill : fills) {
+            amount += fill.quantity;
+        }
+        return amount;
+    }
+    
+    public double getTotalPrice() {
+        double price = 0;
+        for (Fill fill : fills) {
+            price += fill.price;
+        }
+        return price;
+    }
+    
+    public boolean isEmpty() {
+        return fills.isEmpty();
+    }
+    
+    /**
+     * 与一个求购单的成交
+     */
+    public static final class Fill {
+        private final BuyOrder order;
+        private final BuyOrder after;
+        private final int quantity;
+        private final double price;
+        private final Mailbox.MailboxItem buyerDelivery;
+        
+        private Fill(BuyOrder order, BuyOrder after, int quantity, double price, Mailbox.MailboxItem buyerDelivery) {
+            this.order = order;
+            this.after = after;
+            this.quantity = quantity;
+            this.price = price;
+            this.buyerDelivery = buyerDelivery;
+        }
+        
+        public BuyOrder getOrder() {
+            return order;
+        }
+        
+        /**
+         * 成交后剩余的求购单，全部成交时为 null
+         */
+        public BuyOrder getAfter() {
+            return after;
+        }
+        
+        public int getQuantity() {
+            return quantity;
+        }
+        
+        public double getPrice() {
+            return price;
+        }
+        
+        /**
+         * 买家收到的物品，以及按上架单价成交后多托管的金币
+         */
+        public Mailbox.MailboxItem getBuyerDelivery() {
+            return buyerDelivery;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.globalmarket;
+
+import com.globalmarket.util.ItemCodec;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 数据库邮箱存储（mailbox_items 表）
+ * 每次投递插入一行，每次领取按主键删除一行，不再整体重写邮箱；
+ * 插入和删除排在市场写入线程中执行，同一物品的投递一定先于领取
+ */
+public class DatabaseMailboxStorage implements MailboxStorage {
+    
+    private static final String INSERT_SQL = """
+        INSERT INTO mailbox_items (id, owner_uuid, item_base64, item_data, money, is_removed, is_sent, sender_name,
+            record_item_name, record_amount, record_sell_price, record_tax, record_actual_income, created_at)
+        VALUES (?, ?, NULL, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+        """;
+    
+    private final GlobalMarket plugin;
+    private final DatabaseManager databaseManager;
+    private final AsyncDatabaseStorage asyncStorage;
+    
+    public DatabaseMailboxStorage(GlobalMarket plugin, DatabaseManager databaseManager, AsyncDatabaseStorage asyncStorage) {
+        this.plugin = plugin;
+        this.databaseManager = databaseManager;
+        this.asyncStorage = asyncStorage;
+    }
+    
+    @Override
+    public Map<UUID, List<Mailbox.MailboxItem>> loadAll() {
+        Map<UUID, List<Mailbox.MailboxItem>> mailboxes = new HashMap<>();
+        
+        String selectSQL = """
+            SELECT id, owner_uuid, item_base64, item_data, money, is_removed, is_sent, sender_name,
+                   record_item_name, record_amount, record_sell_price, record_tax, record_actual_income, created_at
+            FROM mailbox_items
+            ORDER BY owner_uuid, created_at
+            """;
+        
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(selectSQL);
+             ResultSet rs = stmt.executeQuery()) {
+            
+            while (rs.next()) {
+                try {
+                    UUID ownerId = UUID.fromString(rs.getString("owner_uuid"));
+                    mailboxes.computeIfAbsent(ownerId, k -> new ArrayList<>()).add(readItem(rs));
+                } catch (Exception e) {
+                    plugin.getLogger().warning("邮箱数据加载失败: " + rs.getString("id"));
+                }
+            }
+            
+        } catch (SQLException e) {
+            plugin.getLogger().severe("加载邮箱数据失败: " + e.getMessage());
+            e.printStackTrace();
+        }
+        
+        if (mailboxes.isEmpty()) {
+            importLocalMailboxes(mailboxes);
+        }
+        
+        return mailboxes;
+    }
+    
+    @Override
+    public void start(Mailbox mailbox) {
+        // 数据库模式下每次变更实时写入，无需后台任务
+    }
+    
+    @Override
+    public CompletableFuture<SaveResult> itemAdded(UUID playerId, Mailbox.MailboxItem item) {
+        return asyncStorage.supplyOrdered(() -> {
+            Connection conn;
+            try {
+                conn = databaseManager.getConnection();
+            } catch (SQLException e) {
+                // 没有拿到连接，肯定没有写入
+                plugin.getLogger().severe("保存邮箱物品失败: " + e.getMessage());
+                return SaveResult.NOT_SAVED;
+            }
+            try (Connection ignored = conn) {
+                insertItem(conn, playerId, item);
+                return SaveResult.SAVED;
+            }
+        }).handleAsync((result, error) -> {
+            if (error != null) {
+                // 语句已经发出，提交结果未知
+                plugin.getLogger().severe("保存邮箱物品失败: " + error.getMessage());
+                return SaveResult.UNKNOWN;
+            }
+            return result;
+        }, asyncStorage.mainThread());
+    }
+    
+    @Override
+    public CompletableFuture<ClaimResult> itemClaimed(UUID playerId, Mailbox.MailboxItem item) {
+        String deleteSQL = "DELETE FROM mailbox_items WHERE id = ? AND owner_uuid = ?";
+        
+        return asyncStorage.supplyOrdered(() -> {
+            try (Connection conn = databaseManager.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(deleteSQL)) {
+                
+                stmt.setString(1, item.getId().toString());
+                stmt.setString(2, playerId.toString());
+                // 删除行数为0说明已在别处领取，防止重复发放
+                return stmt.executeUpdate() > 0 ? ClaimResult.CLAIMED : ClaimResult.ALREADY_CLAIMED;
+            }
+        }).handleAsync((result, error) -> {
+            if (error != null) {
+                plugin.getLogger().severe("领取邮箱物品失败: " + error.getMessage());
+                return ClaimResult.FAILED;
+            }
+            return result;
+        }, asyncStorage.mainThread());
+    }
+    
+    @Override
+    public void itemsCommitted(UUID playerId) {
+        // 数据库模式下邮件已随调用方的事务写入
+    }
+    
+    @Override
+    public void flush(Mailbox mailbox) {
+        // 数据库模式下没有待写回的数据
+    }
+    
+    @Override
+    public void close(Mailbox mailbox) {
+        // 连接池由 DatabaseManager 统一关闭
+    }
+    
+    /**
+     * 数据库中还没有邮箱数据时，把本地分片邮箱导入数据库
+     */
+    private void importLocalMailboxes(Map<UUID, List<Mailbox.MailboxItem>> mailboxes) {
+        File shardFolder = new File(plugin.getDataFolder(), "mailboxes");
+        File legacyFile = new File(plugin.getDataFolder(), "mailbox.yml");
+        if (!shardFolder.exists() && !legacyFile.exists()) {
+            return;
+        }
+        
+        MailboxShardStorage localStorage = new MailboxShardStorage(plugin);
+        Map<UUID, List<Mailbox.MailboxItem>> localMailboxes = localStorage.loadAll();
+        localStorage.close(null);
+        if (localMailboxes.isEmpty()) {
+            return;
+        }
+        
+        int count = 0;
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(INSERT_SQL)) {
+            
+            conn.setAutoCommit(false);
+            for (Map.Entry<UUID, List<Mailbox.MailboxItem>> entry : localMailboxes.entrySet()) {
+                for (Mailbox.MailboxItem item : entry.getValue()) {
+                    bindItem(stmt, entry.getKey(), item);
+                    stmt.addBatch();
+                    count++;
+                }
+            }
+            stmt.executeBatch();
+            conn.commit();
+            
+        } catch (SQLException e) {
+            plugin.getLogger().severe("导入本地邮箱数据失败: " + e.getMessage());
+            e.printStackTrace();
+            return;
+        }
+        
+        mailboxes.putAll(localMailboxes);
+        if (shardFolder.exists() && !shardFolder.renameTo(new File(plugin.getDataFolder(), "mailboxes.migrated"))) {
+            plugin.getLogger().warning("无法重命名本地邮箱目录 mailboxes");
+        }
+        plugin.getLogger().info("已将 " + count + " 件本地邮箱物品导入数据库");
+    }
+    
+    /**
+     * 使用调用方的连接插入一件邮箱物品，可与其他写入放在同一事务中
+     */
+    public static void insertItem(Connection conn, UUID playerId, Mailbox.MailboxItem item) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(INSERT_SQL)) {
+            bindItem(stmt, playerId, item);
+            stmt.executeUpdate();
+        }
+    }
+    
+    private static void bindItem(PreparedStatement stmt, UUID ownerId, Mailbox.MailboxItem item) throws SQLException {
+        Mailbox.TransactionRecord record = item.getRecord();
+        
+        stmt.setString(1, item.getId().toString());
+        stmt.setString(2, ownerId.toString());
+        stmt.setBytes(3, ItemCodec.encode(item.getItem()));
+        stmt.setBigDecimal(4, BigDecimal.valueOf(item.getMoney()));
+        stmt.setBoolean(5, item.isRemovedItem());
+        stmt.setBoolean(6, item.isSentItem());
+        stmt.setString(7, item.getSenderName());
+        if (record != null) {
+            stmt.setString(8, record.getItemName());
+            stmt.setInt(9, record.getAmount());
+            stmt.setBigDecimal(10, BigDecimal.valueOf(record.getSellPrice()));
+            stmt.setBigDecimal(11, BigDecimal.valueOf(record.getTax()));
+            stmt.setBigDecimal(12, BigDecimal.valueOf(record.getActualIncome()));
+            stmt.setLong(13, record.getTimestamp());
+        } else {
+            stmt.setNull(8, Types.VARCHAR);
+            stmt.setNull(9, Types.INTEGER);
+            stmt.setNull(10, Types.DECIMAL);
+            stmt.setNull(11, Types.DECIMAL);
+            stmt.setNull(12, Types.DECIMAL);
+            stmt.setLong(13, System.currentTimeMillis());
+        }
+    }
+    
+    private Mailbox.MailboxItem readItem(ResultSet rs) throws SQLException {
+        ItemStack item = ItemCodec.decode(DatabaseManager.readItemData(rs));
+        
+        Mailbox.TransactionRecord record = null;
+        String recordItemName = rs.getString("record_item_name");
+        if (recordItemName != null) {
+            record = new Mailbox.TransactionRecord(
+                recordItemName,
+                rs.getInt("record_amount"),
+                rs.getBigDecimal("record_sell_price").doubleValue(),
+                rs.getBigDecimal("record_tax").doubleValue(),
+                rs.getBigDecimal("record_actual_income").doubleValue(),
+                rs.getLong("created_at")
+            );
+        }
+        
+        Mailbox.MailboxItem mailboxItem = new Mailbox.MailboxItem(
+            UUID.fromString(rs.getString("id")), item, rs.getBigDecimal("money").doubleValue(), record);
+        mailboxItem.setRemovedItem(rs.getBoolean("is_removed"));
+        mailboxItem.setSentItem(rs.getBoolean("is_sent"));
+        mailboxItem.setSenderName(rs.getString("sender_name"));
+        return mailboxItem;
+    }
+}
@@ -1,21 +1,40 @@
 package com.globalmarket;
 
+import com.globalmarket.util.ItemCodec;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.inventory.ItemStack;
 
+import java.io.File;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.UUID;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class DatabaseManager {
     
+    private static final Pattern INLINE_INDEX = Pattern.compile(",\\s*INDEX (\\w+) \\(([^)]*)\\)");
+    
+    // 数据库结构版本：1 = 物品以Base64文本保存，2 = 物品以二进制 item_data 保存，
+    // 3 = 上架表增加物品类型/数量/单价列及翻页用的组合索引，
+    // 4 = 翻页改由内存索引完成，删除没有读取方的物品类型/单价列和组合索引，只保留部分售出时校验用的数量列
+    private static final int SCHEMA_VERSION = 4;
+    private static final String[] ITEM_TABLES = {"market_listings", "market_transactions", "mailbox_items"};
+    
     private final GlobalMarket plugin;
     private final Logger logger;
     private HikariDataSource dataSource;
     private String storageType;
     
+    // 本服务器实例的标识，用于在变更日志中区分写入来源
+    private final String nodeId = UUID.randomUUID().toString();
+    
     public DatabaseManager(GlobalMarket plugin) {
         this.plugin = plugin;
         this.logger = plugin.getLogger();
@@ -25,6 +44,10 @@ public class DatabaseManager {
         FileConfiguration config = plugin.getConfig();
         storageType = config.getString("storage-type", "yaml").toLowerCase();
         
+        if (storageType.equals("sqlite")) {
+            return setupEmbeddedDatabase(config);
+        }
+        
         if (storageType.equals("mysql") || storageType.equals("postgresql")) {
             return setupDatabase(config);
         }
@@ -75,19 +98,45 @@ public class DatabaseManager {
             hikariConfig.setIdleTimeout(dbConfig.getLong("idle-timeout", 600000));
             hikariConfig.setMaxLifetime(dbConfig.getLong("max-lifetime", 1800000));
             
-            // 连接测试
-            hikariConfig.setConnectionTestQuery("SELECT 1");
+            return openDataSource(hikariConfig);
             
-            dataSource = new HikariDataSource(hikariConfig);
+        } catch (Exception e) {
+            logger.severe("数据库连接失败: " + e.getMessage());
+            e.printStackTrace();
+        }
+        
+        return false;
+    }
+    
+    /**
+     * 内嵌SQLite数据库，数据保存在插件目录下的单个文件中
+     */
+    private boolean setupEmbeddedDatabase(FileConfiguration config) {
+        try {
+            ConfigurationSection dbConfig = config.getConfigurationSection("database.sqlite");
+            String fileName = dbConfig != null ? dbConfig.getString("file", "market.db") : "market.db";
             
-            // 测试连接
-            try (Connection conn = getConnection()) {
-                if (conn != null) {
-                    createTables();
-                    logger.info("数据库连接成功: " + storageType);
-                    return true;
-                }
+            if (!plugin.getDataFolder().exists()) {
+                plugin.getDataFolder().mkdirs();
             }
+            File dbFile = new File(plugin.getDataFolder(), fileName);
+            
+            HikariConfig hikariConfig = new HikariConfig();
+            hikariConfig.setJdbcUrl("jdbc:sqlite:" + dbFile.getAbsolutePath());
+            hikariConfig.setDriverClassName("org.sqlite.JDBC");
+            hikariConfig.setPoolName("GlobalMarket-SQLite");
+            
+            // WAL模式：读写互不阻塞，每次提交只追加到WAL文件
+            Properties props = new Properties();
+            props.setProperty("journal_mode", "WAL");
+            props.setProperty("synchronous", "NORMAL");
+            props.setProperty("busy_timeout", String.valueOf(dbConfig != null ? dbConfig.getInt("busy-timeout", 5000) : 5000));
+            hikariConfig.setDataSourceProperties(props);
+            
+            // SQLite同一时间只允许一个写入者，连接池不宜过大
+            hikariConfig.setMaximumPoolSize(dbConfig != null ? dbConfig.getInt("pool-size", 4) : 4);
+            
+            return openDataSource(hikariConfig);
             
         } catch (Exception e) {
             logger.severe("数据库连接失败: " + e.getMessage());
@@ -97,6 +146,27 @@ public class DatabaseManager {
         return false;
     }
     
+    private boolean openDataSource(HikariConfig hikariConfig) throws SQLException {
+        // 连接测试
+        hikariConfig.setConnectionTestQuery("SELECT 1");
+        
+        dataSource = new HikariDataSource(hikariConfig);
+        
+        // 测试连接
+        try (Connection conn = getConnection()) {
+            if (conn != null) {
+                createTables();
+                migrateSchema();
+                logger.info("数据库连接成功: " + storageType);
+                return true;
+            }
+        }
+        
+        close();
+        dataSource = null;
+        return false;
+    }
+    
     private void createTables() {
         String createListingsTable = """
             CREATE TABLE IF NOT EXISTS market_listings (
@@ -104,8 +174,12 @@ public class DatabaseManager {
                 seller_uuid VARCHAR(36) NOT NULL,
                 seller_name VARCHAR(16) NOT NULL,
                 item_base64 TEXT NOT NULL,
+                item_data MEDIUMBLOB,
                 price DECIMAL(10,2) NOT NULL,
-                created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+                amount INT,
+                created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+                INDEX idx_listings_seller (seller_uuid),
+                INDEX idx_listings_created (created_at)
             )
             """;
             
@@ -117,6 +191,7 @@ public class DatabaseManager {
                 buyer_uuid VARCHAR(36) NOT NULL,
                 buyer_name VARCHAR(32) NOT NULL,
                 item_base64 TEXT NOT NULL,
+                item_data MEDIUMBLOB,
                 price DECIMAL(15,2) NOT NULL,
                 transaction_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
                 INDEX idx_listing (listing_id),
@@ -125,15 +200,97 @@ public class DatabaseManager {
                 INDEX idx_time (transaction_time)
             )
             """;
+        
+        String createMailboxTable = """
+            CREATE TABLE IF NOT EXISTS mailbox_items (
+                id VARCHAR(36) PRIMARY KEY,
+                owner_uuid VARCHAR(36) NOT NULL,
+                item_base64 TEXT,
+                item_data MEDIUMBLOB,
+                money DECIMAL(15,2) NOT NULL DEFAULT 0,
+                is_removed BOOLEAN NOT NULL DEFAULT FALSE,
+                is_sent BOOLEAN NOT NULL DEFAULT FALSE,
+                sender_name VARCHAR(32),
+                record_item_name VARCHAR(64),
+                record_amount INT,
+                record_sell_price DECIMAL(15,2),
+                record_tax DECIMAL(15,2),
+                record_actual_income DECIMAL(15,2),
+                created_at BIGINT NOT NULL,
+                INDEX idx_owner_time (owner_uuid, created_at)
+            )
+            """;
+        
+        String createChangesTable = """
+            CREATE TABLE IF NOT EXISTS market_changes (
+                seq BIGINT AUTO_INCREMENT PRIMARY KEY,
+                listing_id VARCHAR(36) NOT NULL,
+                op VARCHAR(8) NOT NULL,
+                node_id VARCHAR(36) NOT NULL,
+                created_at BIGINT NOT NULL,
+                INDEX idx_changes_time (created_at)
+            )
+            """;
+        
+        String createBuyOrdersTable = """
+            CREATE TABLE IF NOT EXISTS market_buy_orders (
+                id VARCHAR(36) PRIMARY KEY,
+                buyer_uuid VARCHAR(36) NOT NULL,
+                buyer_name VARCHAR(16) NOT NULL,
+                material VARCHAR(64) NOT NULL,
+                max_unit_price DECIMAL(15,4) NOT NULL,
+                quantity INT NOT NULL,
+                created_at BIGINT NOT NULL,
+                INDEX idx_buy_orders_buyer (buyer_uuid)
+            )
+            """;
+        
+        String createSchemaTable = "CREATE TABLE IF NOT EXISTS market_schema (version INT NOT NULL)";
+        
         // PostgreSQL语法调整
         if (storageType.equals("postgresql")) {
             createListingsTable = createListingsTable
-                .replace("AUTO_INCREMENT", "SERIAL")
-                .replace("DECIMAL(10,2)", "NUMERIC(10,2)");
+                .replace("DECIMAL(10,2)", "NUMERIC(10,2)")
+                .replace("DECIMAL(15,4)", "NUMERIC(15,4)")
+                .replace("MEDIUMBLOB", "BYTEA");
+            
+            createTransactionsTable = createTransactionsTable
+                .replace("INT AUTO_INCREMENT", "SERIAL")
+                .replace("DECIMAL(15,2)", "NUMERIC(15,2)")
+                .replace("MEDIUMBLOB", "BYTEA");
+            
+            createMailboxTable = createMailboxTable
+                .replace("DECIMAL(15,2)", "NUMERIC(15,2)")
+                .replace("MEDIUMBLOB", "BYTEA");
+            
+            createChangesTable = createChangesTable
+                .replace("BIGINT AUTO_INCREMENT", "BIGSERIAL");
+            
+            createBuyOrdersTable = createBuyOrdersTable
+                .replace("DECIMAL(15,4)", "NUMERIC(15,4)");
+        } else if (storageType.equals("sqlite")) {
+            createListingsTable = createListingsTable
+                .replace("MEDIUMBLOB", "BLOB");
             
             createTransactionsTable = createTransactionsTable
-                .replace("AUTO_INCREMENT", "SERIAL")
-                .replace("DECIMAL(15,2)", "NUMERIC(15,2)");
+                .replace("INT AUTO_INCREMENT PRIMARY KEY", "INTEGER PRIMARY KEY AUTOINCREMENT")
+                .replace("MEDIUMBLOB", "BLOB");
+            
+            createMailboxTable = createMailboxTable
+                .replace("MEDIUMBLOB", "BLOB");
+            
+            createChangesTable = createChangesTable
+                .replace("BIGINT AUTO_INCREMENT PRIMARY KEY", "INTEGER PRIMARY KEY AUTOINCREMENT");
+        }
+        
+        // 只有MySQL支持建表语句中内联索引，其余数据库单独创建
+        List<String> indexStatements = new ArrayList<>();
+        if (!storageType.equals("mysql")) {
+            createListingsTable = stripInlineIndexes(createListingsTable, "market_listings", indexStatements);
+            createTransactionsTable = stripInlineIndexes(createTransactionsTable, "market_transactions", indexStatements);
+            createMailboxTable = stripInlineIndexes(createMailboxTable, "mailbox_items", indexStatements);
+            createChangesTable = stripInlineIndexes(createChangesTable, "market_changes", indexStatements);
+            createBuyOrdersTable = stripInlineIndexes(createBuyOrdersTable, "market_buy_orders", indexStatements);
         }
         
         try (Connection conn = getConnection();
@@ -141,6 +298,13 @@ public class DatabaseManager {
             
             stmt.execute(createListingsTable);
             stmt.execute(createTransactionsTable);
+            stmt.execute(createMailboxTable);
+            stmt.execute(createChangesTable);
+            stmt.execute(createBuyOrdersTable);
+            stmt.execute(createSchemaTable);
+            for (String indexStatement : indexStatements) {
+                stmt.execute(indexStatement);
+            }
             
             logger.info("数据库表创建成功");
             
@@ -150,18 +314,281 @@ public class DatabaseManager {
         }
     }
     
+    /**
+     * 按 market_schema 中记录的版本依次升级数据库结构
+     */
+    private void migrateSchema() {
+        try (Connection conn = getConnection()) {
+            int version = readSchemaVersion(conn);
+            if (version >= SCHEMA_VERSION) {
+                return;
+            }
+            
+            if (version < 2) {
+                for (String table : ITEM_TABLES) {
+                    addColumnIfMissing(conn, table, "item_data", getBlobType());
+                    convertBase64Items(conn, table);
+                }
+            }
+            
+            if (version < 3) {
+                addColumnIfMissing(conn, "market_listings", "amount", "INT");
+                fillListingAmounts(conn);
+                // 旧版建表时没有这个索引，CREATE TABLE IF NOT EXISTS 不会补上
+                createIndexIfMissing(conn, "market_listings", "idx_listings_created", "created_at");
+            }
+            
+            if (version < 4) {
+                // 先删索引再删列，SQLite 不允许删除带索引的列
+                dropIndexIfPresent(conn, "market_listings", "idx_listings_material_price");
+                dropIndexIfPresent(conn, "market_listings", "idx_listings_seller_created");
+                dropColumnIfPresent(conn, "market_listings", "material");
+                dropColumnIfPresent(conn, "market_listings", "unit_price");
+            }
+            
+            writeSchemaVersion(conn, SCHEMA_VERSION);
+            logger.info("数据库结构已升级到版本 " + SCHEMA_VERSION);
+            
+        } catch (SQLException e) {
+            logger.severe("升级数据库结构失败: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    private int readSchemaVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM market_schema")) {
+            // 没有版本记录说明是旧版插件创建的数据库
+            int version = rs.next() ? rs.getInt(1) : 0;
+            return version > 0 ? version : 1;
+        }
+    }
+    
+    private void writeSchemaVersion(Connection conn, int version) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM market_schema");
+            stmt.executeUpdate("INSERT INTO market_schema (version) VALUES (" + version + ")");
+        }
+    }
+    
+    private void addColumnIfMissing(Connection conn, String table, String column, String type) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        try (ResultSet rs = metaData.getColumns(conn.getCatalog(), null, table, column)) {
+            if (rs.next()) {
+                return;
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+        }
+    }
+    
+    /**
+     * 将旧版Base64文本物品转换为二进制格式写入 item_data，并清空原文本列
+     */
+    private void convertBase64Items(Connection conn, String table) throws SQLException {
+        List<Object> ids = new ArrayList<>();
+        List<byte[]> items = new ArrayList<>();
+        String selectSQL = "SELECT id, item_base64 FROM " + table
+            + " WHERE item_data IS NULL AND item_base64 IS NOT NULL AND item_base64 <> ''";
+        
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(selectSQL)) {
+            while (rs.next()) {
+                try {
+                    items.add(ItemCodec.upgrade(ItemCodec.fromText(rs.getString("item_base64"))));
+                    ids.add(rs.getObject("id"));
+                } catch (Exception e) {
+                    // 无法转换的行保留Base64文本，读取时仍可回退
+                    logger.warning("无法转换物品数据: " + table + " " + rs.getString("id"));
+                }
+            }
+        }
+        
+        if (ids.isEmpty()) {
+            return;
+        }
+        
+        String updateSQL = "UPDATE " + table + " SET item_data = ?, item_base64 = "
+            + (table.equals("mailbox_items") ? "NULL" : "''") + " WHERE id = ?";
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(updateSQL)) {
+            for (int i = 0; i < ids.size(); i++) {
+                stmt.setBytes(1, items.get(i));
+                stmt.setObject(2, ids.get(i));
+                stmt.addBatch();
+                if ((i + 1) % 500 == 0) {
+                    stmt.executeBatch();
+                }
+            }
+            stmt.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        
+        logger.info("已将 " + table + " 中的 " + ids.size() + " 条物品数据转换为二进制格式");
+    }
+    
+    private void createIndexIfMissing(Connection conn, String table, String indexName, String columns) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        try (ResultSet rs = metaData.getIndexInfo(conn.getCatalog(), null, table, false, false)) {
+            while (rs.next()) {
+                if (indexName.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                    return;
+                }
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE INDEX " + indexName + " ON " + table + " (" + columns + ")");
+        }
+    }
+    
+    private void dropIndexIfPresent(Connection conn, String table, String indexName) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        boolean present = false;
+        try (ResultSet rs = metaData.getIndexInfo(conn.getCatalog(), null, table, false, false)) {
+            while (rs.next()) {
+                if (indexName.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                    present = true;
+                    break;
+                }
+            }
+        }
+        if (!present) {
+            return;
+        }
+        try (Statement stmt = conn.createStatement()) {
+            // MySQL 的索引属于表，其余数据库的索引名全库唯一
+            stmt.execute(storageType.equals("mysql")
+                ? "DROP INDEX " + indexName + " ON " + table
+                : "DROP INDEX " + indexName);
+        }
+    }
+    
+    private void dropColumnIfPresent(Connection conn, String table, String column) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        try (ResultSet rs = metaData.getColumns(conn.getCatalog(), null, table, column)) {
+            if (!rs.next()) {
+                return;
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE " + table + " DROP COLUMN " + column);
+        }
+    }
+    
+    /**
+     * 为已有的上架行补全物品数量，部分售出时以数量校验上架未被其他服务器改动
+     */
+    private void fillListingAmounts(Connection conn) throws SQLException {
+        List<String> ids = new ArrayList<>();
+        List<Integer> amounts = new ArrayList<>();
+        String selectSQL = "SELECT id, item_base64, item_data FROM market_listings WHERE amount IS NULL";
+        
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(selectSQL)) {
+            while (rs.next()) {
+                try {
+                    ItemStack item = ItemCodec.decode(readItemData(rs));
+                    if (item == null) {
+                        continue;
+                    }
+                    amounts.add(Math.max(1, item.getAmount()));
+                    ids.add(rs.getString("id"));
+                } catch (Exception e) {
+                    logger.warning("无法读取上架物品: " + rs.getString("id"));
+                }
+            }
+        }
+        
+        if (ids.isEmpty()) {
+            return;
+        }
+        
+        String updateSQL = "UPDATE market_listings SET amount = ? WHERE id = ?";
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(updateSQL)) {
+            for (int i = 0; i < ids.size(); i++) {
+                stmt.setInt(1, amounts.get(i));
+                stmt.setString(2, ids.get(i));
+                stmt.addBatch();
+                if ((i + 1) % 500 == 0) {
+                    stmt.executeBatch();
+                }
+            }
+            stmt.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        
+        logger.info("已为 " + ids.size() + " 条上架补全物品数量");
+    }
+    
+    /**
+     * 单价保留4位小数，与 max_unit_price 列精度一致
+     */
+    public static java.math.BigDecimal toUnitPrice(double unitPrice) {
+        return java.math.BigDecimal.valueOf(unitPrice).setScale(4, java.math.RoundingMode.HALF_UP);
+    }
+    
+    private String getBlobType() {
+        if (storageType.equals("postgresql")) {
+            return "BYTEA";
+        }
+        return storageType.equals("sqlite") ? "BLOB" : "MEDIUMBLOB";
+    }
+    
+    /**
+     * 读取结果集中的物品数据，尚未转换的旧行回退到 item_base64 列
+     */
+    public static byte[] readItemData(ResultSet rs) throws SQLException {
+        byte[] itemData = rs.getBytes("item_data");
+        if (itemData != null) {
+            return itemData;
+        }
+        return ItemCodec.fromText(rs.getString("item_base64"));
+    }
+    
+    /**
+     * 移除建表语句中的内联 INDEX 定义，并转换为独立的 CREATE INDEX 语句
+     */
+    private String stripInlineIndexes(String createTable, String tableName, List<String> indexStatements) {
+        Matcher matcher = INLINE_INDEX.matcher(createTable);
+        while (matcher.find()) {
+            indexStatements.add("CREATE INDEX IF NOT EXISTS " + matcher.group(1) + " ON " + tableName + " (" + matcher.group(2) + ")");
+        }
+        return matcher.replaceAll("");
+    }
+    
     public Connection getConnection() throws SQLException {
         return dataSource != null ? dataSource.getConnection() : null;
     }
     
+    public String getNodeId() {
+        return nodeId;
+    }
+    
     public String getStorageType() {
         return storageType;
     }
     
     public boolean isDatabaseEnabled() {
-        return storageType != null && storageType.equals("mysql");
+        // 只有连接池成功建立时才启用，否则回退到YAML
+        return dataSource != null && storageType != null
+            && (storageType.equals("mysql") || storageType.equals("postgresql") || storageType.equals("sqlite"));
     }
     
+    
     public void close() {
         if (dataSource != null && !dataSource.isClosed()) {
             dataSource.close();
@@ -1,16 +1,17 @@
 package com.globalmarket;
 
+import com.globalmarket.util.ItemCodec;
+import org.bukkit.Material;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.util.io.BukkitObjectInputStream;
-import org.bukkit.util.io.BukkitObjectOutputStream;
-import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
 
-import java.io.*;
 import java.sql.*;
 import java.util.*;
 
 public class DatabaseStorage {
     
+    // 上架时还不知道卖家名称时写入的占位值
+    private static final String UNKNOWN_SELLER = "Unknown";
+    
     private final GlobalMarket plugin;
     private final DatabaseManager databaseManager;
     
@@ -25,22 +26,15 @@ public class DatabaseStorage {
             return;
         }
         
-        String insertSQL = """
-            INSERT INTO market_listings (id, seller_uuid, seller_name, item_base64, price, created_at)
-            VALUES (?, ?, ?, ?, ?, ?)
-            """;
-        
-        try (Connection conn = databaseManager.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(insertSQL)) {
-            
-            stmt.setString(1, listing.getListingId().toString());
-            stmt.setString(2, listing.getSellerId().toString());
-            stmt.setString(3, "Unknown");
-            stmt.setString(4, itemStackToBase64(listing.getItem()));
-            stmt.setBigDecimal(5, new java.math.BigDecimal(listing.getPrice()));
-            stmt.setTimestamp(6, new Timestamp(listing.getCreatedAt()));
-            
-            stmt.executeUpdate();
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                insertListings(conn, Collections.singletonList(listing));
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
             
         } catch (SQLException e) {
             plugin.getLogger().severe("保存市场列表失败: " + e.getMessage());
@@ -57,7 +51,7 @@ public class DatabaseStorage {
         }
         
         String selectSQL = """
-            SELECT id, seller_uuid, seller_name, item_base64, price, created_at
+            SELECT id, seller_uuid, seller_name, item_base64, item_data, price, created_at
             FROM market_listings
             ORDER BY created_at DESC
             """;
@@ -66,22 +60,12 @@ public class DatabaseStorage {
              PreparedStatement stmt = conn.prepareStatement(selectSQL);
              ResultSet rs = stmt.executeQuery()) {
             
-            int count = 0;
             while (rs.next()) {
-                UUID id = UUID.fromString(rs.getString("id"));
-                UUID sellerUUID = UUID.fromString(rs.getString("seller_uuid"));
-                ItemStack item = itemStackFromBase64(rs.getString("item_base64"));
-                double price = rs.getBigDecimal("price").doubleValue();
-                long createdAt = rs.getTimestamp("created_at").getTime();
-                
-                MarketListing listing = new MarketListing(id, sellerUUID, item, price, createdAt);
-                listings.put(id, listing);
-                count++;
+                MarketListing listing = readListing(rs);
+                listings.put(listing.getListingId(), listing);
             }
             
-            // 静默加载物品数据
-            
-        } catch (SQLException | IOException e) {
+        } catch (SQLException e) {
             plugin.getLogger().severe("加载市场列表失败: " + e.getMessage());
             e.printStackTrace();
         }
@@ -89,21 +73,76 @@ public class DatabaseStorage {
         return listings;
     }
     
-    // 移除市场列表
-    public void removeListing(UUID listingId) {
-        if (!databaseManager.isDatabaseEnabled()) {
-            return;
+    /**
+     * 只读取所有上架ID，用于与内存数据核对（失败时抛出异常，避免误判为空）
+     */
+    public Set<UUID> queryListingIds() throws SQLException {
+        Set<UUID> ids = new HashSet<>();
+        
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT id FROM market_listings");
+             ResultSet rs = stmt.executeQuery()) {
+            
+            while (rs.next()) {
+                ids.add(UUID.fromString(rs.getString("id")));
+            }
         }
         
-        String deleteSQL = "DELETE FROM market_listings WHERE id = ?";
+        return ids;
+    }
+    
+    /**
+     * 按ID读取单个市场列表，不存在时返回 null
+     */
+    public MarketListing queryListing(UUID listingId) throws SQLException {
+        String selectSQL = """
+            SELECT id, seller_uuid, seller_name, item_base64, item_data, price, created_at
+            FROM market_listings
+            WHERE id = ?
+            """;
         
         try (Connection conn = databaseManager.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(deleteSQL)) {
+             PreparedStatement stmt = conn.prepareStatement(selectSQL)) {
             
             stmt.setString(1, listingId.toString());
-            int affectedRows = stmt.executeUpdate();
-            
-            // 静默删除物品数据
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? readListing(rs) : null;
+            }
+        }
+    }
+    
+    private MarketListing readListing(ResultSet rs) throws SQLException {
+        UUID id = UUID.fromString(rs.getString("id"));
+        UUID sellerUUID = UUID.fromString(rs.getString("seller_uuid"));
+        // 直接保留编码后的字节，使用时再解码
+        byte[] itemData = DatabaseManager.readItemData(rs);
+        double price = rs.getBigDecimal("price").doubleValue();
+        long createdAt = rs.getTimestamp("created_at").getTime();
+        
+        // 上架时保存的卖家名称用于填充名称索引
+        String sellerName = rs.getString("seller_name");
+        if (!UNKNOWN_SELLER.equals(sellerName)) {
+            plugin.getPlayerNameCache().remember(sellerUUID, sellerName);
+        }
+        
+        return new MarketListing(id, sellerUUID, itemData, price, createdAt);
+    }
+    
+    // 移除市场列表
+    public void removeListing(UUID listingId) {
+        if (!databaseManager.isDatabaseEnabled()) {
+            return;
+        }
+        
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                deleteListings(conn, Collections.singletonList(listingId));
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
             
         } catch (SQLException e) {
             plugin.getLogger().severe("移除市场列表失败: " + e.getMessage());
@@ -111,32 +150,394 @@ public class DatabaseStorage {
         }
     }
     
+    /**
+     * 在调用方的事务中批量插入上架，并记录变更
+     */
+    public void insertListings(Connection conn, List<MarketListing> listings) throws SQLException {
+        String insertSQL = """
+            INSERT INTO market_listings (id, seller_uuid, seller_name, item_base64, item_data, price, amount, created_at)
+            VALUES (?, ?, ?, '', ?, ?, ?, ?)
+            """;
+        
+        List<UUID> ids = new ArrayList<>(listings.size());
+        try (PreparedStatement stmt = conn.prepareStatement(insertSQL)) {
+            for (MarketListing listing : listings) {
+                stmt.setString(1, listing.getListingId().toString());
+                stmt.setString(2, listing.getSellerId().toString());
+                String sellerName = plugin.getPlayerNameCache().getName(listing.getSellerId());
+                stmt.setString(3, sellerName != null ? sellerName : UNKNOWN_SELLER);
+                stmt.setBytes(4, listing.getItemData());
+                stmt.setBigDecimal(5, new java.math.BigDecimal(listing.getPrice()));
+                stmt.setInt(6, listing.getAmount());
+                stmt.setTimestamp(7, new Timestamp(listing.getCreatedAt()));
+                stmt.addBatch();
+                ids.add(listing.getListingId());
+            }
+            stmt.executeBatch();
+        }
+        recordChanges(conn, ids, ListingChangeFeed.OP_CREATE);
+    }
+    
+    /**
+     * 在调用方的事务中删除上架，只为真正删除的行记录变更，返回实际删除的上架ID
+     * 购买和过期都以删除行数认领上架，因此逐条执行而不用批量：
+     * 批量执行时驱动可能只返回 SUCCESS_NO_INFO（如 MySQL 的 rewriteBatchedStatements），无法判断是否认领成功
+     */
+    public List<UUID> deleteListings(Connection conn, List<UUID> listingIds) throws SQLException {
+        String deleteSQL = "DELETE FROM market_listings WHERE id = ?";
+        
+        List<UUID> removed = new ArrayList<>(listingIds.size());
+        try (PreparedStatement stmt = conn.prepareStatement(deleteSQL)) {
+            for (UUID listingId : listingIds) {
+                stmt.setString(1, listingId.toString());
+                if (stmt.executeUpdate() > 0) {
+                    removed.add(listingId);
+                }
+            }
+        }
+        recordChanges(conn, removed, ListingChangeFeed.OP_REMOVE);
+        return removed;
+    }
+    
+    /**
+     * 在同一事务中写入变更日志，供其他服务器增量同步
+     */
+    private void recordChanges(Connection conn, List<UUID> listingIds, String op) throws SQLException {
+        if (listingIds.isEmpty()) {
+            return;
+        }
+        
+        String insertSQL = "INSERT INTO market_changes (listing_id, op, node_id, created_at) VALUES (?, ?, ?, ?)";
+        long now = System.currentTimeMillis();
+        try (PreparedStatement stmt = conn.prepareStatement(insertSQL)) {
+            for (UUID listingId : listingIds) {
+                stmt.setString(1, listingId.toString());
+                stmt.setString(2, op);
+                stmt.setString(3, databaseManager.getNodeId());
+                stmt.setLong(4, now);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+    
+    /**
+     * 在一个事务中移除一批过期上架，并为实际删除的上架写入 returns 中对应的退回邮件（按上架ID），
+     * 返回实际删除的ID；未删除的说明已被其他服务器售出或下架
+     */
+    public List<UUID> expireListings(List<MarketListing> listings, Map<UUID, Mailbox.MailboxItem> returns) throws SQLException {
+        List<UUID> listingIds = new ArrayList<>(listings.size());
+        for (MarketListing listing : listings) {
+            listingIds.add(listing.getListingId());
+        }
+        
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                List<UUID> removed = deleteListings(conn, listingIds);
+                Set<UUID> removedIds = new HashSet<>(removed);
+                for (MarketListing listing : listings) {
+                    if (removedIds.contains(listing.getListingId())) {
+                        DatabaseMailboxStorage.insertItem(conn, listing.getSellerId(), returns.get(listing.getListingId()));
+                    }
+                }
+                conn.commit();
+                return removed;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * 在一个事务中下架：删除上架行（按删除行数判断是否抢到）并把物品写入卖家邮箱
+     * 返回 false 表示该上架已被其他服务器售出或下架，事务已回滚；returned 为 null 时只删除上架
+     */
+    public boolean commitRemoval(MarketListing listing, Mailbox.MailboxItem returned) throws SQLException {
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                if (deleteListings(conn, Collections.singletonList(listing.getListingId())).isEmpty()) {
+                    conn.rollback();
+                    return false;
+                }
+                if (returned != null) {
+                    DatabaseMailboxStorage.insertItem(conn, listing.getSellerId(), returned);
+                }
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * 在一个事务中完成购买：删除上架行（按删除行数判断是否抢到）、写入双方邮箱和交易记录
+     * 返回 false 表示该上架已被其他服务器售出或下架，事务已回滚；sellerDelivery 可以为 null
+     */
+    public boolean commitPurchase(MarketListing listing, UUID buyerUUID, String buyerName,
+                                  Mailbox.MailboxItem sellerDelivery, Mailbox.MailboxItem buyerDelivery) throws SQLException {
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                if (deleteListings(conn, Collections.singletonList(listing.getListingId())).isEmpty()) {
+                    conn.rollback();
+                    return false;
+                }
+                if (sellerDelivery != null) {
+                    DatabaseMailboxStorage.insertItem(conn, listing.getSellerId(), sellerDelivery);
+                }
+                DatabaseMailboxStorage.insertItem(conn, buyerUUID, buyerDelivery);
+                insertTransaction(conn, listing.getListingId(), listing.getSellerId(), buyerUUID, buyerName,
+                    listing.getItemData(), listing.getPrice());
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * 在一个事务中提交批量购买：删除整个买下的上架、更新部分买下的上架，只为实际成功的部分写入邮箱和交易记录，
+     * 已被其他服务器售出的上架从 purchase 中剔除；一个都没有删除时返回 false
+     */
+    public boolean commitBulkPurchase(BulkPurchase purchase) throws SQLException {
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Set<UUID> claimed = new HashSet<>(deleteListings(conn, purchase.getRemovedListingIds()));
+                for (BulkPurchase.Fill fill : purchase.getFills()) {
+                    if (fill.getRemainder() != null && updateListingAmount(conn, fill.getListing(), fill.getRemainder())) {
+                        claimed.add(fill.getListing().getListingId());
+                    }
+                }
+                purchase.retain(claimed);
+                if (purchase.isEmpty()) {
+                    conn.rollback();
+                    return false;
+                }
+                
+                for (Map.Entry<UUID, Mailbox.MailboxItem> entry : purchase.getSellerDeliveries().entrySet()) {
+                    DatabaseMailboxStorage.insertItem(conn, entry.getKey(), entry.getValue());
+                }
+                for (BulkPurchase.Fill fill : purchase.getFills()) {
+                    MarketListing listing = fill.getListing();
+                    DatabaseMailboxStorage.insertItem(conn, purchase.getBuyerId(), fill.getBuyerDelivery());
+                    byte[] itemData = fill.getRemainder() != null
+                        ? ItemCodec.encode(fill.getBuyerDelivery().getItem())
+                        : listing.getItemData();
+                    insertTransaction(conn, listing.getListingId(), listing.getSellerId(), purchase.getBuyerId(),
+                        purchase.getBuyerName(), itemData, fill.getPrice());
+                }
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * 部分售出后原地更新上架的数量和价格；数量已被其他服务器改变或上架已不存在时返回 false
+     */
+    private boolean updateListingAmount(Connection conn, MarketListing listing, MarketListing remainder) throws SQLException {
+        String updateSQL = """
+            UPDATE market_listings SET item_data = ?, price = ?, amount = ?
+            WHERE id = ? AND amount = ?
+            """;
+        
+        try (PreparedStatement stmt = conn.prepareStatement(updateSQL)) {
+            stmt.setBytes(1, remainder.getItemData());
+            stmt.setBigDecimal(2, new java.math.BigDecimal(remainder.getPrice()));
+            stmt.setInt(3, remainder.getAmount());
+            stmt.setString(4, listing.getListingId().toString());
+            stmt.setInt(5, listing.getAmount());
+            if (stmt.executeUpdate() == 0) {
+                return false;
+            }
+        }
+        recordChanges(conn, Collections.singletonList(listing.getListingId()), ListingChangeFeed.OP_UPDATE);
+        return true;
+    }
+    
     // 记录交易
     public void recordTransaction(UUID listingId, UUID sellerUUID, UUID buyerUUID, String buyerName, ItemStack item, double price) {
         if (!databaseManager.isDatabaseEnabled()) {
             return;
         }
         
+        try (Connection conn = databaseManager.getConnection()) {
+            insertTransaction(conn, listingId, sellerUUID, buyerUUID, buyerName, ItemCodec.encode(item), price);
+        } catch (SQLException e) {
+            plugin.getLogger().severe("记录交易失败: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    private void insertTransaction(Connection conn, UUID listingId, UUID sellerUUID, UUID buyerUUID, String buyerName,
+                                   byte[] itemData, double price) throws SQLException {
         String insertSQL = """
-            INSERT INTO market_transactions (listing_id, seller_uuid, buyer_uuid, buyer_name, item_base64, price)
-            VALUES (?, ?, ?, ?, ?, ?)
+            INSERT INTO market_transactions (listing_id, seller_uuid, buyer_uuid, buyer_name, item_base64, item_data, price)
+            VALUES (?, ?, ?, ?, '', ?, ?)
             """;
         
-        try (Connection conn = databaseManager.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(insertSQL)) {
-            
+        try (PreparedStatement stmt = conn.prepareStatement(insertSQL)) {
             stmt.setString(1, listingId.toString());
             stmt.setString(2, sellerUUID.toString());
             stmt.setString(3, buyerUUID.toString());
             stmt.setString(4, buyerName);
-            stmt.setString(5, itemStackToBase64(item));
+            stmt.setBytes(5, itemData);
             stmt.setBigDecimal(6, new java.math.BigDecimal(price));
-            
             stmt.executeUpdate();
-            
-        } catch (SQLException e) {
-            plugin.getLogger().severe("记录交易失败: " + e.getMessage());
-            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * 加载所有未成交的求购单
+     */
+    public List<BuyOrder> loadBuyOrders() throws SQLException {
+        String selectSQL = """
+            SELECT id, buyer_uuid, buyer_name, material, max_unit_price, quantity, created_at
+            FROM market_buy_orders
+            """;
+        
+        List<BuyOrder> orders = new ArrayList<>();
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(selectSQL);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                Material material = Material.matchMaterial(rs.getString("material"));
+                if (material == null) {
+                    plugin.getLogger().warning("求购单物品类型无效: " + rs.getString("id"));
+                    continue;
+                }
+                orders.add(new BuyOrder(
+                    UUID.fromString(rs.getString("id")),
+                    UUID.fromString(rs.getString("buyer_uuid")),
+                    rs.getString("buyer_name"),
+                    material,
+                    rs.getDouble("max_unit_price"),
+                    rs.getInt("quantity"),
+                    rs.getLong("created_at")
+                ));
+            }
+        }
+        return orders;
+    }
+    
+    public void insertBuyOrder(BuyOrder order) throws SQLException {
+        String insertSQL = """
+            INSERT INTO market_buy_orders (id, buyer_uuid, buyer_name, material, max_unit_price, quantity, created_at)
+            VALUES (?, ?, ?, ?, ?, ?, ?)
+            """;
+        
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(insertSQL)) {
+            stmt.setString(1, order.getOrderId().toString());
+            stmt.setString(2, order.getBuyerId().toString());
+            stmt.setString(3, order.getBuyerName());
+            stmt.setString(4, order.getMaterial().name());
+            stmt.setBigDecimal(5, DatabaseManager.toUnitPrice(order.getMaxUnitPrice()));
+            stmt.setInt(6, order.getQuantity());
+            stmt.setLong(7, order.getCreatedAt());
+            stmt.executeUpdate();
+        }
+    }
+    
+    /**
+     * 撤销求购单，返回撤销时数据库中尚未成交的数量；已被成交完或撤销时返回 0
+     */
+    public int cancelBuyOrder(UUID orderId) throws SQLException {
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                int quantity = 0;
+                try (PreparedStatement stmt = conn.prepareStatement("SELECT quantity FROM market_buy_orders WHERE id = ?")) {
+                    stmt.setString(1, orderId.toString());
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next()) {
+                            quantity = rs.getInt(1);
+                        }
+                    }
+                }
+                // 读取之后被其他服务器成交时删除不到，按没有撤销处理
+                if (quantity > 0 && !deleteBuyOrder(conn, orderId, quantity)) {
+                    quantity = 0;
+                }
+                conn.commit();
+                return quantity;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * 在一个事务中提交撮合结果：按数量条件更新或删除求购单（数量已变化说明被其他服务器成交或撤销），
+     * 写入剩余上架、双方邮件和交易记录，没有成交的物品退回卖家邮箱
+     */
+    public void commitBuyOrderMatch(BuyOrderMatch match) throws SQLException {
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Set<UUID> claimed = new HashSet<>();
+                for (BuyOrderMatch.Fill fill : match.getFills()) {
+                    BuyOrder order = fill.getOrder();
+                    boolean updated = fill.getAfter() != null
+                        ? updateBuyOrderQuantity(conn, order, fill.getAfter().getQuantity())
+                        : deleteBuyOrder(conn, order.getOrderId(), order.getQuantity());
+                    if (updated) {
+                        claimed.add(order.getOrderId());
+                    }
+                }
+                match.retain(claimed);
+                
+                MarketListing listing = match.getListing();
+                if (match.getRemainder() != null) {
+                    insertListings(conn, Collections.singletonList(match.getRemainder()));
+                }
+                Mailbox.MailboxItem sellerDelivery = match.getSellerDelivery();
+                if (sellerDelivery != null) {
+                    DatabaseMailboxStorage.insertItem(conn, listing.getSellerId(), sellerDelivery);
+                }
+                for (Mailbox.MailboxItem returned : match.getReturnedItems()) {
+                    DatabaseMailboxStorage.insertItem(conn, listing.getSellerId(), returned);
+                }
+                for (BuyOrderMatch.Fill fill : match.getFills()) {
+                    BuyOrder order = fill.getOrder();
+                    DatabaseMailboxStorage.insertItem(conn, order.getBuyerId(), fill.getBuyerDelivery());
+                    insertTransaction(conn, listing.getListingId(), listing.getSellerId(), order.getBuyerId(),
+                        order.getBuyerName(), ItemCodec.encode(fill.getBuyerDelivery().getItem()), fill.getPrice());
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    private boolean updateBuyOrderQuantity(Connection conn, BuyOrder order, int quantity) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("UPDATE market_buy_orders SET quantity = ? WHERE id = ? AND quantity = ?")) {
+            stmt.setInt(1, quantity);
+            stmt.setString(2, order.getOrderId().toString());
+            stmt.setInt(3, order.getQuantity());
+            return stmt.executeUpdate() > 0;
+        }
+    }
+    
+    private boolean deleteBuyOrder(Connection conn, UUID orderId, int quantity) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM market_buy_orders WHERE id = ? AND quantity = ?")) {
+            stmt.setString(1, orderId.toString());
+            stmt.setInt(2, quantity);
+            return stmt.executeUpdate() > 0;
         }
     }
     
@@ -149,7 +550,7 @@ public class DatabaseStorage {
         String countSQL = """
             SELECT COUNT(*) as count
             FROM market_listings
-            WHERE seller_uuid = ? AND (expires_at IS NULL OR expires_at > NOW())
+            WHERE seller_uuid = ?
             """;
         
         try (Connection conn = databaseManager.getConnection();
@@ -169,30 +570,4 @@ public class DatabaseStorage {
         
         return 0;
     }
-    
-    // 工具方法：ItemStack转Base64
-    private String itemStackToBase64(ItemStack item) throws IllegalStateException {
-        try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            BukkitObjectOutputStream dataOutput = new BukkitObjectOutputStream(outputStream);
-            dataOutput.writeObject(item);
-            dataOutput.close();
-            return Base64Coder.encodeLines(outputStream.toByteArray());
-        } catch (Exception e) {
-            throw new IllegalStateException("无法将物品转换为Base64", e);
-        }
-    }
-    
-    // 工具方法：Base64转ItemStack
-    private ItemStack itemStackFromBase64(String data) throws IOException {
-        try {
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(Base64Coder.decodeLines(data));
-            BukkitObjectInputStream dataInput = new BukkitObjectInputStream(inputStream);
-            ItemStack item = (ItemStack) dataInput.readObject();
-            dataInput.close();
-            return item;
-        } catch (ClassNotFoundException e) {
-            throw new IOException("无法解析Base64物品数据", e);
-        }
-    }
 }
\ No newline at end of file
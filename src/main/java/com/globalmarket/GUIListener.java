@@ -2,7 +2,6 @@ package com.globalmarket;
 
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
@@ -11,7 +10,6 @@ import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryCloseEvent;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.inventory.meta.ItemMeta;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -56,6 +54,12 @@ public class GUIListener implements Listener {
         }
     }
     
+    @EventHandler
+    public void onInventoryClose(InventoryCloseEvent event) {
+        // 关闭市场界面后不再刷新
+        guiManager.getViewRegistry().inventoryClosed(event.getPlayer().getUniqueId(), event.getInventory());
+    }
+    
     private void handleMarketGUIClick(InventoryClickEvent event, Player player) {
         event.setCancelled(true);
         
@@ -71,10 +75,11 @@ public class GUIListener implements Listener {
             GUIManager.SortType nextSort = currentSort.next();
             guiManager.setPlayerSortType(player, nextSort);
             
-            // 重新打开GUI应用新排序
-            int currentPage = extractPageNumber(title);
-            player.closeInventory();
-            guiManager.openMarketGUI(player, 0); // 回到第一页
+            // 在当前界面中应用新排序，回到第一页
+            if (!guiManager.showPage(player, 0)) {
+                player.closeInventory();
+                guiManager.openMarketGUI(player, 0);
+            }
             return;
         }
         
@@ -82,14 +87,16 @@ public class GUIListener implements Listener {
         if (clickedItem.getType() == Material.ARROW) {
             if (clickedItem.getItemMeta() != null && clickedItem.getItemMeta().getDisplayName().equals("§e上一页")) {
                 int currentPage = extractPageNumber(title);
-                if (currentPage > 0) {
+                if (currentPage > 0 && !guiManager.showPage(player, currentPage - 1)) {
                     player.closeInventory();
                     guiManager.openMarketGUI(player, currentPage - 1);
                 }
             } else if (clickedItem.getItemMeta() != null && clickedItem.getItemMeta().getDisplayName().equals("§e下一页")) {
                 int currentPage = extractPageNumber(title);
-                player.closeInventory();
-                guiManager.openMarketGUI(player, currentPage + 1);
+                if (!guiManager.showPage(player, currentPage + 1)) {
+                    player.closeInventory();
+                    guiManager.openMarketGUI(player, currentPage + 1);
+                }
             }
         }
         
@@ -103,47 +110,14 @@ public class GUIListener implements Listener {
         
         // 处理物品购买或下架（使用物品唯一ID）
         if (event.getRawSlot() >= 0 && event.getRawSlot() < 45) {
-            // 从物品的Lore中获取物品ID
-            ItemStack clickedItemStack = event.getCurrentItem();
-            if (clickedItemStack == null || !clickedItemStack.hasItemMeta()) {
-                return;
-            }
-            
-            ItemMeta meta = clickedItemStack.getItemMeta();
-            if (meta == null || !meta.hasLore()) {
-                return;
-            }
-            
-            List<String> lore = meta.getLore();
-            if (lore == null || lore.isEmpty()) {
-                return;
-            }
-            
-            UUID listingId = null;
-            for (String line : lore) {
-                if (line.contains("ID:")) {
-                    try {
-                        String idPrefix = line.substring(line.indexOf("ID:") + 3).trim();
-                        // 精确匹配完整的listingId
-                        for (Map.Entry<UUID, MarketListing> entry : plugin.getMarketManager().getAllListings().entrySet()) {
-                            if (entry.getKey().toString().startsWith(idPrefix)) {
-                                listingId = entry.getKey();
-                                break;
-                            }
-                        }
-                        break;
-                    } catch (Exception e) {
-                        continue;
-                    }
-                }
-            }
-            
+            // 从物品数据中读取完整的上架ID
+            UUID listingId = guiManager.getListingId(event.getCurrentItem());
             if (listingId == null) {
                 return;
             }
             
             // 通过ID获取最新的物品数据
-            MarketListing listing = plugin.getMarketManager().getAllListings().get(listingId);
+            MarketListing listing = plugin.getMarketManager().getListing(listingId);
             if (listing == null) {
                 player.sendMessage(ChatColor.RED + "该物品已不存在!");
                 return;
@@ -153,16 +127,8 @@ public class GUIListener implements Listener {
             if (listing.getSellerId().equals(player.getUniqueId())) {
                 // Shift+左键下架到邮箱
                 if (event.isShiftClick() && event.isLeftClick()) {
-                    // 先尝试下架，如果成功再关闭界面
-                    boolean success = plugin.getMarketManager().removeListingToMailbox(listingId, player);
-                    if (success) {
-                        player.closeInventory();
-                        // 强制立即刷新数据并重新打开GUI
-                        plugin.getMarketManager().getAllListings(); // 触发数据刷新
-                        Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                            guiManager.openMarketGUI(player, 0);
-                        }, 1L); // 延迟1tick确保数据刷新完成
-                    }
+                    // 下架后界面会自动刷新，不需要重新打开
+                    plugin.getMarketManager().removeListingToMailbox(listingId, player);
                     return;
                 } else {
                     // 普通点击提示
@@ -171,6 +137,12 @@ public class GUIListener implements Listener {
                 }
             }
 
+            // Shift+右键只买一个，剩余部分继续上架
+            if (event.isShiftClick() && event.isRightClick()) {
+                processPurchase(player, listingId, 1);
+                return;
+            }
+            
             // 双击检测 - 完全移除确认GUI
             long currentTime = System.currentTimeMillis();
             Long lastTime = lastClickTime.get(player.getUniqueId());
@@ -181,9 +153,8 @@ public class GUIListener implements Listener {
                                    lastListing.equals(listingId);
             
             if (isDoubleClick) {
-                // 双击直接购买
+                // 双击直接购买，界面会自动刷新
                 processPurchase(player, listingId);
-                player.closeInventory();
                 lastClickTime.remove(player.getUniqueId());
                 lastClickedListing.remove(player.getUniqueId());
             } else {
@@ -291,16 +262,18 @@ public class GUIListener implements Listener {
             int currentPage = playerMailboxPage.getOrDefault(player.getUniqueId(), 0);
             int actualIndex = currentPage * 45 + slot;
             
-            boolean success = plugin.getMarketManager().getMailbox().claimMailboxItem(player, actualIndex);
-            if (success) {
-                // 重新打开邮箱显示更新后的内容，保持在当前页
-                player.closeInventory();
-                Mailbox.SortType currentSort = playerMailboxSortType.getOrDefault(player.getUniqueId(), Mailbox.SortType.NEWEST);
-                int page = playerMailboxPage.getOrDefault(player.getUniqueId(), 0);
-                Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                    plugin.getMarketManager().getMailbox().openMailbox(player, currentSort, page);
-                }, 1L);
-            }
+            // 认领在数据库线程完成后回到主线程
+            plugin.getMarketManager().getMailbox().claimMailboxItem(player, actualIndex).thenAccept(success -> {
+                if (success) {
+                    // 重新打开邮箱显示更新后的内容，保持在当前页
+                    player.closeInventory();
+                    Mailbox.SortType currentSort = playerMailboxSortType.getOrDefault(player.getUniqueId(), Mailbox.SortType.NEWEST);
+                    int page = playerMailboxPage.getOrDefault(player.getUniqueId(), 0);
+                    Bukkit.getScheduler().runTaskLater(plugin, () -> {
+                        plugin.getMarketManager().getMailbox().openMailbox(player, currentSort, page);
+                    }, 1L);
+                }
+            });
         }
     }
     
@@ -310,31 +283,34 @@ public class GUIListener implements Listener {
             player.sendMessage(ChatColor.RED + "该物品已不存在");
             return;
         }
+        processPurchase(player, listingId, listing.getAmount());
+    }
+    
+    /**
+     * 购买上架中的 amount 个，不足整个上架时剩余部分继续上架
+     */
+    private void processPurchase(Player player, UUID listingId, int amount) {
+        MarketListing listing = plugin.getMarketManager().getListing(listingId);
+        if (listing == null) {
+            player.sendMessage(ChatColor.RED + "该物品已不存在");
+            return;
+        }
         
         // 检查买家是否有足够金币
-        if (!plugin.getEconomyManager().hasBalance(player, listing.getPrice())) {
+        double price = listing.priceOf(amount);
+        if (!plugin.getEconomyManager().hasBalance(player, price)) {
             player.sendMessage(ChatColor.RED + "你没有足够的金币! 需要: " + 
-                plugin.getEconomyManager().formatCurrency(listing.getPrice()));
+                plugin.getEconomyManager().formatCurrency(price));
             return;
         }
         
         // 处理交易（物品和资金将进入邮箱）
-            boolean success = plugin.getMarketManager().purchaseListing(player, listingId);
-            if (success) {
-                player.sendMessage(ChatColor.GREEN + "购买成功! 物品已发送到您的邮箱");
-                player.sendMessage(ChatColor.YELLOW + "使用 /market mailbox 查看邮箱");
-                
-                // **关键修复：立即刷新GUI显示**
-                player.closeInventory();
-                
-                // **延迟重新打开GUI，给MarketManager时间完成数据同步**
-                Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                    // 重新打开市场主界面
-                    guiManager.openMarketGUI(player, 0);
-                }, 5L); // 延迟5tick（0.25秒）确保数据同步完成
-                
-            } else {
+            // 成功消息由购买完成时发送，数据库模式下要等事务提交后才知道结果
+            boolean success = plugin.getMarketManager().purchaseListing(player, listingId, amount);
+            if (!success) {
                 player.sendMessage(ChatColor.RED + "购买失败!");
+            } else if (plugin.getMarketManager().isDatabaseEnabled()) {
+                player.sendMessage(ChatColor.YELLOW + "正在处理购买...");
             }
     }
     
@@ -353,8 +329,10 @@ public class GUIListener implements Listener {
             GUIManager.SortType nextSort = currentSort.next();
             guiManager.setPlayerSortType(player, nextSort);
             
-            // 重新打开当前搜索GUI应用新排序
-            int currentPage = extractPageNumber(title);
+            // 在当前界面中应用新排序，回到第一页
+            if (guiManager.showPage(player, 0)) {
+                return;
+            }
             player.closeInventory();
             
             // 根据GUI类型重新打开
@@ -368,10 +346,10 @@ public class GUIListener implements Listener {
                 }
             } else if (title.startsWith("§6玩家:")) {
                 String playerName = extractSearchPlayer(title);
-                @SuppressWarnings("deprecation")
-                OfflinePlayer targetPlayer = plugin.getServer().getOfflinePlayer(playerName);
-                if (targetPlayer != null && targetPlayer.hasPlayedBefore()) {
-                    guiManager.openPlayerSearchGUI(player, targetPlayer.getUniqueId(), playerName, 0);
+                // 界面标题中的玩家名称已在打开时解析过，直接从名称索引中读取
+                UUID targetPlayerId = plugin.getPlayerNameCache().getId(playerName);
+                if (targetPlayerId != null) {
+                    guiManager.openPlayerSearchGUI(player, targetPlayerId, playerName, 0);
                 } else {
                     player.sendMessage(ChatColor.RED + "找不到玩家");
                 }
@@ -383,7 +361,7 @@ public class GUIListener implements Listener {
         if (clickedItem.getType() == Material.ARROW) {
             if (clickedItem.getItemMeta() != null && clickedItem.getItemMeta().getDisplayName().equals("§e上一页")) {
                 int currentPage = extractPageNumber(title);
-                if (currentPage > 0) {
+                if (currentPage > 0 && !guiManager.showPage(player, currentPage - 1)) {
                     player.closeInventory();
                     
                     if (title.startsWith("§6搜索:")) {
@@ -396,15 +374,18 @@ public class GUIListener implements Listener {
                         }
                     } else if (title.startsWith("§6玩家:")) {
                         String playerName = extractSearchPlayer(title);
-                        @SuppressWarnings("deprecation")
-                        OfflinePlayer targetPlayer = plugin.getServer().getOfflinePlayer(playerName);
-                        if (targetPlayer != null && targetPlayer.hasPlayedBefore()) {
-                            guiManager.openPlayerSearchGUI(player, targetPlayer.getUniqueId(), playerName, currentPage - 1);
+                        // 界面标题中的玩家名称已在打开时解析过，直接从名称索引中读取
+                        UUID targetPlayerId = plugin.getPlayerNameCache().getId(playerName);
+                        if (targetPlayerId != null) {
+                            guiManager.openPlayerSearchGUI(player, targetPlayerId, playerName, currentPage - 1);
                         }
                     }
                 }
             } else if (clickedItem.getItemMeta() != null && clickedItem.getItemMeta().getDisplayName().equals("§e下一页")) {
                 int currentPage = extractPageNumber(title);
+                if (guiManager.showPage(player, currentPage + 1)) {
+                    return;
+                }
                 player.closeInventory();
                 
                 if (title.startsWith("§6搜索:")) {
@@ -417,10 +398,10 @@ public class GUIListener implements Listener {
                     }
                 } else if (title.startsWith("§6玩家:")) {
                     String playerName = extractSearchPlayer(title);
-                    @SuppressWarnings("deprecation")
-                    OfflinePlayer targetPlayer = plugin.getServer().getOfflinePlayer(playerName);
-                    if (targetPlayer != null && targetPlayer.hasPlayedBefore()) {
-                        guiManager.openPlayerSearchGUI(player, targetPlayer.getUniqueId(), playerName, currentPage + 1);
+                    // 界面标题中的玩家名称已在打开时解析过，直接从名称索引中读取
+                    UUID targetPlayerId = plugin.getPlayerNameCache().getId(playerName);
+                    if (targetPlayerId != null) {
+                        guiManager.openPlayerSearchGUI(player, targetPlayerId, playerName, currentPage + 1);
                     }
                 }
             }
@@ -436,43 +417,14 @@ public class GUIListener implements Listener {
         
         // 处理物品购买或下架（使用物品唯一ID）
         if (event.getRawSlot() >= 0 && event.getRawSlot() < 45) {
-            // 获取当前GUI中显示的物品
-            ItemStack clickedItemStack = event.getCurrentItem();
-            if (clickedItemStack == null || !clickedItemStack.hasItemMeta()) {
-                return;
-            }
-            
-            // 从物品的Lore中获取物品ID
-            List<String> lore = clickedItemStack.getItemMeta().getLore();
-            if (lore == null || lore.isEmpty()) {
-                return;
-            }
-            
-            UUID listingId = null;
-            for (String line : lore) {
-                if (line.contains("ID:")) {
-                    try {
-                        String idPrefix = line.substring(line.indexOf("ID:") + 3).trim();
-                        // 查找所有上架物品，匹配ID前缀
-                        for (Map.Entry<UUID, MarketListing> entry : plugin.getMarketManager().getAllListings().entrySet()) {
-                            if (entry.getKey().toString().startsWith(idPrefix)) {
-                                listingId = entry.getKey();
-                                break;
-                            }
-                        }
-                        break;
-                    } catch (Exception e) {
-                        continue;
-                    }
-                }
-            }
-            
+            // 从物品数据中读取完整的上架ID
+            UUID listingId = guiManager.getListingId(event.getCurrentItem());
             if (listingId == null) {
                 return;
             }
             
             // 通过ID获取最新的物品数据
-            MarketListing listing = plugin.getMarketManager().getAllListings().get(listingId);
+            MarketListing listing = plugin.getMarketManager().getListing(listingId);
             if (listing == null) {
                 player.sendMessage(ChatColor.RED + "该物品已不存在!");
                 return;
@@ -482,33 +434,8 @@ public class GUIListener implements Listener {
             if (listing.getSellerId().equals(player.getUniqueId())) {
                 // Shift+左键下架到邮箱
                 if (event.isShiftClick() && event.isLeftClick()) {
-                    player.closeInventory();
+                    // 下架后界面会自动刷新，不需要重新打开
                     plugin.getMarketManager().removeListingToMailbox(listingId, player);
-                    
-                    // **关键修复：延迟刷新确保数据同步完成**
-                    int currentPage = extractPageNumber(title);
-                    Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                        // **重新打开对应的界面**
-                        if (title.startsWith("§6搜索:")) {
-                            String materialName = extractSearchMaterial(title);
-                            try {
-                                Material targetMaterial = Material.valueOf(materialName.toUpperCase());
-                                guiManager.openItemSearchGUI(player, targetMaterial, currentPage);
-                            } catch (IllegalArgumentException e) {
-                                player.sendMessage(ChatColor.RED + "搜索参数错误");
-                            }
-                        } else if (title.startsWith("§6玩家:")) {
-                            String playerName = extractSearchPlayer(title);
-                            @SuppressWarnings("deprecation")
-                            OfflinePlayer targetPlayer = plugin.getServer().getOfflinePlayer(playerName);
-                            if (targetPlayer != null && targetPlayer.hasPlayedBefore()) {
-                                guiManager.openPlayerSearchGUI(player, targetPlayer.getUniqueId(), playerName, currentPage);
-                            }
-                        } else if (title.startsWith("§6全球市场")) {
-                            // 如果是主市场界面
-                            plugin.getGUIManager().openMarketGUI(player, 0);
-                        }
-                    }, 5L); // **优化延迟时间，确保数据同步完成**
                     return;
                 } else {
                     // 普通点击提示
@@ -517,6 +444,12 @@ public class GUIListener implements Listener {
                 }
             }
 
+            // Shift+右键只买一个，剩余部分继续上架
+            if (event.isShiftClick() && event.isRightClick()) {
+                processPurchase(player, listingId, 1);
+                return;
+            }
+            
             // 双击检测 - 完全移除确认GUI
             long currentTime = System.currentTimeMillis();
             Long lastTime = lastClickTime.get(player.getUniqueId());
@@ -527,9 +460,8 @@ public class GUIListener implements Listener {
                                    lastListing.equals(listingId);
             
             if (isDoubleClick) {
-                // 双击直接购买
+                // 双击直接购买，界面会自动刷新
                 processPurchase(player, listingId);
-                player.closeInventory();
                 lastClickTime.remove(player.getUniqueId());
                 lastClickedListing.remove(player.getUniqueId());
             } else {
@@ -580,7 +512,7 @@ public class GUIListener implements Listener {
             try {
                 Material targetMaterial = Material.valueOf(materialName.toUpperCase());
                 for (MarketListing listing : allListings.values()) {
-                    if (listing.getItem().getType() == targetMaterial) {
+                    if (listing.getMaterial() == targetMaterial) {
                         listings.add(listing);
                     }
                 }
@@ -590,11 +522,11 @@ public class GUIListener implements Listener {
             }
         } else if (title.startsWith("§6玩家:")) {
             String playerName = extractSearchPlayer(title);
-            @SuppressWarnings("deprecation")
-            OfflinePlayer targetPlayer = plugin.getServer().getOfflinePlayer(playerName);
-            if (targetPlayer != null && targetPlayer.hasPlayedBefore()) {
+            // 界面标题中的玩家名称已在打开时解析过，直接从名称索引中读取
+            UUID targetPlayerId = plugin.getPlayerNameCache().getId(playerName);
+            if (targetPlayerId != null) {
                 for (MarketListing listing : allListings.values()) {
-                    if (listing.getSellerId().equals(targetPlayer.getUniqueId())) {
+                    if (listing.getSellerId().equals(targetPlayerId)) {
                         listings.add(listing);
                     }
                 }
@@ -3,16 +3,20 @@ package com.globalmarket;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.persistence.PersistentDataType;
 
 import java.util.*;
 
 public class GUIManager {
     
     private final GlobalMarket plugin;
+    private final NamespacedKey listingIdKey;
+    private final ListingRenderCache renderCache;
     private final String MARKET_GUI_TITLE = ChatColor.GOLD + "全球市场";
     private final String CONFIRM_GUI_TITLE = ChatColor.RED + "确认购买";
     private final String SAFE_GUI_TITLE = ChatColor.GREEN + "安全交易";
@@ -43,8 +47,33 @@ public class GUIManager {
     // 玩家排序状态存储
     private final Map<UUID, SortType> playerSortType = new HashMap<>();
     
+    // 打开中的市场界面
+    private final MarketViewRegistry viewRegistry;
+    
     public GUIManager(GlobalMarket plugin) {
         this.plugin = plugin;
+        this.listingIdKey = new NamespacedKey(plugin, "listing_id");
+        this.renderCache = new ListingRenderCache(plugin, listingIdKey);
+        this.viewRegistry = new MarketViewRegistry(plugin, this);
+        plugin.getMarketManager().setListingChangeListener(viewRegistry);
+        viewRegistry.start();
+    }
+    
+    public MarketViewRegistry getViewRegistry() {
+        return viewRegistry;
+    }
+    
+    public ListingRenderCache getRenderCache() {
+        return renderCache;
+    }
+    
+    /**
+     * 重新读取界面刷新间隔和展示物品缓存设置
+     */
+    public void reload() {
+        renderCache.configure();
+        viewRegistry.close();
+        viewRegistry.start();
     }
     
     public SortType getPlayerSortType(Player player) {
@@ -56,81 +85,9 @@ public class GUIManager {
     }
     
     public void openMarketGUI(Player player, int page) {
-        // 获取玩家当前的排序方式，默认为最新优先
-        SortType currentSort = playerSortType.getOrDefault(player.getUniqueId(), SortType.NEWEST);
-        
-        Inventory gui = Bukkit.createInventory(null, 54, MARKET_GUI_TITLE + " - 第" + (page + 1) + "页");
-        
-        // 强制刷新并获取最新市场数据
-        Map<UUID, MarketListing> allListings = plugin.getMarketManager().getAllListings();
-        List<Map.Entry<UUID, MarketListing>> sortedListings = new ArrayList<>(allListings.entrySet());
-        sortedListings.sort((e1, e2) -> currentSort.getComparator().compare(e1.getValue(), e2.getValue()));
-        
-        // 计算分页
-        int startIndex = page * 45; // 每页45个物品
-        int totalItems = sortedListings.size();
-        
-        // 如果没有任何物品，不显示任何物品，只保留导航按钮
-        if (totalItems == 0) {
-            // 空市场时不显示任何物品，只保留导航按钮
-            // 导航按钮会在下方addNavigationButtons方法中自动添加
-        } else {
-            // 填充当前页的物品
-            for (int i = startIndex; i < Math.min(startIndex + 45, totalItems); i++) {
-                Map.Entry<UUID, MarketListing> entry = sortedListings.get(i);
-                UUID listingId = entry.getKey();
-                MarketListing listing = entry.getValue();
-                ItemStack item = listing.getItem().clone();
-                
-                // 添加物品信息
-                ItemMeta meta = item.getItemMeta();
-                if (meta != null) {
-                    boolean isOwnItem = listing.getSellerId().equals(player.getUniqueId());
-                    
-                    // 保持原始物品名称，让客户端自动翻译
-                    String originalDisplayName = meta.hasDisplayName() ? meta.getDisplayName() : null;
-                    if (originalDisplayName != null && !originalDisplayName.isEmpty()) {
-                        // 如果物品已有自定义名称，保留它
-                        meta.setDisplayName(ChatColor.GOLD + originalDisplayName);
-                    } else {
-                        // 使用物品类型名称，让客户端本地化翻译
-                        // 不设置displayName，保持默认物品名称
-                    }
-                    
-                    List<String> lore = new ArrayList<>(Arrays.asList(
-                        ChatColor.WHITE + "数量: " + item.getAmount(),
-                        ChatColor.GREEN + "价格: $" + listing.getPrice(),
-                        ChatColor.AQUA + "卖家: " + Bukkit.getOfflinePlayer(listing.getSellerId()).getName(),
-                        ChatColor.GRAY + "上架时间: " + formatTime(listing.getCreatedAt())
-                    ));
-                    
-                    if (isOwnItem) {
-                        lore.add("");
-                        lore.add(ChatColor.RED + "这是你上架的物品");
-                        lore.add(ChatColor.YELLOW + "Shift+左键点击下架到邮箱");
-                    } else {
-                        lore.add("");
-                        lore.add(ChatColor.GREEN + "双击购买");
-                    }
-                    
-                    lore.add(ChatColor.GRAY + "ID: " + listingId.toString().substring(0, 8));
-                    
-                    meta.setLore(lore);
-                    item.setItemMeta(meta);
-                }
-                
-                gui.addItem(item);
-            }
-        }
-        
-        // 添加导航和排序按钮
-        addNavigationButtons(gui, page, totalItems, currentSort);
-        
-        player.openInventory(gui);
+        openView(player, null, null, null, page);
     }
     
-
-    
     public void openSellGUI(Player player) {
         Inventory gui = Bukkit.createInventory(null, 27, ChatColor.GOLD + "出售物品");
         
@@ -220,179 +177,147 @@ public class GUIManager {
     }
     
     public void openItemSearchGUI(Player player, Material targetMaterial, int page) {
-        Inventory gui = Bukkit.createInventory(null, 54, 
-            ChatColor.GOLD + "搜索: " + targetMaterial.name() + " - 第" + (page + 1) + "页");
-        
-        // 获取玩家当前的排序方式
-        SortType currentSort = playerSortType.getOrDefault(player.getUniqueId(), SortType.NEWEST);
-        
-        // 实时获取最新市场数据
-        Map<UUID, MarketListing> allListings = plugin.getMarketManager().getAllListings();
+        openView(player, targetMaterial, null, null, page);
+    }
+    
+    public void openPlayerSearchGUI(Player player, UUID targetPlayerUUID, String targetPlayerName, int page) {
+        openView(player, null, targetPlayerUUID, targetPlayerName, page);
+    }
+    
+    /**
+     * 打开市场界面并登记，之后上架变化时由 MarketViewRegistry 原地刷新
+     */
+    private void openView(Player player, Material material, UUID sellerId, String sellerName, int page) {
+        Inventory gui = Bukkit.createInventory(null, 54, getViewTitle(material, sellerName, page));
+        MarketViewRegistry.MarketView view = new MarketViewRegistry.MarketView(player.getUniqueId(), gui, material, sellerId, sellerName, page);
+        renderView(player, view, true);
         
-        // 筛选指定物品类型的上架
-        List<Map.Entry<UUID, MarketListing>> filteredListings = new ArrayList<>();
-        for (Map.Entry<UUID, MarketListing> entry : allListings.entrySet()) {
-            if (entry.getValue().getItem().getType() == targetMaterial) {
-                filteredListings.add(entry);
-            }
+        player.openInventory(gui);
+        // 打开新界面时旧界面的关闭事件已先触发，这里登记的是新界面
+        viewRegistry.register(view);
+    }
+    
+    /**
+     * 在当前打开的市场界面中原地翻页，不关闭重开；没有打开市场界面时返回 false
+     */
+    public boolean showPage(Player player, int page) {
+        MarketViewRegistry.MarketView view = viewRegistry.get(player);
+        if (view == null) {
+            return false;
         }
-        
-        // 排序筛选后的结果
-        filteredListings.sort((e1, e2) -> currentSort.getComparator().compare(e1.getValue(), e2.getValue()));
-        
-        int totalItems = filteredListings.size();
-        int startIndex = page * 45; // 每页45个物品
-        
-        if (filteredListings.isEmpty()) {
-            // 空搜索结果时不显示任何物品，只保留导航按钮
-            // 导航按钮会在下方addNavigationButtons方法中自动添加
-        } else {
-            // 显示当前页的搜索结果
-            for (int i = startIndex; i < Math.min(startIndex + 45, totalItems); i++) {
-                Map.Entry<UUID, MarketListing> entry = filteredListings.get(i);
-                UUID listingId = entry.getKey();
-                MarketListing listing = entry.getValue();
-                ItemStack item = listing.getItem().clone();
-                
-                // 添加物品信息
-                ItemMeta meta = item.getItemMeta();
-                if (meta != null) {
-                    boolean isOwnItem = listing.getSellerId().equals(player.getUniqueId());
-                    
-                    // 保持原始物品名称，让客户端自动翻译
-                    String originalDisplayName = meta.hasDisplayName() ? meta.getDisplayName() : null;
-                    if (originalDisplayName != null && !originalDisplayName.isEmpty()) {
-                        // 如果物品已有自定义名称，保留它
-                        meta.setDisplayName(ChatColor.GOLD + originalDisplayName);
-                    } else {
-                        // 使用物品类型名称，让客户端本地化翻译
-                        // 不设置displayName，保持默认物品名称
-                    }
-                    
-                    List<String> lore = new ArrayList<>(Arrays.asList(
-                        ChatColor.WHITE + "数量: " + item.getAmount(),
-                        ChatColor.GREEN + "价格: $" + listing.getPrice(),
-                        ChatColor.AQUA + "卖家: " + Bukkit.getOfflinePlayer(listing.getSellerId()).getName(),
-                        ChatColor.GRAY + "上架时间: " + formatTime(listing.getCreatedAt())
-                    ));
-                    
-                    if (isOwnItem) {
-                        lore.add("");
-                        lore.add(ChatColor.RED + "这是你上架的物品");
-                        lore.add(ChatColor.YELLOW + "Shift+左键点击下架到邮箱");
-                    } else {
-                        lore.add("");
-                        lore.add(ChatColor.GREEN + "双击购买");
-                    }
-                    
-                    lore.add(ChatColor.GRAY + "ID: " + listingId.toString().substring(0, 8));
-                    
-                    meta.setLore(lore);
-                    item.setItemMeta(meta);
-                }
-                
-                gui.setItem(i - startIndex, item);
-            }
+        view.setPage(page);
+        player.getOpenInventory().setTitle(getViewTitle(view.getMaterial(), view.getSellerName(), page));
+        renderView(player, view, true);
+        return true;
+    }
+    
+    private String getViewTitle(Material material, String sellerName, int page) {
+        if (material != null) {
+            return ChatColor.GOLD + "搜索: " + material.name() + " - 第" + (page + 1) + "页";
         }
-        
-        // 添加导航和排序按钮
-        addNavigationButtons(gui, page, totalItems, currentSort);
-        
-        player.openInventory(gui);
+        if (sellerName != null) {
+            return ChatColor.GOLD + "玩家: " + sellerName + " 的上架物品 - 第" + (page + 1) + "页";
+        }
+        return MARKET_GUI_TITLE + " - 第" + (page + 1) + "页";
     }
     
-    public void openPlayerSearchGUI(Player player, UUID targetPlayerUUID, String targetPlayerName, int page) {
-        Inventory gui = Bukkit.createInventory(null, 54, 
-            ChatColor.GOLD + "玩家: " + targetPlayerName + " 的上架物品 - 第" + (page + 1) + "页");
-        
-        // 获取玩家当前的排序方式
-        SortType currentSort = playerSortType.getOrDefault(player.getUniqueId(), SortType.NEWEST);
-        
-        // 实时获取最新市场数据
-        Map<UUID, MarketListing> allListings = plugin.getMarketManager().getAllListings();
-        
-        // 筛选指定玩家的上架
-        List<Map.Entry<UUID, MarketListing>> filteredListings = new ArrayList<>();
-        for (Map.Entry<UUID, MarketListing> entry : allListings.entrySet()) {
-            if (entry.getValue().getSellerId().equals(targetPlayerUUID)) {
-                filteredListings.add(entry);
+    /**
+     * 按界面的筛选条件和页码取出当前页，只重绘显示内容发生变化的格子；
+     * redrawAll 为 true 时全部重绘（首次打开、翻页、定时更新上架时间）
+     */
+    void renderView(Player player, MarketViewRegistry.MarketView view, boolean redrawAll) {
+        SortType currentSort = getPlayerSortType(player);
+        int pageSize = MarketViewRegistry.PAGE_SIZE;
+        int totalItems = plugin.getMarketManager().getListingCount(view.getMaterial(), view.getSellerId());
+        List<MarketListing> pageListings = plugin.getMarketManager().getListingPage(view.getMaterial(), view.getSellerId(),
+            currentSort, view.getPage() * pageSize, pageSize);
+        
+        Inventory gui = view.getInventory();
+        for (int slot = 0; slot < pageSize; slot++) {
+            MarketListing listing = slot < pageListings.size() ? pageListings.get(slot) : null;
+            // 上架更新时索引中会换成新对象，按引用比较即可发现变化
+            if (!redrawAll && listing == view.getShown(slot)) {
+                continue;
             }
+            gui.setItem(slot, listing != null ? renderCache.render(listing, listing.getSellerId().equals(player.getUniqueId()), view.getSellerName()) : null);
+            view.setShown(slot, listing);
         }
         
-        // 排序筛选后的结果
-        filteredListings.sort((e1, e2) -> currentSort.getComparator().compare(e1.getValue(), e2.getValue()));
-        
-        int totalItems = filteredListings.size();
-        int startIndex = page * 45; // 每页45个物品
-        
-        if (filteredListings.isEmpty()) {
-            // 空玩家搜索结果时不显示任何物品，只保留导航按钮
-            // 导航按钮会在下方addNavigationButtons方法中自动添加
-        } else {
-            // 显示当前页的玩家上架物品
-            for (int i = startIndex; i < Math.min(startIndex + 45, totalItems); i++) {
-                Map.Entry<UUID, MarketListing> entry = filteredListings.get(i);
-                UUID listingId = entry.getKey();
-                MarketListing listing = entry.getValue();
-                ItemStack item = listing.getItem().clone();
-                
-                // 添加物品信息
-                ItemMeta meta = item.getItemMeta();
-                if (meta != null) {
-                    boolean isOwnItem = listing.getSellerId().equals(player.getUniqueId());
-                    
-                    // 保持原始物品名称，让客户端自动翻译
-                    String originalDisplayName = meta.hasDisplayName() ? meta.getDisplayName() : null;
-                    if (originalDisplayName != null && !originalDisplayName.isEmpty()) {
-                        // 如果物品已有自定义名称，保留它
-                        meta.setDisplayName(ChatColor.GOLD + originalDisplayName);
-                    } else {
-                        // 使用物品类型名称，让客户端本地化翻译
-                        // 不设置displayName，保持默认物品名称
-                    }
-                    
-                    List<String> lore = new ArrayList<>(Arrays.asList(
-                        ChatColor.WHITE + "数量: " + item.getAmount(),
-                        ChatColor.GREEN + "价格: $" + listing.getPrice(),
-                        ChatColor.AQUA + "卖家: " + targetPlayerName,
-                        ChatColor.GRAY + "上架时间: " + formatTime(listing.getCreatedAt())
-                    ));
-                    
-                    if (isOwnItem) {
-                        lore.add("");
-                        lore.add(ChatColor.RED + "这是你上架的物品");
-                        lore.add(ChatColor.YELLOW + "Shift+左键点击下架到邮箱");
-                    } else {
-                        lore.add("");
-                        lore.add(ChatColor.GREEN + "双击购买");
-                    }
-                    
-                    lore.add(ChatColor.GRAY + "ID: " + listingId.toString().substring(0, 8));
-                    
-                    meta.setLore(lore);
-                    item.setItemMeta(meta);
-                }
-                
-                gui.setItem(i - startIndex, item);
+        // 总页数或排序变化时才重绘导航按钮
+        int totalPages = (int) Math.ceil(totalItems / (double) pageSize);
+        boolean navigationChanged = redrawAll || totalPages != view.getShownPages() || currentSort != view.getShownSort();
+        if (navigationChanged) {
+            for (int slot = pageSize; slot < 54; slot++) {
+                gui.setItem(slot, null);
             }
+            addNavigationButtons(gui, view.getPage(), totalItems, currentSort);
+            view.setShownNavigation(totalPages, currentSort);
         }
         
-        // 添加导航和排序按钮
-        addNavigationButtons(gui, page, totalItems, currentSort);
-        
-        player.openInventory(gui);
+        // 物品搜索界面显示该物品的卖单簿行情
+        if (view.getMaterial() != null) {
+            List<String> summary = getOrderBookSummary(view.getMaterial());
+            if (navigationChanged || !summary.equals(view.getShownSummary())) {
+                gui.setItem(45, createSummaryItem(summary));
+                view.setShownSummary(summary);
+            }
+        }
     }
     
-    private String formatTime(long timestamp) {
-        long now = System.currentTimeMillis();
-        long diff = now - timestamp;
-        long hours = diff / (1000 * 60 * 60);
-        long minutes = (diff % (1000 * 60 * 60)) / (1000 * 60);
-        
-        if (hours > 0) {
-            return hours + "小时" + minutes + "分钟前";
-        } else {
-            return minutes + "分钟前";
+    private List<String> getOrderBookSummary(Material material) {
+        OrderBook book = plugin.getMarketManager().getOrderBook(material);
+        if (book == null) {
+            return Collections.singletonList(ChatColor.GRAY + "暂无上架");
+        }
+        double bestPrice = book.getBestAskPrice();
+        List<String> summary = new ArrayList<>(Arrays.asList(
+            ChatColor.GREEN + "最低单价: " + plugin.getEconomyManager().formatCurrency(bestPrice),
+            ChatColor.WHITE + "该价位数量: " + book.getDepthAt(bestPrice),
+            ChatColor.WHITE + "在售总数: " + book.getTotalQuantity(),
+            ChatColor.GRAY + "上架数: " + book.size()
+        ));
+        // 最近24小时成交，由24个小时桶合并
+        PriceHistory.Candle day = PriceHistory.merge(
+            plugin.getPriceHistory().getRecentCandles(material, PriceHistory.Resolution.HOUR, 24));
+        if (day != null) {
+            // 成交历史只记录本服的成交，共享数据库时标明范围
+            String scope = plugin.getMarketManager().isDatabaseEnabled() ? "(本服)" : "";
+            summary.add(ChatColor.AQUA + "24小时成交" + scope + ": " + day.getVolume() + " 个");
+            summary.add(ChatColor.AQUA + "24小时均价" + scope + ": " + plugin.getEconomyManager().formatCurrency(day.getVwap()));
+        }
+        return summary;
+    }
+    
+    private ItemStack createSummaryItem(List<String> summary) {
+        ItemStack item = new ItemStack(Material.PAPER);
+        ItemMeta meta = item.getItemMeta();
+        if (meta != null) {
+            meta.setDisplayName(ChatColor.GOLD + "市场行情");
+            meta.setLore(summary);
+            item.setItemMeta(meta);
+        }
+        return item;
+    }
+    
+    /**
+     * 读取市场界面中展示物品对应的上架ID，不是上架物品时返回 null
+     */
+    public UUID getListingId(ItemStack item) {
+        if (item == null || !item.hasItemMeta()) {
+            return null;
+        }
+        ItemMeta meta = item.getItemMeta();
+        if (meta == null) {
+            return null;
+        }
+        String listingId = meta.getPersistentDataContainer().get(listingIdKey, PersistentDataType.STRING);
+        if (listingId == null) {
+            return null;
+        }
+        try {
+            return UUID.fromString(listingId);
+        } catch (IllegalArgumentException e) {
+            return null;
         }
     }
     
@@ -401,5 +326,6 @@ public class GUIManager {
      */
     public void cleanupPlayer(UUID playerUUID) {
         playerSortType.remove(playerUUID);
+        viewRegistry.unregister(playerUUID);
     }
 }
\ No newline at end of file
@@ -17,6 +17,10 @@ public class GlobalMarket extends JavaPlugin {
     private static GlobalMarket instance;
     private Logger logger;
     private EconomyManager economyManager;
+    private MaintenanceScheduler maintenanceScheduler;
+    private PlayerNameCache playerNameCache;
+    private PriceHistory priceHistory;
+    private MarketStatistics marketStatistics;
     private MarketManager marketManager;
     private GUIManager guiManager;
     private EnhancedRollbackManager enhancedRollbackManager;
@@ -33,8 +37,25 @@ public class GlobalMarket extends JavaPlugin {
         economyManager = new EconomyManager(this);
         economyManager.setupEconomy();
         
+        // 初始化物品缓存
+        com.globalmarket.util.ItemStackCache.configure(getConfig().getLong("item-cache.max-size-mb", 16));
+        
+        // 初始化维护任务调度器（市场和邮箱的定期任务都注册在这里）
+        maintenanceScheduler = new MaintenanceScheduler(this);
+        
+        // 初始化玩家名称索引（加载上架时会记录卖家名称）
+        playerNameCache = new PlayerNameCache(this);
+        
+        // 初始化成交价格历史（成交时记录）
+        priceHistory = new PriceHistory(this);
+        
+        // 初始化市场统计（随上架索引和成交增量更新，24小时成交量从价格历史恢复）
+        marketStatistics = new MarketStatistics();
+        marketStatistics.seed(priceHistory);
+        
         // 初始化市场管理器
         marketManager = new MarketManager(this);
+        maintenanceScheduler.start();
         
         // 初始化GUI管理器（标准模式）
         guiManager = new GUIManager(this);
@@ -71,6 +92,15 @@ public class GlobalMarket extends JavaPlugin {
         if (marketManager != null) {
             marketManager.close();
         }
+        if (playerNameCache != null) {
+            playerNameCache.close();
+        }
+        if (priceHistory != null) {
+            priceHistory.close();
+        }
+        if (maintenanceScheduler != null) {
+            maintenanceScheduler.close();
+        }
 
     }
     
@@ -82,6 +112,22 @@ public class GlobalMarket extends JavaPlugin {
         return economyManager;
     }
     
+    public MaintenanceScheduler getMaintenanceScheduler() {
+        return maintenanceScheduler;
+    }
+    
+    public PlayerNameCache getPlayerNameCache() {
+        return playerNameCache;
+    }
+    
+    public PriceHistory getPriceHistory() {
+        return priceHistory;
+    }
+    
+    public MarketStatistics getMarketStatistics() {
+        return marketStatistics;
+    }
+    
     public MarketManager getMarketManager() {
         return marketManager;
     }
@@ -100,9 +146,16 @@ public class GlobalMarket extends JavaPlugin {
     
     public void reloadPlugin() {
         reloadConfig();
+        com.globalmarket.util.ItemStackCache.configure(getConfig().getLong("item-cache.max-size-mb", 16));
+        if (maintenanceScheduler != null) {
+            maintenanceScheduler.configure();
+        }
         if (marketManager != null) {
             marketManager.reload();
         }
+        if (guiManager != null) {
+            guiManager.reload();
+        }
         if (economyManager != null) {
             economyManager.setupEconomy();
         }
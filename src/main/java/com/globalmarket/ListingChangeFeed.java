@@ -0,0 +1,197 @@
+package com.globalmarket;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多服务器共享数据库时的增量同步
+ * 每次上架/下架都会在 market_changes 中追加一行，各服务器记住自己读到的序号，
+ * 定期只拉取新增的变更应用到本地列表，同步开销与变更数量成正比。
+ * 自增序号可能乱序提交，游标只推进到连续处理过的位置，较早的序号晚提交时仍能读到
+ */
+public class ListingChangeFeed {
+    
+    public static final String OP_CREATE = "CREATE";
+    public static final String OP_REMOVE = "REMOVE";
+    public static final String OP_UPDATE = "UPDATE";
+    
+    private static final int BATCH_SIZE = 500;
+    
+    private final GlobalMarket plugin;
+    private final DatabaseManager databaseManager;
+    private final DatabaseStorage databaseStorage;
+    private final long retentionMillis;
+    private final long gapTimeoutMillis;
+    // 游标之后已处理过的序号，只在拉取线程中访问（同一时间只有一次拉取）
+    private final TreeSet<Long> processed = new TreeSet<>();
+    private long gapSince;
+    
+    private BukkitTask pollTask;
+    private long cursor;
+    private long lastPruneTime;
+    private boolean polling;
+    
+    public ListingChangeFeed(GlobalMarket plugin, DatabaseManager databaseManager, DatabaseStorage databaseStorage) {
+        this.plugin = plugin;
+        this.databaseManager = databaseManager;
+        this.databaseStorage = databaseStorage;
+        this.retentionMillis = TimeUnit.HOURS.toMillis(Math.max(1, plugin.getConfig().getLong("database.change-retention-hours", 24)));
+        this.gapTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(1, plugin.getConfig().getLong("database.change-gap-timeout", 30)));
+    }
+    
+    /**
+     * 记录当前最新的变更序号，必须在全量加载列表之前调用，保证不漏掉加载期间的变更
+     */
+    public void markPosition() {
+        try (Connection conn = databaseManager.getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(seq) FROM market_changes")) {
+            cursor = rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            plugin.getLogger().warning("读取市场变更序号失败: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 启动定期拉取任务
+     */
+    public void start(MarketManager marketManager) {
+        long interval = plugin.getConfig().getLong("database.sync-interval-ticks", 40);
+        if (interval <= 0) {
+            return;
+        }
+        pollTask = Bukkit.getScheduler().runTaskTimer(plugin, () -> poll(marketManager), interval, interval);
+    }
+    
+    public void close() {
+        if (pollTask != null) {
+            pollTask.cancel();
+            pollTask = null;
+        }
+    }
+    
+    /**
+     * 后台线程读取新变更并加载新上架的数据，结果回到主线程按顺序应用
+     */
+    private void poll(MarketManager marketManager) {
+        if (polling) {
+            return;
+        }
+        polling = true;
+        long from = cursor;
+        
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            List<Change> changes = new ArrayList<>();
+            long last = from;
+            try {
+                last = readChanges(from, changes);
+                pruneIfNeeded();
+            } catch (SQLException e) {
+                plugin.getLogger().warning("拉取市场变更失败: " + e.getMessage());
+            }
+            
+            long next = last;
+            if (plugin.isEnabled()) {
+                Bukkit.getScheduler().runTask(plugin, () -> {
+                    polling = false;
+                    cursor = next;
+                    for (Change change : changes) {
+                        marketManager.applyRemoteChange(change.listingId, change.listing);
+                    }
+                });
+            }
+        });
+    }
+    
+    private long readChanges(long from, List<Change> changes) throws SQLException {
+        String selectSQL = "SELECT seq, listing_id, op, node_id FROM market_changes WHERE seq > ? ORDER BY seq";
+        
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(selectSQL)) {
+            
+            stmt.setLong(1, from);
+            stmt.setMaxRows(BATCH_SIZE);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    long seq = rs.getLong("seq");
+                    // 游标停在空洞前时会重新读到已处理过的变更
+                    if (processed.contains(seq)) {
+                        continue;
+                    }
+                    String op = rs.getString("op");
+                    // 本服务器的上架和修改已在内存中生效；删除仍然应用，
+                    // 防止其他服务器的修改先被读到、把本服已删除的上架重新加回内存
+                    if (!databaseManager.getNodeId().equals(rs.getString("node_id")) || OP_REMOVE.equals(op)) {
+                        UUID listingId = UUID.fromString(rs.getString("listing_id"));
+                        // 新上架或部分售出读取当前行，期间已被删除则为 null，按删除处理
+                        MarketListing listing = !OP_REMOVE.equals(op)
+                            ? databaseStorage.queryListing(listingId)
+                            : null;
+                        changes.add(new Change(listingId, listing));
+                    }
+                    processed.add(seq);
+                }
+            }
+        }
+        
+        return advance(from);
+    }
+    
+    /**
+     * 游标推进到连续处理过的最大序号。遇到空洞时先等待较早的事务提交，
+     * 超过 change-gap-timeout 仍未出现则视为回滚或序号步长造成的永久空洞，跳过
+     */
+    private long advance(long from) {
+        long next = from;
+        while (!processed.isEmpty()) {
+            long first = processed.first();
+            if (first > next + 1) {
+                long now = System.currentTimeMillis();
+                if (gapSince == 0) {
+                    gapSince = now;
+                }
+                if (now - gapSince < gapTimeoutMillis) {
+                    break;
+                }
+            }
+            processed.pollFirst();
+            next = first;
+            gapSince = 0;
+        }
+        return next;
+    }
+    
+    /**
+     * 定期清理过期的变更记录
+     */
+    private void pruneIfNeeded() throws SQLException {
+        long now = System.currentTimeMillis();
+        if (now - lastPruneTime < TimeUnit.HOURS.toMillis(1)) {
+            return;
+        }
+        lastPruneTime = now;
+        
+        try (Connection conn = databaseManager.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("DELETE FROM market_changes WHERE created_at < ?")) {
+            stmt.setLong(1, now - retentionMillis);
+            stmt.executeUpdate();
+        }
+    }
+    
+    private static class Change {
+        private final UUID listingId;
+        private final MarketListing listing;
+        
+        private Change(UUID listingId, MarketListing listing) {
+            this.listingId = listingId;
+            this.listing = listing;
+        }
+    }
+}
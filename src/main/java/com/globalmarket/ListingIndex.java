@@ -0,0 +1,459 @@
+package com.globalmarket;
+
+import org.bukkit.Material;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 市场列表的内存索引
+ * 除按ID查找外，还按物品类型、卖家分桶，每个桶内维护按上架时间和价格排序的两棵带子树大小的平衡树，
+ * 每个物品类型另有按单价排序的卖单簿；上架/下架/购买时增量更新为 O(log n)，翻页按名次定位也是 O(log n)
+ */
+public class ListingIndex {
+    
+    private static final Comparator<MarketListing> TIME_ORDER = Comparator
+        .comparingLong(MarketListing::getCreatedAt)
+        .thenComparing(MarketListing::getListingId);
+    private static final Comparator<MarketListing> PRICE_ORDER = Comparator
+        .comparingDouble(MarketListing::getPrice)
+        .thenComparing(MarketListing::getListingId);
+    
+    private final Map<UUID, MarketListing> byId = new HashMap<>();
+    private final SortedBucket all = new SortedBucket();
+    private final Map<Material, SortedBucket> byMaterial = new EnumMap<>(Material.class);
+    private final Map<UUID, SortedBucket> bySeller = new HashMap<>();
+    private final Map<Material, OrderBook> orderBooks = new EnumMap<>(Material.class);
+    
+    // 每次修改递增，用于判断异步读取期间索引是否发生过变化
+    private long modCount;
+    private ChangeListener changeListener;
+    private ContentListener contentListener;
+    
+    /**
+     * 索引变化通知，用于刷新打开中的界面
+     */
+    public interface ChangeListener {
+        /**
+         * 单个上架被加入、替换或移除
+         */
+        void listingChanged(MarketListing listing);
+        
+        /**
+         * 整体重新加载或批量变化
+         */
+        void allChanged();
+    }
+    
+    /**
+     * 索引内容的增量变化，用于维护汇总统计；替换上架时先移除旧的再加入新的
+     */
+    public interface ContentListener {
+        void listingAdded(MarketListing listing);
+        
+        void listingRemoved(MarketListing listing);
+        
+        void listingsCleared();
+    }
+    
+    public void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+    
+    public void setContentListener(ContentListener contentListener) {
+        this.contentListener = contentListener;
+    }
+    
+    public MarketListing get(UUID listingId) {
+        return byId.get(listingId);
+    }
+    
+    public boolean containsKey(UUID listingId) {
+        return byId.containsKey(listingId);
+    }
+    
+    public void put(UUID listingId, MarketListing listing) {
+        modCount++;
+        MarketListing previous = byId.put(listingId, listing);
+        if (previous != null) {
+            unindex(previous);
+        }
+        all.add(listing);
+        byMaterial.computeIfAbsent(listing.getMaterial(), k -> new SortedBucket()).add(listing);
+        bySeller.computeIfAbsent(listing.getSellerId(), k -> new SortedBucket()).add(listing);
+        orderBooks.computeIfAbsent(listing.getMaterial(), OrderBook::new).add(listing);
+        if (contentListener != null) {
+            contentListener.listingAdded(listing);
+        }
+        if (changeListener != null) {
+            changeListener.listingChanged(listing);
+        }
+    }
+    
+    public void putAll(Map<UUID, MarketListing> listings) {
+        modCount++;
+        if (!byId.isEmpty()) {
+            for (Map.Entry<UUID, MarketListing> entry : listings.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        
+        // 批量加载时不逐条通知界面，最后统一刷新一次
+        for (Map.Entry<UUID, MarketListing> entry : listings.entrySet()) {
+            MarketListing listing = entry.getValue();
+            byId.put(entry.getKey(), listing);
+            all.add(listing);
+            byMaterial.computeIfAbsent(listing.getMaterial(), k -> new SortedBucket()).add(listing);
+            bySeller.computeIfAbsent(listing.getSellerId(), k -> new SortedBucket()).add(listing);
+            orderBooks.computeIfAbsent(listing.getMaterial(), OrderBook::new).add(listing);
+            if (contentListener != null) {
+                contentListener.listingAdded(listing);
+            }
+        }
+        if (changeListener != null) {
+            changeListener.allChanged();
+        }
+    }
+    
+    public MarketListing remove(UUID listingId) {
+        MarketListing listing = byId.remove(listingId);
+        if (listing != null) {
+            modCount++;
+            unindex(listing);
+            if (changeListener != null) {
+                changeListener.listingChanged(listing);
+            }
+        }
+        return listing;
+    }
+    
+    public void clear() {
+        modCount++;
+        byId.clear();
+        all.clear();
+        byMaterial.clear();
+        bySeller.clear();
+        orderBooks.clear();
+        if (contentListener != null) {
+            contentListener.listingsCleared();
+        }
+        if (changeListener != null) {
+            changeListener.allChanged();
+        }
+    }
+    
+    public long getModCount() {
+        return modCount;
+    }
+    
+    public int size() {
+        return byId.size();
+    }
+    
+    public boolean isEmpty() {
+        return byId.isEmpty();
+    }
+    
+    public Set<UUID> keySet() {
+        return Collections.unmodifiableSet(byId.keySet());
+    }
+    
+    public Collection<MarketListing> values() {
+        return Collections.unmodifiableCollection(byId.values());
+    }
+    
+    public Set<Map.Entry<UUID, MarketListing>> entrySet() {
+        return Collections.unmodifiableSet(byId.entrySet());
+    }
+    
+    /**
+     * 复制为普通Map
+     */
+    public Map<UUID, MarketListing> toMap() {
+        return new HashMap<>(byId);
+    }
+    
+    /**
+     * 全部上架中按排序方式取一页
+     */
+    public List<MarketListing> getPage(GUIManager.SortType sortType, int offset, int limit) {
+        return all.page(sortType, offset, limit);
+    }
+    
+    public List<MarketListing> getPageByMaterial(Material material, GUIManager.SortType sortType, int offset, int limit) {
+        SortedBucket bucket = byMaterial.get(material);
+        return bucket != null ? bucket.page(sortType, offset, limit) : Collections.emptyList();
+    }
+    
+    public List<MarketListing> getPageBySeller(UUID sellerId, GUIManager.SortType sortType, int offset, int limit) {
+        SortedBucket bucket = bySeller.get(sellerId);
+        return bucket != null ? bucket.page(sortType, offset, limit) : Collections.emptyList();
+    }
+    
+    public int countByMaterial(Material material) {
+        SortedBucket bucket = byMaterial.get(material);
+        return bucket != null ? bucket.size() : 0;
+    }
+    
+    /**
+     * 物品类型的卖单簿，没有上架时返回 null
+     */
+    public OrderBook getOrderBook(Material material) {
+        return orderBooks.get(material);
+    }
+    
+    public int countBySeller(UUID sellerId) {
+        SortedBucket bucket = bySeller.get(sellerId);
+        return bucket != null ? bucket.size() : 0;
+    }
+    
+    private void unindex(MarketListing listing) {
+        if (contentListener != null) {
+            contentListener.listingRemoved(listing);
+        }
+        all.remove(listing);
+        removeFromBucket(byMaterial, listing.getMaterial(), listing);
+        removeFromBucket(bySeller, listing.getSellerId(), listing);
+        
+        OrderBook book = orderBooks.get(listing.getMaterial());
+        if (book != null) {
+            book.remove(listing);
+            if (book.isEmpty()) {
+                orderBooks.remove(listing.getMaterial());
+            }
+        }
+    }
+    
+    private static <K> void removeFromBucket(Map<K, SortedBucket> buckets, K key, MarketListing listing) {
+        SortedBucket bucket = buckets.get(key);
+        if (bucket != null) {
+            bucket.remove(listing);
+            if (bucket.size() == 0) {
+                buckets.remove(key);
+            }
+        }
+    }
+    
+    /**
+     * 同一组上架按时间和价格分别排好序的两棵树
+     */
+    private static class SortedBucket {
+        private final RankedTree byTime = new RankedTree(TIME_ORDER);
+        private final RankedTree byPrice = new RankedTree(PRICE_ORDER);
+        
+        void add(MarketListing listing) {
+            byTime.add(listing);
+            byPrice.add(listing);
+        }
+        
+        void remove(MarketListing listing) {
+            byTime.remove(listing);
+            byPrice.remove(listing);
+        }
+        
+        void clear() {
+            byTime.clear();
+            byPrice.clear();
+        }
+        
+        int size() {
+            return byTime.size();
+        }
+        
+        List<MarketListing> page(GUIManager.SortType sortType, int offset, int limit) {
+            RankedTree sorted;
+            boolean descending;
+            switch (sortType) {
+                case OLDEST:
+                    sorted = byTime;
+                    descending = false;
+                    break;
+                case PRICE_LOW:
+                    sorted = byPrice;
+                    descending = false;
+                    break;
+                case PRICE_HIGH:
+                    sorted = byPrice;
+                    descending = true;
+                    break;
+                case NEWEST:
+                default:
+                    sorted = byTime;
+                    descending = true;
+                    break;
+            }
+            
+            int size = sorted.size();
+            if (offset < 0 || offset >= size || limit <= 0) {
+                return Collections.emptyList();
+            }
+            int end = Math.min(size, offset + limit);
+            List<MarketListing> page = new ArrayList<>(end - offset);
+            for (int i = offset; i < end; i++) {
+                page.add(sorted.get(descending ? size - 1 - i : i));
+            }
+            return page;
+        }
+    }
+    
+    /**
+     * 按比较器排序、记录子树大小的树堆（treap）
+     * 插入和删除期望 O(log n)，按名次取元素 O(log n)，翻到任意一页都不需要从头遍历
+     */
+    private static final class RankedTree {
+        private final Comparator<MarketListing> order;
+        private Node root;
+        
+        RankedTree(Comparator<MarketListing> order) {
+            this.order = order;
+        }
+        
+        int size() {
+            return size(root);
+        }
+        
+        void clear() {
+            root = null;
+        }
+        
+        void add(MarketListing listing) {
+            if (!contains(listing)) {
+                root = insert(root, new Node(listing));
+            }
+        }
+        
+        void remove(MarketListing listing) {
+            root = delete(root, listing);
+        }
+        
+        /**
+         * 排序后第 index 个元素（从0开始）
+         */
+        MarketListing get(int index) {
+            Node node = root;
+            while (node != null) {
+                int leftSize = size(node.left);
+                if (index < leftSize) {
+                    node = node.left;
+                } else if (index == leftSize) {
+                    return node.value;
+                } else {
+                    index -= leftSize + 1;
+                    node = node.right;
+                }
+            }
+            throw new IndexOutOfBoundsException();
+        }
+        
+        private boolean contains(MarketListing listing) {
+            Node node = root;
+            while (node != null) {
+                int cmp = order.compare(listing, node.value);
+                if (cmp == 0) {
+                    return true;
+                }
+                node = cmp < 0 ? node.left : node.right;
+            }
+            return false;
+        }
+        
+        private Node insert(Node node, Node inserted) {
+            if (node == null) {
+                return inserted;
+            }
+            if (inserted.priority > node.priority) {
+                // 新节点优先级更高，把原子树按它拆成左右两半挂在下面
+                split(node, inserted.value, inserted);
+                update(inserted);
+                return inserted;
+            }
+            if (order.compare(inserted.value, node.value) < 0) {
+                node.left = insert(node.left, inserted);
+            } else {
+                node.right = insert(node.right, inserted);
+            }
+            update(node);
+            return node;
+        }
+        
+        /**
+         * 把 node 子树拆成小于 key 和大于 key 的两部分，分别放到 target 的左右子树
+         */
+        private void split(Node node, MarketListing key, Node target) {
+            if (node == null) {
+                target.left = null;
+                target.right = null;
+                return;
+            }
+            if (order.compare(node.value, key) < 0) {
+                split(node.right, key, target);
+                node.right = target.left;
+                update(node);
+                target.left = node;
+            } else {
+                split(node.left, key, target);
+                node.left = target.right;
+                update(node);
+                target.right = node;
+            }
+        }
+        
+        private Node delete(Node node, MarketListing listing) {
+            if (node == null) {
+                return null;
+            }
+            int cmp = order.compare(listing, node.value);
+            if (cmp == 0) {
+                return merge(node.left, node.right);
+            }
+            if (cmp < 0) {
+                node.left = delete(node.left, listing);
+            } else {
+                node.right = delete(node.right, listing);
+            }
+            update(node);
+            return node;
+        }
+        
+        /**
+         * 合并两棵子树，left 中的元素都小于 right
+         */
+        private Node merge(Node left, Node right) {
+            if (left == null) {
+                return right;
+            }
+            if (right == null) {
+                return left;
+            }
+            if (left.priority > right.priority) {
+                left.right = merge(left.right, right);
+                update(left);
+                return left;
+            }
+            right.left = merge(left, right.left);
+            update(right);
+            return right;
+        }
+        
+        private static int size(Node node) {
+            return node != null ? node.size : 0;
+        }
+        
+        private static void update(Node node) {
+            node.size = 1 + size(node.left) + size(node.right);
+        }
+        
+        private static final class Node {
+            private final MarketListing value;
+            private final int priority = ThreadLocalRandom.current().nextInt();
+            private Node left;
+            private Node right;
+            private int size = 1;
+            
+            private Node(MarketListing value) {
+                this.value = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.globalmarket;
+
+import org.bukkit.ChatColor;
+import org.bukkit.NamespacedKey;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.persistence.PersistentDataType;
+
+import java.util.*;
+
+/**
+ * 市场界面展示物品缓存
+ * 按上架缓存装饰好的展示物品（名称、数量、价格、卖家、上架时间、ID），卖家本人和其他玩家看到的提示不同，
+ * 两种各缓存一份，渲染一格只需克隆；上架被替换（新对象）或上架时间文字变化时重新生成
+ */
+public class ListingRenderCache {
+    
+    private final GlobalMarket plugin;
+    private final NamespacedKey listingIdKey;
+    private int maxSize;
+    
+    // 只在主线程访问，按访问顺序淘汰
+    private final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<UUID, Entry>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+    
+    public ListingRenderCache(GlobalMarket plugin, NamespacedKey listingIdKey) {
+        this.plugin = plugin;
+        this.listingIdKey = listingIdKey;
+        configure();
+    }
+    
+    /**
+     * 读取缓存条目上限，重新加载时清空缓存
+     */
+    public void configure() {
+        maxSize = Math.max(0, plugin.getConfig().getInt("gui.render-cache-size", 2048));
+        entries.clear();
+    }
+    
+    /**
+     * 获取展示物品的副本，sellerName 为 null 时从名称索引中读取
+     */
+    public ItemStack render(MarketListing listing, boolean ownItem, String sellerName) {
+        if (sellerName == null) {
+            sellerName = plugin.getPlayerNameCache().getDisplayName(listing.getSellerId());
+        }
+        String ageText = formatTime(listing.getCreatedAt());
+        Entry entry = entries.get(listing.getListingId());
+        // 名称在后台解析完成后也会重新生成
+        if (entry == null || entry.listing != listing || !entry.ageText.equals(ageText) || !sellerName.equals(entry.sellerName)) {
+            entry = new Entry(listing, sellerName, ageText);
+            entries.put(listing.getListingId(), entry);
+        }
+        
+        int variant = ownItem ? 1 : 0;
+        ItemStack item = entry.items[variant];
+        if (item == null) {
+            item = decorate(listing, ownItem, entry.sellerName, ageText);
+            entry.items[variant] = item;
+        }
+        return item != null ? item.clone() : null;
+    }
+    
+    public void invalidate(UUID listingId) {
+        entries.remove(listingId);
+    }
+    
+    private ItemStack decorate(MarketListing listing, boolean ownItem, String sellerName, String ageText) {
+        UUID listingId = listing.getListingId();
+        ItemStack item = listing.getItem();
+        if (item == null) {
+            return null;
+        }
+        
+        // 添加物品信息
+        ItemMeta meta = item.getItemMeta();
+        if (meta != null) {
+            // 保持原始物品名称，让客户端自动翻译
+            String originalDisplayName = meta.hasDisplayName() ? meta.getDisplayName() : null;
+            if (originalDisplayName != null && !originalDisplayName.isEmpty()) {
+                // 如果物品已有自定义名称，保留它
+                meta.setDisplayName(ChatColor.GOLD + originalDisplayName);
+            }
+            
+            List<String> lore = new ArrayList<>(Arrays.asList(
+                ChatColor.WHITE + "数量: " + item.getAmount(),
+                ChatColor.GREEN + "价格: $" + listing.getPrice(),
+                ChatColor.AQUA + "卖家: " + sellerName,
+                ChatColor.GRAY + "上架时间: " + ageText
+            ));
+            
+            if (ownItem) {
+                lore.add("");
+                lore.add(ChatColor.RED + "这是你上架的物品");
+                lore.add(ChatColor.YELLOW + "Shift+左键点击下架到邮箱");
+            } else {
+                lore.add("");
+                lore.add(ChatColor.GREEN + "双击购买");
+                if (listing.getAmount() > 1) {
+                    lore.add(ChatColor.GREEN + "Shift+右键购买1个");
+                }
+            }
+            
+            lore.add(ChatColor.GRAY + "ID: " + listingId.toString().substring(0, 8));
+            
+            meta.setLore(lore);
+            // 完整ID写入物品数据，点击时直接读取
+            meta.getPersistentDataContainer().set(listingIdKey, PersistentDataType.STRING, listingId.toString());
+            item.setItemMeta(meta);
+        }
+        return item;
+    }
+    
+    private static String formatTime(long timestamp) {
+        long now = System.currentTimeMillis();
+        long diff = now - timestamp;
+        long hours = diff / (1000 * 60 * 60);
+        long minutes = (diff % (1000 * 60 * 60)) / (1000 * 60);
+        
+        if (hours > 0) {
+            return hours + "小时" + minutes + "分钟前";
+        } else {
+            return minutes + "分钟前";
+        }
+    }
+    
+    private static final class Entry {
+        private final MarketListing listing;
+        private final String sellerName;
+        private final String ageText;
+        // 0: 其他玩家看到的，1: 卖家本人看到的
+        private final ItemStack[] items = new ItemStack[2];
+        
+        private Entry(MarketListing listing, String sellerName, String ageText) {
+            this.listing = listing;
+            this.sellerName = sellerName;
+            this.ageText = ageText;
+        }
+    }
+}
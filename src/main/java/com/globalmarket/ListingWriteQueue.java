@@ -0,0 +1,248 @@
+package com.globalmarket;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 上架写入队列
+ * 新增/删除先进入队列，写线程每隔几毫秒或攒够一批后在同一事务中批量执行，
+ * 每个操作的 future 在事务提交后完成；需要排在写入之后的查询任务按提交顺序穿插执行
+ */
+public class ListingWriteQueue {
+    
+    private static final Operation STOP = new Operation();
+    
+    private final GlobalMarket plugin;
+    private final DatabaseManager databaseManager;
+    private final DatabaseStorage storage;
+    private final BlockingQueue<Operation> queue = new LinkedBlockingQueue<>();
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final Thread writer;
+    private volatile boolean running = true;
+    
+    public ListingWriteQueue(GlobalMarket plugin, DatabaseManager databaseManager, DatabaseStorage storage, ThreadFactory threadFactory) {
+        this.plugin = plugin;
+        this.databaseManager = databaseManager;
+        this.storage = storage;
+        this.maxBatchSize = Math.max(1, plugin.getConfig().getInt("database.batch.max-size", 100));
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, plugin.getConfig().getLong("database.batch.linger-ms", 5)));
+        this.writer = threadFactory.newThread(this::run);
+        writer.start();
+    }
+    
+    public CompletableFuture<Void> save(MarketListing listing) {
+        Mutation mutation = new Mutation(listing, listing.getListingId());
+        enqueue(mutation, mutation.future);
+        return mutation.future;
+    }
+    
+    public CompletableFuture<Void> remove(UUID listingId) {
+        Mutation mutation = new Mutation(null, listingId);
+        enqueue(mutation, mutation.future);
+        return mutation.future;
+    }
+    
+    /**
+     * 提交一个排在当前所有写入之后执行的任务
+     */
+    public <T> CompletableFuture<T> submit(AsyncDatabaseStorage.SqlSupplier<T> supplier) {
+        Task<T> task = new Task<>(supplier);
+        enqueue(task, task.future);
+        return task.future;
+    }
+    
+    /**
+     * 停止接收新操作，等待队列中已有的操作写完
+     */
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        queue.add(STOP);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            plugin.getLogger().severe("数据库写入超时，仍有 " + queue.size() + " 条未完成");
+        }
+    }
+    
+    private void enqueue(Operation operation, CompletableFuture<?> future) {
+        if (!running) {
+            future.completeExceptionally(new RejectedExecutionException("写入队列已关闭"));
+            return;
+        }
+        queue.add(operation);
+    }
+    
+    private void run() {
+        List<Mutation> batch = new ArrayList<>();
+        try {
+            while (true) {
+                Operation operation = queue.take();
+                if (operation == STOP) {
+                    break;
+                }
+                if (operation instanceof Task) {
+                    ((Task<?>) operation).run();
+                    continue;
+                }
+                
+                // 收集一批写入，直到攒满、等待超时或遇到需要排在后面的任务
+                batch.add((Mutation) operation);
+                Operation next = null;
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (!(next instanceof Mutation)) {
+                        break;
+                    }
+                    batch.add((Mutation) next);
+                    next = null;
+                }
+                
+                flush(batch);
+                batch.clear();
+                
+                if (next == STOP) {
+                    break;
+                }
+                if (next instanceof Task) {
+                    ((Task<?>) next).run();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        // 关闭后才进入队列的操作不再执行
+        List<Operation> rejected = new ArrayList<>();
+        queue.drainTo(rejected);
+        for (Operation operation : rejected) {
+            if (operation instanceof Mutation) {
+                ((Mutation) operation).future.completeExceptionally(new RejectedExecutionException("写入队列已关闭"));
+            } else if (operation instanceof Task) {
+                ((Task<?>) operation).future.completeExceptionally(new RejectedExecutionException("写入队列已关闭"));
+            }
+        }
+    }
+    
+    /**
+     * 在一个事务中写入整批操作，失败时回滚并逐条重试，避免一条坏数据拖累整批
+     */
+    private void flush(List<Mutation> batch) {
+        SQLException failure;
+        try (Connection conn = databaseManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                writeInOrder(conn, batch);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            failure = null;
+        } catch (SQLException e) {
+            failure = e;
+        }
+        
+        if (failure == null) {
+            for (Mutation mutation : batch) {
+                mutation.future.complete(null);
+            }
+            return;
+        }
+        
+        if (batch.size() > 1) {
+            plugin.getLogger().warning("批量写入市场列表失败，改为逐条写入: " + failure.getMessage());
+            for (Mutation mutation : batch) {
+                flush(Collections.singletonList(mutation));
+            }
+            return;
+        }
+        
+        Mutation mutation = batch.get(0);
+        plugin.getLogger().severe((mutation.listing != null ? "保存" : "移除") + "市场列表失败: " + failure.getMessage());
+        failure.printStackTrace();
+        mutation.future.completeExceptionally(failure);
+    }
+    
+    /**
+     * 连续的同类操作合并为一次批量语句，整体仍保持提交顺序
+     */
+    private void writeInOrder(Connection conn, List<Mutation> batch) throws SQLException {
+        int start = 0;
+        while (start < batch.size()) {
+            boolean insert = batch.get(start).listing != null;
+            int end = start;
+            while (end < batch.size() && (batch.get(end).listing != null) == insert) {
+                end++;
+            }
+            
+            List<Mutation> run = batch.subList(start, end);
+            if (insert) {
+                List<MarketListing> listings = new ArrayList<>(run.size());
+                for (Mutation mutation : run) {
+                    listings.add(mutation.listing);
+                }
+                storage.insertListings(conn, listings);
+            } else {
+                List<UUID> listingIds = new ArrayList<>(run.size());
+                for (Mutation mutation : run) {
+                    listingIds.add(mutation.listingId);
+                }
+                storage.deleteListings(conn, listingIds);
+            }
+            start = end;
+        }
+    }
+    
+    private static class Operation {
+    }
+    
+    /**
+     * 单条写入，listing 为 null 表示删除
+     */
+    private static final class Mutation extends Operation {
+        private final MarketListing listing;
+        private final UUID listingId;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        
+        private Mutation(MarketListing listing, UUID listingId) {
+            this.listing = listing;
+            this.listingId = listingId;
+        }
+    }
+    
+    private static final class Task<T> extends Operation {
+        private final AsyncDatabaseStorage.SqlSupplier<T> supplier;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        
+        private Task(AsyncDatabaseStorage.SqlSupplier<T> supplier) {
+            this.supplier = supplier;
+        }
+        
+        private void run() {
+            try {
+                future.complete(supplier.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -3,47 +3,161 @@ package com.globalmarket;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
-import org.bukkit.configuration.file.FileConfiguration;
-import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.BookMeta;
 import org.bukkit.inventory.meta.ItemMeta;
-import org.bukkit.util.io.BukkitObjectInputStream;
-import org.bukkit.util.io.BukkitObjectOutputStream;
-import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
 
-import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class Mailbox {
     
+    private static final long RETRY_INTERVAL_TICKS = 200L;
+    
     private final GlobalMarket plugin;
     private final Map<UUID, List<MailboxItem>> playerMailboxes = new HashMap<>();
-    private final File mailboxDataFile;
+    private final MailboxStorage storage;
+    // 确定没有写入存储、暂时只存在于内存中的邮箱物品，在下次保存时重试
+    private final Map<MailboxItem, UUID> unsavedItems = new LinkedHashMap<>();
+    // 正在存储中认领的物品，防止重复点击
+    private final Set<MailboxItem> claiming = Collections.newSetFromMap(new IdentityHashMap<>());
     
-    public Mailbox(GlobalMarket plugin) {
+    public Mailbox(GlobalMarket plugin, MailboxStorage storage) {
         this.plugin = plugin;
-        this.mailboxDataFile = new File(plugin.getDataFolder(), "mailbox.yml");
+        this.storage = storage;
         loadMailboxData();
+        storage.start(this);
+        plugin.getMaintenanceScheduler().scheduleRepeating("mailbox-retry", RETRY_INTERVAL_TICKS, () -> () -> {
+            retryUnsavedItems();
+            return true;
+        });
     }
     
     /**
-     * 添加物品到玩家邮箱
+     * 添加物品到玩家邮箱，结果为false表示保存失败，物品暂时只存在于内存中
      */
-    public void addItemToMailbox(UUID playerId, ItemStack item, double money, TransactionRecord record) {
+    public CompletableFuture<Boolean> addItemToMailbox(UUID playerId, ItemStack item, double money, TransactionRecord record) {
         // 如果物品为null且资金为0，则不添加任何内容
         if (item == null && money <= 0) {
-            return;
+            return CompletableFuture.completedFuture(true);
         }
         
-        playerMailboxes.computeIfAbsent(playerId, k -> new ArrayList<>())
-                .add(new MailboxItem(item, money, record));
+        MailboxItem mailboxItem = new MailboxItem(item, money, record);
+        deliver(playerId, mailboxItem);
         
+        // 交给存储后端保存
+        return persist(playerId, mailboxItem);
+    }
+    
+    /**
+     * 加入已由调用方写入存储的邮箱物品（如购买事务中一并写入的物品），只更新内存并通知玩家
+     */
+    public void addCommittedItem(UUID playerId, MailboxItem mailboxItem) {
+        deliver(playerId, mailboxItem);
+        storage.itemsCommitted(playerId);
+    }
+    
+    /**
+     * 一次加入多个邮箱物品，只通知玩家一次；committed 为 true 表示调用方已写入存储。
+     * 结果为false表示有物品保存失败
+     */
+    public CompletableFuture<Boolean> addItemsToMailbox(UUID playerId, List<MailboxItem> items, boolean committed) {
+        if (items.isEmpty()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        playerMailboxes.computeIfAbsent(playerId, k -> new ArrayList<>())
+                .addAll(items);
+        CompletableFuture<Boolean> saved = CompletableFuture.completedFuture(true);
+        if (committed) {
+            storage.itemsCommitted(playerId);
+        } else {
+            for (MailboxItem item : items) {
+                saved = saved.thenCombine(persist(playerId, item), Boolean::logicalAnd);
+            }
+        }
+        notifyDelivery(playerId, items.get(0));
+        return saved;
+    }
+    
+    /**
+     * 交给存储后端保存，确定没有写入时记下等待重试；结果未知时不重试，以免复活已在别处领取的物品
+     */
+    private CompletableFuture<Boolean> persist(UUID playerId, MailboxItem mailboxItem) {
+        return storage.itemAdded(playerId, mailboxItem).thenApply(result -> {
+            if (result == MailboxStorage.SaveResult.NOT_SAVED) {
+                unsavedItems.put(mailboxItem, playerId);
+                plugin.getLogger().warning("邮箱物品 " + mailboxItem.getId() + " 保存失败，将在下次保存时重试");
+            } else if (result == MailboxStorage.SaveResult.UNKNOWN) {
+                plugin.getLogger().warning("邮箱物品 " + mailboxItem.getId() + " 保存结果未知，领取时以存储中的状态为准");
+            }
+            return result == MailboxStorage.SaveResult.SAVED;
+        });
+    }
+    
+    /**
+     * 重试保存失败的邮箱物品，已被领取的跳过
+     */
+    private void retryUnsavedItems() {
+        if (unsavedItems.isEmpty()) {
+            return;
+        }
+        Map<MailboxItem, UUID> retry = new LinkedHashMap<>(unsavedItems);
+        unsavedItems.clear();
+        for (Map.Entry<MailboxItem, UUID> entry : retry.entrySet()) {
+            // 正在认领的物品等认领结果再决定
+            if (claiming.contains(entry.getKey())) {
+                unsavedItems.put(entry.getKey(), entry.getValue());
+            } else if (getMailboxItems(entry.getValue()).contains(entry.getKey())) {
+                persist(entry.getValue(), entry.getKey());
+            }
+        }
+    }
+    
+    /**
+     * 回放日志中的投递，邮箱中已有同一ID的物品时跳过
+     */
+    void replayDelivery(UUID playerId, MailboxItem mailboxItem) {
+        List<MailboxItem> items = playerMailboxes.computeIfAbsent(playerId, k -> new ArrayList<>());
+        for (MailboxItem existing : items) {
+            if (existing.getId().equals(mailboxItem.getId())) {
+                return;
+            }
+        }
+        items.add(mailboxItem);
+        storage.itemsCommitted(playerId);
+    }
+    
+    /**
+     * 回放日志中的领取，按ID移除
+     */
+    void replayClaim(UUID playerId, UUID itemId) {
+        List<MailboxItem> items = playerMailboxes.get(playerId);
+        if (items != null && items.removeIf(item -> item.getId().equals(itemId))) {
+            if (items.isEmpty()) {
+                playerMailboxes.remove(playerId);
+            }
+            storage.itemsCommitted(playerId);
+        }
+    }
+    
+    private void deliver(UUID playerId, MailboxItem mailboxItem) {
+        playerMailboxes.computeIfAbsent(playerId, k -> new ArrayList<>())
+                .add(mailboxItem);
+        notifyDelivery(playerId, mailboxItem);
+    }
+    
+    private void notifyDelivery(UUID playerId, MailboxItem mailboxItem) {
         // 根据内容类型发送不同的通知
+        ItemStack item = mailboxItem.getItem();
+        double money = mailboxItem.getMoney();
         String message;
-        if (item != null) {
+        if (mailboxItem.isRemovedItem()) {
+            // 发送下架通知
+            message = plugin.getConfig().getString("messages.mailbox-notification-removed", 
+                "&e[下架] 你的物品已从市场下架并返回邮箱! &7使用 /market mail 查看详情");
+        } else if (item != null) {
             message = plugin.getConfig().getString("messages.mailbox-notification-new-item", 
                 "&b[邮箱] 有新的物品到达邮箱! &7使用 /market mail 查看详情");
         } else if (money > 0) {
@@ -53,15 +167,23 @@ public class Mailbox {
             message = "&b[邮箱] 有新的邮件到达! &7使用 /market mail 查看详情";
         }
         notifyPlayer(playerId, message);
-        
-        // 自动保存邮箱数据
-        saveMailboxData();
     }
 
     /**
-     * 添加下架物品到玩家邮箱（特殊标记）
+     * 添加下架物品到玩家邮箱（特殊标记），结果为false表示保存失败
      */
-    public void addRemovedItemToMailbox(UUID playerId, ItemStack item) {
+    public CompletableFuture<Boolean> addRemovedItemToMailbox(UUID playerId, ItemStack item) {
+        MailboxItem mailboxItem = createRemovedItem(item);
+        deliver(playerId, mailboxItem);
+        
+        // 交给存储后端保存
+        return persist(playerId, mailboxItem);
+    }
+    
+    /**
+     * 创建下架物品的邮件（带下架标记和记录），供调用方在自己的事务中写入
+     */
+    public static MailboxItem createRemovedItem(ItemStack item) {
         // 创建下架记录
         TransactionRecord record = new TransactionRecord(
             item.getType().name(),
@@ -74,23 +196,13 @@ public class Mailbox {
         // 标记为下架物品
         MailboxItem mailboxItem = new MailboxItem(item, 0, record);
         mailboxItem.setRemovedItem(true);
-
-        playerMailboxes.computeIfAbsent(playerId, k -> new ArrayList<>())
-                .add(mailboxItem);
-        
-        // 发送下架通知
-        String message = plugin.getConfig().getString("messages.mailbox-notification-removed", 
-            "&e[下架] 你的物品已从市场下架并返回邮箱! &7使用 /market mail 查看详情");
-        notifyPlayer(playerId, message);
-        
-        // 自动保存邮箱数据
-        saveMailboxData();
+        return mailboxItem;
     }
 
     /**
-     * 添加邮寄物品到玩家邮箱
+     * 添加邮寄物品到玩家邮箱，结果为false表示保存失败
      */
-    public void addSentItemToMailbox(UUID playerId, ItemStack item, String senderName) {
+    public CompletableFuture<Boolean> addSentItemToMailbox(UUID playerId, ItemStack item, String senderName) {
         // 创建邮寄记录（无交易金额）
         TransactionRecord record = new TransactionRecord(
             item.getType().name(),
@@ -113,6 +225,9 @@ public class Mailbox {
             "&d[邮寄] %sender% 给你邮寄了物品! &7使用 /market mail 查看详情");
         message = message.replace("%sender%", senderName);
         notifyPlayer(playerId, message);
+        
+        // 交给存储后端保存
+        return persist(playerId, mailboxItem);
     }
 
     /**
@@ -257,14 +372,14 @@ public class Mailbox {
     }
     
     /**
-     * 领取邮箱中的物品和资金
+     * 领取邮箱中的物品和资金：先在存储中认领，认领完成后在主线程发放，结果表示是否领取成功
      */
-    public boolean claimMailboxItem(Player player, int index) {
+    public CompletableFuture<Boolean> claimMailboxItem(Player player, int index) {
         UUID playerId = player.getUniqueId();
         List<MailboxItem> items = getMailboxItems(playerId);
         
         if (index < 0 || index >= items.size()) {
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
         
         MailboxItem mailboxItem = items.get(index);
@@ -272,6 +387,44 @@ public class Mailbox {
         // 检查背包空间
         if (player.getInventory().firstEmpty() == -1) {
             player.sendMessage(ChatColor.RED + "你的背包已满! 请先清理背包空间。");
+            return CompletableFuture.completedFuture(false);
+        }
+        
+        // 上一次点击的认领还没有完成
+        if (!claiming.add(mailboxItem)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        
+        return storage.itemClaimed(playerId, mailboxItem).handle((result, error) -> {
+            claiming.remove(mailboxItem);
+            return completeClaim(player, mailboxItem, error != null ? MailboxStorage.ClaimResult.FAILED : result);
+        });
+    }
+    
+    private boolean completeClaim(Player player, MailboxItem mailboxItem, MailboxStorage.ClaimResult result) {
+        UUID playerId = player.getUniqueId();
+        
+        // 只有确定没有写入的物品，删除0行时才可以领取；写入结果未知的可能已被其他服务器领取，以存储为准
+        boolean unsaved = unsavedItems.remove(mailboxItem) != null;
+        if (result == MailboxStorage.ClaimResult.FAILED) {
+            if (unsaved) {
+                unsavedItems.put(mailboxItem, playerId);
+            }
+            player.sendMessage(ChatColor.RED + "邮箱暂时无法领取，请稍后重试!");
+            return false;
+        }
+        
+        // 认领期间列表可能被重新排序，按对象移除
+        removeItem(playerId, mailboxItem);
+        if (result == MailboxStorage.ClaimResult.ALREADY_CLAIMED && !unsaved) {
+            player.sendMessage(ChatColor.RED + "该邮件已被领取!");
+            return false;
+        }
+        
+        // 认领期间玩家已下线，存储中的行已删除，重新投递回邮箱
+        if (!player.isOnline()) {
+            playerMailboxes.computeIfAbsent(playerId, k -> new ArrayList<>()).add(mailboxItem);
+            persist(playerId, mailboxItem);
             return false;
         }
         
@@ -280,13 +433,13 @@ public class Mailbox {
             // 创建交易记录成书
             ItemStack recordBook = createTransactionRecordBook(mailboxItem.getRecord());
             if (recordBook != null) {
-                player.getInventory().addItem(recordBook);
+                giveItem(player, recordBook);
             }
         }
         
         // 处理物品领取
         if (mailboxItem.getItem() != null) {
-            player.getInventory().addItem(mailboxItem.getItem());
+            giveItem(player, mailboxItem.getItem());
         }
         
         // 汇入资金
@@ -296,12 +449,6 @@ public class Mailbox {
                 plugin.getEconomyManager().formatCurrency(mailboxItem.getMoney()));
         }
         
-        // 从邮箱移除
-        items.remove(index);
-        if (items.isEmpty()) {
-            playerMailboxes.remove(playerId);
-        }
-        
         // 根据内容类型发送不同的完成消息
         if (mailboxItem.isRemovedItem()) {
             player.sendMessage(ChatColor.GREEN + "下架物品已取回!");
@@ -313,6 +460,25 @@ public class Mailbox {
         return true;
     }
     
+    private void removeItem(UUID playerId, MailboxItem mailboxItem) {
+        List<MailboxItem> items = playerMailboxes.get(playerId);
+        if (items != null) {
+            items.remove(mailboxItem);
+            if (items.isEmpty()) {
+                playerMailboxes.remove(playerId);
+            }
+        }
+    }
+    
+    /**
+     * 放入背包，认领期间背包被占满时掉落在玩家脚下
+     */
+    private void giveItem(Player player, ItemStack item) {
+        for (ItemStack leftover : player.getInventory().addItem(item).values()) {
+            player.getWorld().dropItemNaturally(player.getLocation(), leftover);
+        }
+    }
+    
     /**
      * 创建交易记录成书
      */
@@ -344,6 +510,7 @@ public class Mailbox {
      * 邮箱物品类
      */
     public static class MailboxItem {
+        private final UUID id;
         private final ItemStack item;
         private final double money;
         private final TransactionRecord record;
@@ -352,11 +519,17 @@ public class Mailbox {
         private String senderName = null;
         
         public MailboxItem(ItemStack item, double money, TransactionRecord record) {
+            this(UUID.randomUUID(), item, money, record);
+        }
+        
+        public MailboxItem(UUID id, ItemStack item, double money, TransactionRecord record) {
+            this.id = id;
             this.item = item;
             this.money = money;
             this.record = record;
         }
         
+        public UUID getId() { return id; }
         public ItemStack getItem() { return item; }
         public double getMoney() { return money; }
         public TransactionRecord getRecord() { return record; }
@@ -480,125 +653,19 @@ public class Mailbox {
     }
     
     /**
-     * 保存邮箱数据到文件
+     * 立即保存尚未写回的邮箱变更
      */
     public void saveMailboxData() {
-        try {
-            FileConfiguration config = new YamlConfiguration();
-            
-            for (Map.Entry<UUID, List<MailboxItem>> entry : playerMailboxes.entrySet()) {
-                UUID playerId = entry.getKey();
-                List<MailboxItem> items = entry.getValue();
-                
-                if (!items.isEmpty()) {
-                    String path = playerId.toString() + ".items";
-                    
-                    for (int i = 0; i < items.size(); i++) {
-                        MailboxItem item = items.get(i);
-                        String itemPath = path + "." + i;
-                        
-                        // 保存物品
-                        config.set(itemPath + ".item", serializeItemStack(item.getItem()));
-                        config.set(itemPath + ".money", item.getMoney());
-                        config.set(itemPath + ".isRemoved", item.isRemovedItem());
-                        config.set(itemPath + ".isSent", item.isSentItem());
-                        config.set(itemPath + ".sender", item.getSenderName());
-                        
-                        // 保存交易记录
-                        TransactionRecord record = item.getRecord();
-                        if (record != null) {
-                            config.set(itemPath + ".record.itemName", record.getItemName());
-                            config.set(itemPath + ".record.amount", record.getAmount());
-                            config.set(itemPath + ".record.sellPrice", record.getSellPrice());
-                            config.set(itemPath + ".record.tax", record.getTax());
-                            config.set(itemPath + ".record.actualIncome", record.getActualIncome());
-                            config.set(itemPath + ".record.timestamp", record.getTimestamp());
-                        }
-                    }
-                }
-            }
-            
-            config.save(mailboxDataFile);
-            
-        } catch (Exception e) {
-            plugin.getLogger().severe("保存邮箱数据失败: " + e.getMessage());
-            e.printStackTrace();
-        }
+        retryUnsavedItems();
+        storage.flush(this);
     }
     
     /**
-     * 从文件加载邮箱数据
+     * 从存储后端加载邮箱数据
      */
     public void loadMailboxData() {
         try {
-            if (!mailboxDataFile.exists()) {
-                return;
-            }
-            
-            FileConfiguration config = YamlConfiguration.loadConfiguration(mailboxDataFile);
-            
-            for (String playerIdStr : config.getKeys(false)) {
-                try {
-                    UUID playerId = UUID.fromString(playerIdStr);
-                    String path = playerIdStr + ".items";
-                    
-                    if (config.contains(path)) {
-                        List<MailboxItem> items = new ArrayList<>();
-                        
-                        for (String itemKey : config.getConfigurationSection(path).getKeys(false)) {
-                            String itemPath = path + "." + itemKey;
-                            
-                            // 读取物品
-                            String itemBase64 = config.getString(itemPath + ".item");
-                            ItemStack item = deserializeItemStack(itemBase64);
-                            
-                            if (item != null) {
-                                double money = config.getDouble(itemPath + ".money");
-                                boolean isRemoved = config.getBoolean(itemPath + ".isRemoved");
-                                boolean isSent = config.getBoolean(itemPath + ".isSent");
-                                String sender = config.getString(itemPath + ".sender");
-                                
-                                // 读取交易记录
-                                TransactionRecord record = null;
-                                if (config.contains(itemPath + ".record")) {
-                                    String itemName = config.getString(itemPath + ".record.itemName");
-                                    int amount = config.getInt(itemPath + ".record.amount");
-                                    double sellPrice = config.getDouble(itemPath + ".record.sellPrice");
-                                    double tax = config.getDouble(itemPath + ".record.tax");
-                                    double actualIncome = config.getDouble(itemPath + ".record.actualIncome");
-                                    long timestamp = config.getLong(itemPath + ".record.timestamp");
-                                    
-                                    record = new TransactionRecord(itemName, amount, sellPrice, tax, actualIncome);
-                                    // 设置时间戳（通过反射或构造函数）
-                                    try {
-                                        java.lang.reflect.Field timestampField = TransactionRecord.class.getDeclaredField("timestamp");
-                                        timestampField.setAccessible(true);
-                                        timestampField.setLong(record, timestamp);
-                                    } catch (Exception e) {
-                                        // 如果反射失败，使用当前时间
-                                    }
-                                }
-                                
-                                MailboxItem mailboxItem = new MailboxItem(item, money, record);
-                                mailboxItem.setRemovedItem(isRemoved);
-                                mailboxItem.setSentItem(isSent);
-                                mailboxItem.setSenderName(sender);
-                                
-                                items.add(mailboxItem);
-                            }
-                        }
-                        
-                        if (!items.isEmpty()) {
-                            playerMailboxes.put(playerId, items);
-                        }
-                    }
-                } catch (Exception e) {
-                    plugin.getLogger().warning("邮箱数据加载失败: " + playerIdStr);
-                }
-            }
-            
-
-            
+            playerMailboxes.putAll(storage.loadAll());
         } catch (Exception e) {
             plugin.getLogger().severe("加载邮箱数据失败: " + e.getMessage());
             e.printStackTrace();
@@ -606,39 +673,11 @@ public class Mailbox {
     }
     
     /**
-     * 序列化物品为Base64字符串
+     * 保存剩余变更并停止存储后端
      */
-    private String serializeItemStack(ItemStack item) {
-        try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            BukkitObjectOutputStream dataOutput = new BukkitObjectOutputStream(outputStream);
-            dataOutput.writeObject(item);
-            dataOutput.close();
-            return Base64Coder.encodeLines(outputStream.toByteArray());
-        } catch (Exception e) {
-            plugin.getLogger().severe("物品序列化失败");
-            return null;
-        }
-    }
-    
-    /**
-     * 反序列化Base64字符串为物品
-     */
-    private ItemStack deserializeItemStack(String base64) {
-        if (base64 == null || base64.isEmpty()) {
-            return null;
-        }
-        
-        try {
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(Base64Coder.decodeLines(base64));
-            BukkitObjectInputStream dataInput = new BukkitObjectInputStream(inputStream);
-            ItemStack item = (ItemStack) dataInput.readObject();
-            dataInput.close();
-            return item;
-        } catch (Exception e) {
-            plugin.getLogger().severe("物品反序列化失败");
-            return null;
-        }
+    public void close() {
+        retryUnsavedItems();
+        storage.close(this);
     }
     
     /**
@@ -661,6 +700,15 @@ public class Mailbox {
             this.timestamp = System.currentTimeMillis();
         }
         
+        public TransactionRecord(String itemName, int amount, double sellPrice, double tax, double actualIncome, long timestamp) {
+            this.itemName = itemName;
+            this.amount = amount;
+            this.sellPrice = sellPrice;
+            this.tax = tax;
+            this.actualIncome = actualIncome;
+            this.timestamp = timestamp;
+        }
+        
         public String getItemName() { return itemName; }
         public int getAmount() { return amount; }
         public double getSellPrice() { return sellPrice; }
@@ -0,0 +1,386 @@
+package com.globalmarket;
+
+import com.globalmarket.util.ItemCodec;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按玩家分片的邮箱存储
+ * 每个玩家一个 mailboxes/玩家UUID.yml 文件，只有被标记为脏的邮箱才会由异步写入线程刷新。
+ * 接入市场日志后，投递和领取先写入日志，分片只在日志落盘后由日志线程写出，压缩前全部写出
+ */
+public class MailboxShardStorage implements MailboxStorage {
+    
+    // 每个调度分片最多截取的邮箱数量
+    private static final int FLUSH_SLICE_SIZE = 50;
+    
+    private final GlobalMarket plugin;
+    private final File shardFolder;
+    private final File legacyFile;
+    // 写出失败时由写入线程重新标记
+    private final Set<UUID> dirtyMailboxes = ConcurrentHashMap.newKeySet();
+    // 领取记录已入队、还没从内存移除的物品，截取分片时视为已领取
+    private final Set<UUID> pendingClaims = new HashSet<>();
+    private final ExecutorService writer;
+    private final Executor mainThread;
+    private YamlListingJournal journal;
+    private boolean started;
+    
+    public MailboxShardStorage(GlobalMarket plugin) {
+        this.plugin = plugin;
+        this.shardFolder = new File(plugin.getDataFolder(), "mailboxes");
+        this.legacyFile = new File(plugin.getDataFolder(), "mailbox.yml");
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "GlobalMarket-Mailbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.mainThread = Bukkit.getScheduler().getMainThreadExecutor(plugin);
+    }
+    
+    /**
+     * 启动定期刷新脏邮箱的任务，每个分片只截取一部分邮箱，脏邮箱很多时分摊到多个 tick
+     */
+    @Override
+    public void start(Mailbox mailbox) {
+        long interval = Math.max(1, plugin.getConfig().getLong("mailbox.flush-interval-ticks", 40));
+        plugin.getMaintenanceScheduler().scheduleRepeating("mailbox-flush", interval,
+            () -> () -> flush(mailbox, FLUSH_SLICE_SIZE));
+        started = true;
+    }
+    
+    /**
+     * 接入市场日志，之后的投递和领取都先写入日志
+     */
+    public void attachJournal(YamlListingJournal journal, Mailbox mailbox) {
+        this.journal = journal;
+        journal.addCheckpoint(() -> capture(mailbox, Integer.MAX_VALUE));
+    }
+    
+    @Override
+    public CompletableFuture<SaveResult> itemAdded(UUID playerId, Mailbox.MailboxItem item) {
+        markDirty(playerId);
+        if (journal == null) {
+            return CompletableFuture.completedFuture(SaveResult.SAVED);
+        }
+        // 回放按ID去重，重试不会重复投递
+        return journal.append(new YamlListingJournal.Transaction().deliver(playerId, item))
+            .handleAsync((ignored, error) -> {
+                if (error != null) {
+                    plugin.getLogger().severe("保存邮箱物品失败: " + error.getMessage());
+                    return SaveResult.NOT_SAVED;
+                }
+                return SaveResult.SAVED;
+            }, mainThread);
+    }
+    
+    /**
+     * 接入日志时领取记录落盘后才能发放；此前截取的分片不包含该物品，领取完成后重新标记
+     */
+    @Override
+    public CompletableFuture<ClaimResult> itemClaimed(UUID playerId, Mailbox.MailboxItem item) {
+        markDirty(playerId);
+        if (journal == null) {
+            return CompletableFuture.completedFuture(ClaimResult.CLAIMED);
+        }
+        pendingClaims.add(item.getId());
+        return journal.append(new YamlListingJournal.Transaction().claim(playerId, item.getId()))
+            .handleAsync((ignored, error) -> {
+                pendingClaims.remove(item.getId());
+                markDirty(playerId);
+                if (error != null) {
+                    plugin.getLogger().severe("领取邮箱物品失败: " + error.getMessage());
+                    return ClaimResult.FAILED;
+                }
+                return ClaimResult.CLAIMED;
+            }, mainThread);
+    }
+    
+    @Override
+    public void itemsCommitted(UUID playerId) {
+        markDirty(playerId);
+    }
+    
+    /**
+     * 标记玩家邮箱需要写回磁盘
+     */
+    public void markDirty(UUID playerId) {
+        dirtyMailboxes.add(playerId);
+    }
+    
+    @Override
+    public void flush(Mailbox mailbox) {
+        flush(mailbox, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * 在主线程截取最多 limit 个脏邮箱的副本交给写入线程落盘，接入日志时排在已入队的日志记录之后；
+     * 返回是否已没有脏邮箱
+     */
+    private boolean flush(Mailbox mailbox, int limit) {
+        if (dirtyMailboxes.isEmpty()) {
+            return true;
+        }
+        
+        YamlListingJournal.CheckpointWrite write = capture(mailbox, limit);
+        if (journal == null || !journal.submit(write)) {
+            writer.execute(() -> {
+                try {
+                    write.write();
+                } catch (IOException ignored) {
+                    // 失败的邮箱已重新标记，下次刷新时重试
+                }
+            });
+        }
+        return dirtyMailboxes.isEmpty();
+    }
+    
+    /**
+     * 截取最多 limit 个脏邮箱的副本，返回写出这些分片的任务；写出失败的邮箱重新标记为脏
+     */
+    private YamlListingJournal.CheckpointWrite capture(Mailbox mailbox, int limit) {
+        Map<UUID, List<Mailbox.MailboxItem>> snapshot = new HashMap<>();
+        Iterator<UUID> iterator = dirtyMailboxes.iterator();
+        while (iterator.hasNext() && snapshot.size() < limit) {
+            UUID playerId = iterator.next();
+            List<Mailbox.MailboxItem> items = new ArrayList<>(mailbox.getMailboxItems(playerId));
+            items.removeIf(item -> pendingClaims.contains(item.getId()));
+            snapshot.put(playerId, items);
+            iterator.remove();
+        }
+        
+        return () -> {
+            List<UUID> failed = new ArrayList<>();
+            for (Map.Entry<UUID, List<Mailbox.MailboxItem>> entry : snapshot.entrySet()) {
+                try {
+                    writeShard(entry.getKey(), entry.getValue());
+                } catch (IOException e) {
+                    plugin.getLogger().severe("保存邮箱数据失败: " + entry.getKey() + " - " + e.getMessage());
+                    failed.add(entry.getKey());
+                }
+            }
+            if (!failed.isEmpty()) {
+                dirtyMailboxes.addAll(failed);
+                throw new IOException(failed.size() + " 个邮箱分片写出失败");
+            }
+        };
+    }
+    
+    /**
+     * 刷新剩余的脏邮箱并等待写入线程结束
+     */
+    @Override
+    public void close(Mailbox mailbox) {
+        if (started) {
+            plugin.getMaintenanceScheduler().cancelRepeating("mailbox-flush");
+            started = false;
+        }
+        flush(mailbox);
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().severe("邮箱数据写入超时，部分邮箱可能未保存");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * 加载所有玩家的邮箱分片，必要时从旧版 mailbox.yml 迁移
+     */
+    @Override
+    public Map<UUID, List<Mailbox.MailboxItem>> loadAll() {
+        Map<UUID, List<Mailbox.MailboxItem>> mailboxes = new HashMap<>();
+        
+        if (!shardFolder.exists() && legacyFile.exists()) {
+            migrateLegacyFile(mailboxes);
+            return mailboxes;
+        }
+        
+        File[] shardFiles = shardFolder.listFiles((dir, name) -> name.endsWith(".yml"));
+        if (shardFiles == null) {
+            return mailboxes;
+        }
+        
+        for (File shardFile : shardFiles) {
+            String playerIdStr = shardFile.getName().substring(0, shardFile.getName().length() - 4);
+            try {
+                UUID playerId = UUID.fromString(playerIdStr);
+                FileConfiguration config = YamlConfiguration.loadConfiguration(shardFile);
+                List<Mailbox.MailboxItem> items = readItems(config.getConfigurationSection("items"));
+                if (!items.isEmpty()) {
+                    mailboxes.put(playerId, items);
+                }
+            } catch (Exception e) {
+                plugin.getLogger().warning("邮箱数据加载失败: " + playerIdStr);
+            }
+        }
+        
+        return mailboxes;
+    }
+    
+    private void migrateLegacyFile(Map<UUID, List<Mailbox.MailboxItem>> mailboxes) {
+        plugin.getLogger().info("检测到旧版邮箱文件，正在迁移为按玩家分片存储...");
+        FileConfiguration config = YamlConfiguration.loadConfiguration(legacyFile);
+        
+        for (String playerIdStr : config.getKeys(false)) {
+            try {
+                UUID playerId = UUID.fromString(playerIdStr);
+                List<Mailbox.MailboxItem> items = readItems(config.getConfigurationSection(playerIdStr + ".items"));
+                if (!items.isEmpty()) {
+                    mailboxes.put(playerId, items);
+                }
+            } catch (Exception e) {
+                plugin.getLogger().warning("邮箱数据加载失败: " + playerIdStr);
+            }
+        }
+        
+        shardFolder.mkdirs();
+        for (Map.Entry<UUID, List<Mailbox.MailboxItem>> entry : mailboxes.entrySet()) {
+            try {
+                writeShard(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                plugin.getLogger().severe("保存邮箱数据失败: " + entry.getKey() + " - " + e.getMessage());
+            }
+        }
+        
+        File migratedFile = new File(plugin.getDataFolder(), "mailbox.yml.migrated");
+        if (legacyFile.renameTo(migratedFile)) {
+            plugin.getLogger().info("邮箱迁移完成，共 " + mailboxes.size() + " 个邮箱，旧文件已重命名为 mailbox.yml.migrated");
+        } else {
+            plugin.getLogger().warning("邮箱迁移完成，但无法重命名旧版 mailbox.yml");
+        }
+    }
+    
+    /**
+     * 写入单个玩家的邮箱分片（写入线程、日志线程或启动迁移时调用）
+     * 落盘后再替换，日志压缩之后分片就是唯一的副本
+     */
+    private void writeShard(UUID playerId, List<Mailbox.MailboxItem> items) throws IOException {
+        File shardFile = new File(shardFolder, playerId + ".yml");
+        if (items.isEmpty()) {
+            Files.deleteIfExists(shardFile.toPath());
+            return;
+        }
+        
+        FileConfiguration config = new YamlConfiguration();
+        for (int i = 0; i < items.size(); i++) {
+            writeItem(config, "items." + i, items.get(i));
+        }
+        
+        // 先写临时文件再替换，避免写到一半损坏分片
+        shardFolder.mkdirs();
+        File tempFile = new File(shardFolder, playerId + ".yml.tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(config.saveToString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), shardFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    private void writeItem(FileConfiguration config, String itemPath, Mailbox.MailboxItem item) {
+        // 保存ID，日志回放时按ID判断是否已投递或已领取
+        config.set(itemPath + ".id", item.getId().toString());
+        config.set(itemPath + ".item", serializeItemStack(item.getItem()));
+        config.set(itemPath + ".money", item.getMoney());
+        config.set(itemPath + ".isRemoved", item.isRemovedItem());
+        config.set(itemPath + ".isSent", item.isSentItem());
+        config.set(itemPath + ".sender", item.getSenderName());
+        
+        Mailbox.TransactionRecord record = item.getRecord();
+        if (record != null) {
+            config.set(itemPath + ".record.itemName", record.getItemName());
+            config.set(itemPath + ".record.amount", record.getAmount());
+            config.set(itemPath + ".record.sellPrice", record.getSellPrice());
+            config.set(itemPath + ".record.tax", record.getTax());
+            config.set(itemPath + ".record.actualIncome", record.getActualIncome());
+            config.set(itemPath + ".record.timestamp", record.getTimestamp());
+        }
+    }
+    
+    private List<Mailbox.MailboxItem> readItems(ConfigurationSection section) {
+        List<Mailbox.MailboxItem> items = new ArrayList<>();
+        if (section == null) {
+            return items;
+        }
+        
+        for (String itemKey : section.getKeys(false)) {
+            ConfigurationSection itemSection = section.getConfigurationSection(itemKey);
+            if (itemSection == null) {
+                continue;
+            }
+            
+            ItemStack item = deserializeItemStack(itemSection.getString("item"));
+            double money = itemSection.getDouble("money");
+            Mailbox.TransactionRecord record = null;
+            if (itemSection.contains("record")) {
+                record = new Mailbox.TransactionRecord(
+                    itemSection.getString("record.itemName"),
+                    itemSection.getInt("record.amount"),
+                    itemSection.getDouble("record.sellPrice"),
+                    itemSection.getDouble("record.tax"),
+                    itemSection.getDouble("record.actualIncome"),
+                    itemSection.getLong("record.timestamp")
+                );
+            }
+            
+            // 卖家收款条目没有物品，只有资金和交易记录，也需要保留
+            if (item == null && money <= 0 && record == null) {
+                continue;
+            }
+            
+            String id = itemSection.getString("id");
+            Mailbox.MailboxItem mailboxItem = id != null
+                ? new Mailbox.MailboxItem(UUID.fromString(id), item, money, record)
+                : new Mailbox.MailboxItem(item, money, record);
+            mailboxItem.setRemovedItem(itemSection.getBoolean("isRemoved"));
+            mailboxItem.setSentItem(itemSection.getBoolean("isSent"));
+            mailboxItem.setSenderName(itemSection.getString("sender"));
+            items.add(mailboxItem);
+        }
+        
+        return items;
+    }
+    
+    /**
+     * 序列化物品为Base64字符串
+     */
+    private String serializeItemStack(ItemStack item) {
+        try {
+            return ItemCodec.encodeToText(item);
+        } catch (Exception e) {
+            plugin.getLogger().severe("物品序列化失败");
+            return null;
+        }
+    }
+    
+    /**
+     * 反序列化Base64字符串为物品（兼容旧版数据）
+     */
+    private ItemStack deserializeItemStack(String base64) {
+        try {
+            return ItemCodec.decodeText(base64);
+        } catch (Exception e) {
+            plugin.getLogger().severe("物品反序列化失败");
+            return null;
+        }
+    }
+}
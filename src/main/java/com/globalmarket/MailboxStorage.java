@@ -0,0 +1,73 @@
+package com.globalmarket;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 邮箱持久化后端
+ * 邮箱内容常驻内存，后端只负责在投递和领取时记录对应的变更；
+ * 写入可能在后台线程执行，返回的 future 都在主线程完成
+ */
+public interface MailboxStorage {
+    
+    /**
+     * 加载所有玩家的邮箱
+     */
+    Map<UUID, List<Mailbox.MailboxItem>> loadAll();
+    
+    /**
+     * 启动后台保存任务（如有）
+     */
+    void start(Mailbox mailbox);
+    
+    /**
+     * 新物品投递到邮箱后调用，结果不为 SAVED 时物品可能只存在于内存中
+     */
+    CompletableFuture<SaveResult> itemAdded(UUID playerId, Mailbox.MailboxItem item);
+    
+    /**
+     * 领取物品前调用，只有结果为 CLAIMED 时才能发放物品
+     */
+    CompletableFuture<ClaimResult> itemClaimed(UUID playerId, Mailbox.MailboxItem item);
+    
+    /**
+     * 调用方已在自己的事务或日志中写入该玩家邮箱的变更后调用，只需同步存储自己保存的副本
+     */
+    void itemsCommitted(UUID playerId);
+    
+    /**
+     * 立即保存尚未写回的变更
+     */
+    void flush(Mailbox mailbox);
+    
+    /**
+     * 保存剩余变更并释放资源
+     */
+    void close(Mailbox mailbox);
+    
+    /**
+     * 保存结果
+     */
+    enum SaveResult {
+        // 已写入存储
+        SAVED,
+        // 确定没有写入，可以重试
+        NOT_SAVED,
+        // 写入中途出错，可能已经写入，不能重试，领取时以存储中的状态为准
+        UNKNOWN
+    }
+    
+    /**
+     * 领取结果
+     */
+    enum ClaimResult {
+        // 已在存储中认领，可以发放
+        CLAIMED,
+        // 已在别处领取，不应再发放
+        ALREADY_CLAIMED,
+        // 存储出错，物品仍在存储中，应保留并稍后重试
+        FAILED
+    }
+}
@@ -0,0 +1,226 @@
+package com.globalmarket;
+
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 维护任务调度器
+ * 过期清理、邮箱保存、数据核对等维护工作拆成可中断的小片，每 tick 只在配置的毫秒预算内轮流执行，
+ * 未完成的任务留到下一 tick 继续，避免一次做完造成卡顿
+ */
+public class MaintenanceScheduler {
+    
+    /**
+     * 可分片执行的维护工作
+     */
+    @FunctionalInterface
+    public interface Job {
+        /**
+         * 执行一小片工作，返回 true 表示已全部完成
+         */
+        boolean runSlice();
+    }
+    
+    private static final long REPORT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    
+    private final GlobalMarket plugin;
+    private final Deque<Entry> queue = new ArrayDeque<>();
+    private final List<Repeating> repeatingJobs = new ArrayList<>();
+    private long budgetNanos;
+    private BukkitTask tickTask;
+    private long tickCount;
+    
+    // 统计信息，定期输出到日志
+    private long overrunTicks;
+    private long slowestSliceNanos;
+    private String slowestJob;
+    private int maxQueueDepth;
+    private long lastReportTime = System.currentTimeMillis();
+    
+    public MaintenanceScheduler(GlobalMarket plugin) {
+        this.plugin = plugin;
+        configure();
+    }
+    
+    /**
+     * 读取每 tick 的时间预算（毫秒）
+     */
+    public void configure() {
+        double budgetMillis = Math.max(0.1, plugin.getConfig().getDouble("maintenance.tick-budget-ms", 5.0));
+        budgetNanos = (long) (budgetMillis * 1_000_000);
+    }
+    
+    public void start() {
+        if (tickTask == null) {
+            tickTask = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+        }
+    }
+    
+    /**
+     * 停止调度，队列中剩余的任务由调用方在关闭时自行保存
+     */
+    public void close() {
+        if (tickTask != null) {
+            tickTask.cancel();
+            tickTask = null;
+        }
+        queue.clear();
+        repeatingJobs.clear();
+    }
+    
+    /**
+     * 提交一次性任务
+     */
+    public void submit(String name, Job job) {
+        queue.addLast(new Entry(name, job, null));
+        maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+    }
+    
+    /**
+     * 注册周期任务，每隔 intervalTicks 由 factory 创建一次新的工作；上一次还没做完时跳过本次
+     */
+    public void scheduleRepeating(String name, long intervalTicks, Supplier<Job> factory) {
+        repeatingJobs.add(new Repeating(name, Math.max(1, intervalTicks), factory));
+    }
+    
+    /**
+     * 取消同名的周期任务
+     */
+    public void cancelRepeating(String name) {
+        repeatingJobs.removeIf(repeating -> repeating.name.equals(name));
+    }
+    
+    public int getQueueDepth() {
+        return queue.size();
+    }
+    
+    public long getOverrunTicks() {
+        return overrunTicks;
+    }
+    
+    private void tick() {
+        tickCount++;
+        for (Repeating repeating : repeatingJobs) {
+            if (!repeating.pending && tickCount % repeating.intervalTicks == 0) {
+                repeating.pending = true;
+                submitRepeating(repeating);
+            }
+        }
+        
+        if (!queue.isEmpty()) {
+            runQueue();
+        }
+        report();
+    }
+    
+    private void submitRepeating(Repeating repeating) {
+        Job job;
+        try {
+            job = repeating.factory.get();
+        } catch (Exception e) {
+            repeating.pending = false;
+            plugin.getLogger().severe("维护任务创建失败: " + repeating.name + " - " + e.getMessage());
+            e.printStackTrace();
+            return;
+        }
+        queue.addLast(new Entry(repeating.name, job, repeating));
+        maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+    }
+    
+    /**
+     * 在预算内轮流执行各任务的分片，每个分片执行后排到队尾
+     */
+    private void runQueue() {
+        long start = System.nanoTime();
+        long deadline = start + budgetNanos;
+        
+        while (!queue.isEmpty() && System.nanoTime() < deadline) {
+            Entry entry = queue.pollFirst();
+            long sliceStart = System.nanoTime();
+            boolean done;
+            try {
+                done = entry.job.runSlice();
+            } catch (Exception e) {
+                plugin.getLogger().severe("维护任务执行失败: " + entry.name + " - " + e.getMessage());
+                e.printStackTrace();
+                done = true;
+            }
+            
+            long sliceNanos = System.nanoTime() - sliceStart;
+            if (sliceNanos > slowestSliceNanos) {
+                slowestSliceNanos = sliceNanos;
+                slowestJob = entry.name;
+            }
+            
+            if (done) {
+                if (entry.repeating != null) {
+                    entry.repeating.pending = false;
+                }
+            } else {
+                queue.addLast(entry);
+            }
+        }
+        
+        if (System.nanoTime() - start > budgetNanos) {
+            overrunTicks++;
+        }
+    }
+    
+    /**
+     * 定期输出超出预算的次数和队列深度
+     */
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - lastReportTime < REPORT_INTERVAL_MILLIS) {
+            return;
+        }
+        lastReportTime = now;
+        
+        if (overrunTicks > 0) {
+            plugin.getLogger().warning(String.format("维护任务在过去5分钟内有 %d 个tick超出预算 (%.1fms)，最慢分片: %s %.2fms，最大队列深度: %d，当前队列深度: %d",
+                overrunTicks,
+                budgetNanos / 1_000_000.0,
+                slowestJob,
+                slowestSliceNanos / 1_000_000.0,
+                maxQueueDepth,
+                queue.size()
+            ));
+        }
+        overrunTicks = 0;
+        slowestSliceNanos = 0;
+        slowestJob = null;
+        maxQueueDepth = queue.size();
+    }
+    
+    private static final class Entry {
+        private final String name;
+        private final Job job;
+        private final Repeating repeating;
+        
+        private Entry(String name, Job job, Repeating repeating) {
+            this.name = name;
+            this.job = job;
+            this.repeating = repeating;
+        }
+    }
+    
+    private static final class Repeating {
+        private final String name;
+        private final long intervalTicks;
+        private final Supplier<Job> factory;
+        private boolean pending;
+        
+        private Repeating(String name, long intervalTicks, Supplier<Job> factory) {
+            this.name = name;
+            this.intervalTicks = intervalTicks;
+            this.factory = factory;
+        }
+    }
+}
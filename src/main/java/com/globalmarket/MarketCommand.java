@@ -1,14 +1,18 @@
 package com.globalmarket;
 
 import org.bukkit.ChatColor;
+import org.bukkit.Material;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabExecutor;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
 import com.globalmarket.util.AntiDuplicationManager;
@@ -66,6 +70,24 @@ public class MarketCommand implements TabExecutor {
             case "search":
                 handleSearchCommand(player, args);
                 break;
+            case "buy":
+                handleBuyCommand(player, args);
+                break;
+            case "bid":
+                handleBidCommand(player, args);
+                break;
+            case "bids":
+                handleBidsCommand(player);
+                break;
+            case "cancelbid":
+                handleCancelBidCommand(player, args);
+                break;
+            case "history":
+                handleHistoryCommand(player, args);
+                break;
+            case "stats":
+                handleStatsCommand(player, args);
+                break;
             case "reload":
                 handleReloadCommand(player);
                 break;
@@ -336,7 +358,12 @@ public class MarketCommand implements TabExecutor {
         }
         
         // 添加到目标玩家的邮箱
-        plugin.getMarketManager().getMailbox().addSentItemToMailbox(targetPlayer.getUniqueId(), sendItem, player.getName());
+        plugin.getMarketManager().getMailbox().addSentItemToMailbox(targetPlayer.getUniqueId(), sendItem, player.getName())
+            .thenAccept(saved -> {
+                if (!saved && player.isOnline()) {
+                    player.sendMessage(ChatColor.YELLOW + "邮件暂时未能保存到数据库，将自动重试，请提醒对方尽快领取");
+                }
+            });
         
         String itemName = sendItem.getType().name();
         player.sendMessage(ChatColor.GREEN + "成功将 " + sendAmount + " 个 " + itemName + " 发送给 " + targetPlayer.getName() + "!");
@@ -378,6 +405,238 @@ public class MarketCommand implements TabExecutor {
         }
     }
 
+    private void handleBuyCommand(Player player, String[] args) {
+        if (!player.hasPermission("globalmarket.buy")) {
+            player.sendMessage(ChatColor.RED + "你没有权限执行此命令!");
+            return;
+        }
+        if (args.length < 3) {
+            player.sendMessage(ChatColor.RED + "用法: /market buy <物品> <数量> [最高单价]");
+            player.sendMessage(ChatColor.GRAY + "示例: /market buy iron_ingot 640 2.5");
+            return;
+        }
+        
+        Material material = Material.matchMaterial(args[1]);
+        if (material == null || material.isAir()) {
+            player.sendMessage(ChatColor.RED + "无效的物品类型: " + args[1]);
+            return;
+        }
+        
+        int quantity;
+        double maxUnitPrice = Double.MAX_VALUE;
+        try {
+            quantity = Integer.parseInt(args[2]);
+            if (args.length >= 4) {
+                maxUnitPrice = Double.parseDouble(args[3]);
+            }
+        } catch (NumberFormatException e) {
+            player.sendMessage(ChatColor.RED + "请输入有效的数字!");
+            return;
+        }
+        if (quantity <= 0 || maxUnitPrice <= 0) {
+            player.sendMessage(ChatColor.RED + "数量和单价必须大于0!");
+            return;
+        }
+        
+        plugin.getMarketManager().bulkPurchase(player, material, quantity, maxUnitPrice);
+    }
+    
+    private void handleBidCommand(Player player, String[] args) {
+        if (!player.hasPermission("globalmarket.buy")) {
+            player.sendMessage(ChatColor.RED + "你没有权限执行此命令!");
+            return;
+        }
+        if (args.length < 4) {
+            player.sendMessage(ChatColor.RED + "用法: /market bid <物品> <数量> <最高单价>");
+            player.sendMessage(ChatColor.GRAY + "示例: /market bid diamond 64 80");
+            return;
+        }
+        
+        Material material = Material.matchMaterial(args[1]);
+        if (material == null || material.isAir()) {
+            player.sendMessage(ChatColor.RED + "无效的物品类型: " + args[1]);
+            return;
+        }
+        
+        int quantity;
+        double maxUnitPrice;
+        try {
+            quantity = Integer.parseInt(args[2]);
+            maxUnitPrice = Double.parseDouble(args[3]);
+        } catch (NumberFormatException e) {
+            player.sendMessage(ChatColor.RED + "请输入有效的数字!");
+            return;
+        }
+        if (quantity <= 0 || maxUnitPrice <= 0) {
+            player.sendMessage(ChatColor.RED + "数量和单价必须大于0!");
+            return;
+        }
+        
+        plugin.getMarketManager().getBuyOrderManager().placeOrder(player, material, quantity, maxUnitPrice);
+    }
+    
+    private void handleBidsCommand(Player player) {
+        if (!player.hasPermission("globalmarket.buy")) {
+            player.sendMessage(ChatColor.RED + "你没有权限执行此命令!");
+            return;
+        }
+        
+        List<BuyOrder> orders = plugin.getMarketManager().getBuyOrderManager().getOrders(player.getUniqueId());
+        if (orders.isEmpty()) {
+            player.sendMessage(ChatColor.YELLOW + "你没有未成交的求购单");
+            return;
+        }
+        player.sendMessage(ChatColor.GOLD + "=== 我的求购单 ===");
+        for (BuyOrder order : orders) {
+            player.sendMessage(ChatColor.GRAY + order.getOrderId().toString().substring(0, 8) + " "
+                + ChatColor.WHITE + order.getMaterial().name() + " x" + order.getQuantity()
+                + ChatColor.GREEN + " 最高单价: " + plugin.getEconomyManager().formatCurrency(order.getMaxUnitPrice()));
+        }
+        player.sendMessage(ChatColor.GRAY + "使用 /market cancelbid <ID> 撤销求购单");
+    }
+    
+    private void handleCancelBidCommand(Player player, String[] args) {
+        if (!player.hasPermission("globalmarket.buy")) {
+            player.sendMessage(ChatColor.RED + "你没有权限执行此命令!");
+            return;
+        }
+        if (args.length < 2) {
+            player.sendMessage(ChatColor.RED + "用法: /market cancelbid <ID>");
+            return;
+        }
+        
+        plugin.getMarketManager().getBuyOrderManager().cancelOrder(player, args[1]);
+    }
+    
+    private void handleHistoryCommand(Player player, String[] args) {
+        if (!player.hasPermission("globalmarket.use")) {
+            player.sendMessage(ChatColor.RED + "你没有权限执行此命令!");
+            return;
+        }
+        if (args.length < 2) {
+            player.sendMessage(ChatColor.RED + "用法: /market history <物品> [minute|hour|day] [数量]");
+            player.sendMessage(ChatColor.GRAY + "示例: /market history netherite_ingot day 7");
+            return;
+        }
+        
+        Material material = Material.matchMaterial(args[1]);
+        if (material == null || material.isAir()) {
+            player.sendMessage(ChatColor.RED + "无效的物品类型: " + args[1]);
+            return;
+        }
+        
+        PriceHistory.Resolution resolution = PriceHistory.Resolution.HOUR;
+        int count = 12;
+        try {
+            if (args.length >= 3) {
+                resolution = PriceHistory.Resolution.valueOf(args[2].toUpperCase(Locale.ROOT));
+            }
+            if (args.length >= 4) {
+                count = Math.max(1, Math.min(60, Integer.parseInt(args[3])));
+            }
+        } catch (IllegalArgumentException e) {
+            player.sendMessage(ChatColor.RED + "用法: /market history <物品> [minute|hour|day] [数量]");
+            return;
+        }
+        
+        PriceHistory history = plugin.getPriceHistory();
+        List<PriceHistory.Candle> candles = history.getRecentCandles(material, resolution, count);
+        if (candles.isEmpty()) {
+            player.sendMessage(ChatColor.YELLOW + "最近 " + count + " " + resolution.getDisplayName() + "内没有 " + material.name() + " 的成交记录");
+            return;
+        }
+        
+        EconomyManager economy = plugin.getEconomyManager();
+        SimpleDateFormat format = new SimpleDateFormat(resolution == PriceHistory.Resolution.DAY ? "MM-dd" : "MM-dd HH:mm");
+        player.sendMessage(ChatColor.GOLD + "=== " + material.name() + " 成交历史 (每" + resolution.getDisplayName() + ") ===");
+        player.sendMessage(ChatColor.GRAY + "时间 | 开 高 低 收 | 成交量 | 均价");
+        for (PriceHistory.Candle candle : candles) {
+            player.sendMessage(ChatColor.WHITE + format.format(new Date(candle.getStart())) + ChatColor.GRAY + " | "
+                + ChatColor.WHITE + economy.formatCurrency(candle.getOpen()) + " "
+                + ChatColor.GREEN + economy.formatCurrency(candle.getHigh()) + " "
+                + ChatColor.RED + economy.formatCurrency(candle.getLow()) + " "
+                + ChatColor.WHITE + economy.formatCurrency(candle.getClose()) + ChatColor.GRAY + " | "
+                + ChatColor.AQUA + candle.getVolume() + ChatColor.GRAY + " | "
+                + ChatColor.YELLOW + economy.formatCurrency(candle.getVwap()));
+        }
+        
+        PriceHistory.Candle total = PriceHistory.merge(candles);
+        player.sendMessage(ChatColor.GOLD + "合计成交: " + total.getVolume() + " 个 (" + total.getTrades() + " 笔)"
+            + " 均价: " + economy.formatCurrency(total.getVwap()));
+        sendLocalTradeNote(player);
+    }
+    
+    /**
+     * 成交数据只来自本服完成的交易，多服务器共享数据库时提示玩家数据范围
+     */
+    private void sendLocalTradeNote(Player player) {
+        if (plugin.getMarketManager().isDatabaseEnabled()) {
+            player.sendMessage(ChatColor.GRAY + "注: 成交数据仅统计本服务器完成的交易");
+        }
+    }
+    
+    private void handleStatsCommand(Player player, String[] args) {
+        if (!player.hasPermission("globalmarket.use")) {
+            player.sendMessage(ChatColor.RED + "你没有权限执行此命令!");
+            return;
+        }
+        
+        MarketStatistics stats = plugin.getMarketStatistics();
+        EconomyManager economy = plugin.getEconomyManager();
+        if (args.length >= 2) {
+            Material material = Material.matchMaterial(args[1]);
+            if (material == null || material.isAir()) {
+                player.sendMessage(ChatColor.RED + "无效的物品类型: " + args[1]);
+                return;
+            }
+            
+            player.sendMessage(ChatColor.GOLD + "=== " + material.name() + " 市场统计 ===");
+            MarketStatistics.MaterialStats materialStats = stats.getMaterialStats(material);
+            if (materialStats == null) {
+                player.sendMessage(ChatColor.GRAY + "暂无上架");
+            } else {
+                player.sendMessage(ChatColor.WHITE + "上架数: " + materialStats.getListings()
+                    + " 在售总数: " + materialStats.getQuantity()
+                    + " 总价值: " + economy.formatCurrency(materialStats.getValue()));
+            }
+            MarketListing bestAsk = plugin.getMarketManager().getBestAsk(material);
+            if (bestAsk != null) {
+                player.sendMessage(ChatColor.GREEN + "最低单价: " + economy.formatCurrency(bestAsk.getUnitPrice()));
+            }
+            BuyOrder bestBid = plugin.getMarketManager().getBuyOrderManager().getBestBid(material);
+            if (bestBid != null) {
+                player.sendMessage(ChatColor.AQUA + "最高求购单价: " + economy.formatCurrency(bestBid.getMaxUnitPrice()));
+            }
+            PriceHistory.Candle day = PriceHistory.merge(
+                plugin.getPriceHistory().getRecentCandles(material, PriceHistory.Resolution.HOUR, 24));
+            if (day != null) {
+                player.sendMessage(ChatColor.YELLOW + "24小时成交: " + day.getVolume() + " 个 均价: " + economy.formatCurrency(day.getVwap()));
+            }
+            sendLocalTradeNote(player);
+            return;
+        }
+        
+        player.sendMessage(ChatColor.GOLD + "=== 市场统计 ===");
+        player.sendMessage(ChatColor.WHITE + "上架数: " + stats.getTotalListings()
+            + " 物品种类: " + stats.getMaterialStats().size()
+            + " 在售总数: " + stats.getTotalItemsListed());
+        player.sendMessage(ChatColor.WHITE + "上架总价值: " + economy.formatCurrency(stats.getTotalValueListed()));
+        player.sendMessage(ChatColor.YELLOW + "24小时成交: " + stats.getTrades24h() + " 笔 " + stats.getVolume24h() + " 个"
+            + " 成交额: " + economy.formatCurrency(stats.getTurnover24h()));
+        
+        List<Map.Entry<UUID, Double>> topSellers = stats.getTopSellers(5);
+        if (!topSellers.isEmpty()) {
+            player.sendMessage(ChatColor.GOLD + "24小时成交额最高的卖家:");
+            int rank = 1;
+            for (Map.Entry<UUID, Double> entry : topSellers) {
+                player.sendMessage(ChatColor.GRAY + "" + rank++ + ". " + ChatColor.WHITE
+                    + plugin.getPlayerNameCache().getDisplayName(entry.getKey())
+                    + ChatColor.GREEN + " " + economy.formatCurrency(entry.getValue()));
+            }
+        }
+        sendLocalTradeNote(player);
+    }
+    
     private void showHelp(Player player) {
         player.sendMessage(ChatColor.GOLD + "=== GlobalMarket 帮助 ===");
         player.sendMessage(ChatColor.YELLOW + "/market create <总价> [数量]" + ChatColor.WHITE + " - 创建上架物品");
@@ -385,6 +644,12 @@ public class MarketCommand implements TabExecutor {
         player.sendMessage(ChatColor.YELLOW + "/market mail" + ChatColor.WHITE + " - 打开邮箱管理物品");
         player.sendMessage(ChatColor.YELLOW + "/market send <玩家> [数量]" + ChatColor.WHITE + " - 邮寄物品到玩家邮箱");
         player.sendMessage(ChatColor.YELLOW + "/market search <i:物品名|p:玩家名>" + ChatColor.WHITE + " - 搜索特定物品或玩家上架");
+        player.sendMessage(ChatColor.YELLOW + "/market buy <物品> <数量> [最高单价]" + ChatColor.WHITE + " - 从最低价开始批量购买");
+        player.sendMessage(ChatColor.YELLOW + "/market bid <物品> <数量> <最高单价>" + ChatColor.WHITE + " - 挂出求购单，有人上架时自动成交");
+        player.sendMessage(ChatColor.YELLOW + "/market bids" + ChatColor.WHITE + " - 查看我的求购单");
+        player.sendMessage(ChatColor.YELLOW + "/market cancelbid <ID>" + ChatColor.WHITE + " - 撤销求购单并退还托管金币");
+        player.sendMessage(ChatColor.YELLOW + "/market history <物品> [minute|hour|day] [数量]" + ChatColor.WHITE + " - 查看成交价格历史");
+        player.sendMessage(ChatColor.YELLOW + "/market stats [物品]" + ChatColor.WHITE + " - 查看市场统计");
         
         player.sendMessage("");
         player.sendMessage(ChatColor.GOLD + "=== 现代化功能 ===");
@@ -413,6 +678,12 @@ public class MarketCommand implements TabExecutor {
             completions.add("mail");
             completions.add("send");
             completions.add("search");
+            completions.add("buy");
+            completions.add("bid");
+            completions.add("bids");
+            completions.add("cancelbid");
+            completions.add("history");
+            completions.add("stats");
             
             if (sender.hasPermission("globalmarket.reload")) {
                 completions.add("reload");
@@ -422,6 +693,20 @@ public class MarketCommand implements TabExecutor {
             for (Player player : plugin.getServer().getOnlinePlayers()) {
                 completions.add(player.getName());
             }
+        } else if (args.length == 2 && (args[0].equalsIgnoreCase("buy") || args[0].equalsIgnoreCase("bid") || args[0].equalsIgnoreCase("history") || args[0].equalsIgnoreCase("stats")) && sender instanceof Player) {
+            // 提供手持物品的类型
+            ItemStack itemInHand = ((Player) sender).getInventory().getItemInMainHand();
+            if (itemInHand != null && !itemInHand.getType().isAir()) {
+                completions.add(itemInHand.getType().name().toLowerCase());
+            }
+        } else if (args.length == 3 && args[0].equalsIgnoreCase("history")) {
+            completions.add("minute");
+            completions.add("hour");
+            completions.add("day");
+        } else if (args.length == 2 && args[0].equalsIgnoreCase("cancelbid") && sender instanceof Player) {
+            for (BuyOrder order : plugin.getMarketManager().getBuyOrderManager().getOrders(((Player) sender).getUniqueId())) {
+                completions.add(order.getOrderId().toString().substring(0, 8));
+            }
         } else if (args.length == 2 && args[0].equalsIgnoreCase("search")) {
             String currentArg = args[1];
             
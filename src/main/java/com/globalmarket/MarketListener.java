@@ -20,6 +20,7 @@ public class MarketListener implements Listener {
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
         Player player = event.getPlayer();
+        plugin.getPlayerNameCache().remember(player.getUniqueId(), player.getName());
         
         // 延迟1秒后检查邮箱，确保玩家完全登录
         plugin.getServer().getScheduler().runTaskLater(plugin, () -> {
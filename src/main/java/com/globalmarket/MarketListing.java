@@ -1,12 +1,11 @@
 package com.globalmarket;
 
+import com.globalmarket.util.ItemCodec;
+import com.globalmarket.util.ItemStackCache;
+import org.bukkit.Material;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.util.io.BukkitObjectInputStream;
-import org.bukkit.util.io.BukkitObjectOutputStream;
-import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
+import org.bukkit.inventory.meta.ItemMeta;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.Serializable;
 import java.util.UUID;
 
@@ -14,25 +13,46 @@ public class MarketListing implements Serializable {
     
     private final UUID listingId;
     private final UUID sellerId;
-    private final String itemBase64;
+    private final byte[] itemData;
     private final double price;
     private final long createdAt;
     
+    // 创建时解析的物品摘要，筛选和排序不需要解码物品
+    private final Material material;
+    private final int amount;
+    private final String displayName;
+    
     public MarketListing(UUID listingId, UUID sellerId, ItemStack item, double price, long createdAt) {
         this.listingId = listingId;
         this.sellerId = sellerId;
-        this.itemBase64 = item != null ? itemStackToBase64(item) : null;
+        this.itemData = item != null ? ItemCodec.encode(item) : null;
         this.price = price;
         this.createdAt = createdAt;
+        
+        this.material = item != null ? item.getType() : Material.AIR;
+        this.amount = item != null ? item.getAmount() : 0;
+        this.displayName = readDisplayName(item);
+        cacheTemplate(item != null ? item.clone() : null);
     }
     
-    // 用于从存储加载的构造函数
-    public MarketListing(UUID listingId, UUID sellerId, String itemBase64, double price, long createdAt) {
+    // 用于从数据库加载的构造函数（旧格式数据会被转换为当前格式）
+    public MarketListing(UUID listingId, UUID sellerId, byte[] itemData, double price, long createdAt) {
         this.listingId = listingId;
         this.sellerId = sellerId;
-        this.itemBase64 = itemBase64;
+        this.itemData = ItemCodec.upgrade(itemData);
         this.price = price;
         this.createdAt = createdAt;
+        
+        ItemStack item = ItemCodec.decode(this.itemData);
+        this.material = item != null ? item.getType() : Material.AIR;
+        this.amount = item != null ? item.getAmount() : 0;
+        this.displayName = readDisplayName(item);
+        cacheTemplate(item);
+    }
+    
+    // 用于从YAML存储加载的构造函数
+    public MarketListing(UUID listingId, UUID sellerId, String itemBase64, double price, long createdAt) {
+        this(listingId, sellerId, ItemCodec.fromText(itemBase64), price, createdAt);
     }
     
     public UUID getListingId() {
@@ -43,41 +63,99 @@ public class MarketListing implements Serializable {
         return sellerId;
     }
     
+    /**
+     * 获取物品副本，优先从缓存的模板克隆，未命中时才解码
+     */
     public ItemStack getItem() {
-        return itemStackFromBase64(itemBase64);
+        ItemStack template = ItemStackCache.get(listingId, itemData);
+        if (template == null) {
+            template = ItemCodec.decode(itemData);
+            cacheTemplate(template);
+        }
+        return template != null ? template.clone() : null;
+    }
+    
+    public Material getMaterial() {
+        return material;
+    }
+    
+    public int getAmount() {
+        return amount;
+    }
+    
+    /**
+     * 物品自定义名称，没有时为 null
+     */
+    public String getDisplayName() {
+        return displayName;
     }
     
     public double getPrice() {
         return price;
     }
     
+    /**
+     * 每个物品的单价
+     */
+    public double getUnitPrice() {
+        return amount > 0 ? price / amount : price;
+    }
+    
     public long getCreatedAt() {
         return createdAt;
     }
     
+    /**
+     * 买下其中 amount 个的价格：按单价计算后向上取整到分，买下全部时为总价
+     */
+    public double priceOf(int amount) {
+        if (amount >= this.amount) {
+            return price;
+        }
+        // 先去掉浮点误差再取整，正好是整分的金额不会多收一分
+        return amount > 0 ? Math.ceil(Math.round(getUnitPrice() * amount * 1000000) / 10000.0) / 100.0 : 0;
+    }
+    
+    /**
+     * 部分购买后剩余的上架：ID、卖家和上架时间不变，总价为原价减去买下部分的价格；
+     * 买下部分或剩余部分不足一分时不能拆分，返回 null
+     */
+    public MarketListing withAmount(int remaining) {
+        if (remaining <= 0 || remaining >= amount) {
+            return null;
+        }
+        double boughtPrice = priceOf(amount - remaining);
+        double remainingPrice = Math.round((price - boughtPrice) * 100) / 100.0;
+        if (boughtPrice <= 0 || remainingPrice <= 0) {
+            return null;
+        }
+        ItemStack item = getItem();
+        item.setAmount(remaining);
+        return new MarketListing(listingId, sellerId, item, remainingPrice, createdAt);
+    }
+    
+    /**
+     * 编码后的物品数据（只读，不要修改返回的数组）
+     */
+    public byte[] getItemData() {
+        return itemData;
+    }
+    
     public String getItemBase64() {
-        return itemBase64;
-    }
-    
-    private static String itemStackToBase64(ItemStack item) {
-        try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            BukkitObjectOutputStream dataOutput = new BukkitObjectOutputStream(outputStream);
-            dataOutput.writeObject(item);
-            dataOutput.close();
-            return Base64Coder.encodeLines(outputStream.toByteArray());
-        } catch (Exception e) {
-            throw new IllegalStateException("无法将物品转换为Base64", e);
+        return ItemCodec.toText(itemData);
+    }
+    
+    private void cacheTemplate(ItemStack template) {
+        if (template != null && itemData != null) {
+            ItemStackCache.put(listingId, itemData, template);
         }
     }
     
-    private static ItemStack itemStackFromBase64(String data) {
-        try {
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(Base64Coder.decodeLines(data));
-            BukkitObjectInputStream dataInput = new BukkitObjectInputStream(inputStream);
-            return (ItemStack) dataInput.readObject();
-        } catch (Exception e) {
-            throw new IllegalStateException("无法从Base64转换物品", e);
+    private static String readDisplayName(ItemStack item) {
+        if (item == null || !item.hasItemMeta()) {
+            return null;
         }
+        ItemMeta meta = item.getItemMeta();
+        return meta != null && meta.hasDisplayName() ? meta.getDisplayName() : null;
     }
-}
\ No newline at end of file
+}
@@ -1,9 +1,8 @@
 package com.globalmarket;
 
-import org.bukkit.Bukkit;
+import com.globalmarket.util.ItemStackCache;
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
@@ -12,28 +11,39 @@ import org.bukkit.inventory.ItemStack;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public class MarketManager {
     
     private final GlobalMarket plugin;
     private final File dataFile;
     private FileConfiguration dataConfig;
-    private final Map<UUID, MarketListing> listings;
+    private final ListingIndex listings;
     private final DatabaseManager databaseManager;
     private final DatabaseStorage databaseStorage;
+    private final AsyncDatabaseStorage asyncStorage;
     private final Mailbox mailbox;
+    private final BuyOrderManager buyOrders;
+    private YamlListingJournal journal;
+    private ListingChangeFeed changeFeed;
+    private boolean reconciling;
     
     public MarketManager(GlobalMarket plugin) {
         this.plugin = plugin;
-        this.listings = new HashMap<>();
+        this.listings = new ListingIndex();
+        listings.setContentListener(plugin.getMarketStatistics());
 
         // 初始化数据库管理器
         this.databaseManager = new DatabaseManager(plugin);
         this.databaseStorage = new DatabaseStorage(plugin, databaseManager);
-        this.mailbox = new Mailbox(plugin);
+        this.asyncStorage = new AsyncDatabaseStorage(plugin, databaseManager, databaseStorage);
         
         // 如果数据库初始化失败，回退到YAML
         if (!databaseManager.initialize()) {
@@ -42,6 +52,12 @@ public class MarketManager {
             plugin.getLogger().info("YAML存储模式已激活");
         }
         
+        // 邮箱与市场列表使用同一存储后端
+        MailboxStorage mailboxStorage = databaseManager.isDatabaseEnabled()
+            ? new DatabaseMailboxStorage(plugin, databaseManager, asyncStorage)
+            : new MailboxShardStorage(plugin);
+        this.mailbox = new Mailbox(plugin, mailboxStorage);
+        
         // 创建数据文件夹和文件（YAML模式使用）
         if (!plugin.getDataFolder().exists()) {
             plugin.getDataFolder().mkdirs();
@@ -52,9 +68,35 @@ public class MarketManager {
         
         if (!databaseManager.isDatabaseEnabled()) {
             plugin.getLogger().info("[YAML模式] YAML存储模式已激活");
+            this.journal = new YamlListingJournal(plugin, dataFile);
+        } else {
+            // 先记下变更序号再全量加载，加载期间其他服务器的变更稍后补上
+            this.changeFeed = new ListingChangeFeed(plugin, databaseManager, databaseStorage);
+            changeFeed.markPosition();
         }
         
         loadData();
+        
+        // 日志启动失败时回退到整文件保存
+        if (journal != null && !journal.start(this)) {
+            journal = null;
+        }
+        // 邮件与上架写入同一日志，一笔交易的下架和双方邮件一起落盘
+        if (journal != null && mailboxStorage instanceof MailboxShardStorage) {
+            ((MailboxShardStorage) mailboxStorage).attachJournal(journal, mailbox);
+        }
+        
+        // 求购单与市场列表使用同一存储后端
+        this.buyOrders = new BuyOrderManager(plugin, this,
+            databaseManager.isDatabaseEnabled() ? databaseStorage : null, asyncStorage, journal);
+        
+        // 数据库模式下内存列表为权威缓存，只定期与数据库核对
+        if (databaseManager.isDatabaseEnabled()) {
+            startReconciliation();
+            changeFeed.start(this);
+        }
+        
+        startExpiry();
     }
     
     public void loadData() {
@@ -65,6 +107,14 @@ public class MarketManager {
             return;
         }
         
+        // 先读入临时表，最后一次性建立索引
+        Map<UUID, MarketListing> loaded = new HashMap<>();
+        
+        // 先让尚未落盘的日志写完，保证从磁盘读到的是最新状态
+        if (journal != null) {
+            journal.sync();
+        }
+        
         // YAML模式加载 - 使用新的结构化格式
         if (dataFile.exists()) {
             // **关键修复：重新加载文件内容，确保获取最新数据**
@@ -87,7 +137,7 @@ public class MarketManager {
                         try {
                             UUID listingId = UUID.fromString(key);
                             if (dataConfig.isConfigurationSection(key)) {
-                                loadListingFromSection(listingId, dataConfig.getConfigurationSection(key));
+                                loadListingFromSection(loaded, listingId, dataConfig.getConfigurationSection(key));
                             }
                         } catch (Exception e) {
                             plugin.getLogger().warning("市场列表加载失败: " + key);
@@ -101,12 +151,18 @@ public class MarketManager {
             // 如果是旧格式，尝试迁移数据
             if (isOldFormat) {
                 plugin.getLogger().warning("检测到旧格式数据，正在迁移...");
-                migrateOldData();
+                migrateOldData(loaded);
             }
         }
+        
+        // 在快照之上回放追加日志，恢复上次压缩之后的变更
+        if (journal != null) {
+            journal.replay(loaded, mailbox);
+        }
+        listings.putAll(loaded);
     }
     
-    private void loadListingFromSection(UUID listingId, org.bukkit.configuration.ConfigurationSection section) {
+    private void loadListingFromSection(Map<UUID, MarketListing> loaded, UUID listingId, org.bukkit.configuration.ConfigurationSection section) {
         try {
             String sellerIdStr = section.getString("seller_id");
             String itemBase64 = section.getString("item_base64");
@@ -116,14 +172,14 @@ public class MarketManager {
             if (sellerIdStr != null && itemBase64 != null) {
                 UUID sellerId = UUID.fromString(sellerIdStr);
                 MarketListing listing = new MarketListing(listingId, sellerId, itemBase64, price, createdAt);
-                listings.put(listingId, listing);
+                loaded.put(listingId, listing);
             }
         } catch (Exception e) {
             plugin.getLogger().warning("市场列表数据解析失败");
         }
     }
     
-    private void migrateOldData() {
+    private void migrateOldData(Map<UUID, MarketListing> loaded) {
         try {
             // 备份旧数据
             File backupFile = new File(plugin.getDataFolder(), "market_data_backup.yml");
@@ -131,7 +187,7 @@ public class MarketManager {
             plugin.getLogger().info("数据备份已创建");
             
             // 清空当前数据
-            listings.clear();
+            loaded.clear();
             dataConfig = YamlConfiguration.loadConfiguration(dataFile);
             
             plugin.getLogger().info("数据迁移完成");
@@ -147,6 +203,12 @@ public class MarketManager {
             return;
         }
         
+        // 日志模式下由写入线程压缩出完整快照
+        if (journal != null) {
+            journal.compact(getListingsSnapshot());
+            return;
+        }
+        
         try {
                 dataConfig = YamlConfiguration.loadConfiguration(dataFile);
                 
@@ -173,8 +235,11 @@ public class MarketManager {
     
     public void reload() {
         if (databaseManager.isDatabaseEnabled()) {
-            // 数据库模式下重新加载数据
-            loadData();
+            // 数据库模式下在后台重新加载，完成后回到主线程替换列表
+            asyncStorage.loadListings().thenAcceptAsync(loaded -> {
+                listings.clear();
+                listings.putAll(loaded);
+            }, asyncStorage.mainThread());
         } else {
             // YAML模式下重新加载
             dataConfig = YamlConfiguration.loadConfiguration(dataFile);
@@ -183,12 +248,214 @@ public class MarketManager {
     }
     
     public void close() {
+        MaintenanceScheduler scheduler = plugin.getMaintenanceScheduler();
+        scheduler.cancelRepeating("listing-expiry");
+        scheduler.cancelRepeating("listing-reconcile");
+        if (changeFeed != null) {
+            changeFeed.close();
+        }
+        buyOrders.close();
+        // 邮箱的重试写入也排在写入线程中，先于写入线程关闭
+        if (mailbox != null) {
+            mailbox.close();
+        }
+        // 等待排队中的写入完成后再关闭连接池
+        if (asyncStorage != null) {
+            asyncStorage.close();
+        }
         if (databaseManager != null) {
             databaseManager.close();
         }
+        if (journal != null) {
+            // 写入最终快照并停止日志线程
+            journal.close(getListingsSnapshot());
+            journal = null;
+        } else {
+            saveData();
+        }
+    }
+    
+    /**
+     * 定期与数据库核对内存中的上架列表
+     */
+    private void startReconciliation() {
+        long intervalTicks = plugin.getConfig().getLong("database.reconcile-interval", 300) * 20L;
+        if (intervalTicks <= 0) {
+            return;
+        }
+        plugin.getMaintenanceScheduler().scheduleRepeating("listing-reconcile", intervalTicks, () -> () -> {
+            reconcileWithDatabase();
+            return true;
+        });
+    }
+    
+    /**
+     * 后台线程查询数据库中的上架ID，只加载缺失的行，差异回到主线程合并
+     */
+    private void reconcileWithDatabase() {
+        if (reconciling) {
+            return;
+        }
+        reconciling = true;
+        
+        long modCount = listings.getModCount();
+        Set<UUID> cachedIds = new HashSet<>(listings.keySet());
+        
+        Set<UUID> stale = new HashSet<>(cachedIds);
+        
+        // 排在已提交的写入之后查询，刚上架还未落库的数据不会被误判为缺失
+        asyncStorage.supplyOrdered(() -> {
+            Map<UUID, MarketListing> missing = new HashMap<>();
+            Set<UUID> storedIds = databaseStorage.queryListingIds();
+            stale.removeAll(storedIds);
+            for (UUID listingId : storedIds) {
+                if (!cachedIds.contains(listingId)) {
+                    MarketListing listing = databaseStorage.queryListing(listingId);
+                    if (listing != null) {
+                        missing.put(listingId, listing);
+                    }
+                }
+            }
+            return missing;
+        }).whenCompleteAsync((missing, error) -> {
+            reconciling = false;
+            if (error != null) {
+                plugin.getLogger().warning("与数据库核对市场列表失败: " + error.getMessage());
+                return;
+            }
+            applyReconciliation(modCount, missing, stale);
+        }, asyncStorage.mainThread());
+    }
+    
+    private void applyReconciliation(long modCount, Map<UUID, MarketListing> missing, Set<UUID> stale) {
+        // 核对期间本服有过修改，结果可能已过期，留到下次核对
+        if (listings.getModCount() != modCount) {
+            return;
+        }
+        if (missing.isEmpty() && stale.isEmpty()) {
+            return;
+        }
+        
+        // 内存中有而数据库中没有：只有本服保存失败过的才以内存为准补写，
+        // 其余是其他服务器已售出或下架而本服漏掉了删除，补写会让物品重新上架被再次售出
+        int resaved = 0;
+        int dropped = 0;
+        for (UUID listingId : stale) {
+            MarketListing listing = listings.get(listingId);
+            if (listing == null) {
+                continue;
+            }
+            if (asyncStorage.hasFailedSave(listingId)) {
+                asyncStorage.saveListing(listing);
+                resaved++;
+            } else {
+                applyRemoteChange(listingId, null);
+                dropped++;
+            }
+        }
+        // 数据库中有而内存中没有：由外部写入，加载到内存
+        listings.putAll(missing);
+        plugin.getLogger().warning("市场列表与数据库不一致，已同步: 加载 " + missing.size() + " 条，移除 " + dropped + " 条，补写 " + resaved + " 条");
+    }
+    
+    /**
+     * 定期把超过 listing-expire-time 的上架退回卖家邮箱
+     */
+    private void startExpiry() {
+        long expireHours = plugin.getConfig().getLong("listing-expire-time", 0);
+        if (expireHours <= 0) {
+            return;
+        }
+        long expireMillis = TimeUnit.HOURS.toMillis(expireHours);
+        int batchSize = Math.max(1, plugin.getConfig().getInt("listing-expire-batch", 100));
+        // 每个分片处理一批，过期数量多时在后续 tick 继续
+        plugin.getMaintenanceScheduler().scheduleRepeating("listing-expiry", 20L,
+            () -> () -> expireListings(expireMillis, batchSize) < batchSize);
+    }
+    
+    /**
+     * 索引按上架时间排序，过期的总是最早的一段，每次只取一批，开销只与过期数量有关
+     * 返回本次处理的数量
+     */
+    private int expireListings(long expireMillis, int batchSize) {
+        long deadline = System.currentTimeMillis() - expireMillis;
+        List<MarketListing> expired = new ArrayList<>();
+        for (MarketListing listing : listings.getPage(GUIManager.SortType.OLDEST, 0, batchSize)) {
+            if (listing.getCreatedAt() > deadline) {
+                break;
+            }
+            expired.add(listing);
+        }
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        
+        // 先从内存移除，处理期间不会再被购买或重复过期
+        for (MarketListing listing : expired) {
+            listings.remove(listing.getListingId());
+        }
+        
+        if (databaseManager.isDatabaseEnabled()) {
+            // 退回邮件与删除在同一事务中写入，只退回本服真正删除的行，已被其他服务器售出的不重复退回
+            Map<UUID, Mailbox.MailboxItem> returns = new HashMap<>();
+            for (MarketListing listing : expired) {
+                returns.put(listing.getListingId(), Mailbox.createRemovedItem(listing.getItem()));
+            }
+            asyncStorage.supplyOrdered(() -> databaseStorage.expireListings(expired, returns))
+                .whenCompleteAsync((removed, error) -> {
+                    if (error != null) {
+                        plugin.getLogger().warning("移除过期上架失败: " + error.getMessage());
+                        for (MarketListing listing : expired) {
+                            if (!listings.containsKey(listing.getListingId())) {
+                                listings.put(listing.getListingId(), listing);
+                            }
+                        }
+                        return;
+                    }
+                    Set<UUID> removedIds = new HashSet<>(removed);
+                    for (MarketListing listing : expired) {
+                        ItemStackCache.invalidate(listing.getListingId());
+                        if (removedIds.contains(listing.getListingId())) {
+                            mailbox.addCommittedItem(listing.getSellerId(), returns.get(listing.getListingId()));
+                        }
+                    }
+                }, asyncStorage.mainThread());
+            return expired.size();
+        }
+        
+        if (journal != null) {
+            // 下架和退回邮件写成一条日志，回放时一起生效
+            YamlListingJournal.Transaction transaction = new YamlListingJournal.Transaction();
+            List<Mailbox.MailboxItem> returns = new ArrayList<>();
+            for (MarketListing listing : expired) {
+                Mailbox.MailboxItem returned = Mailbox.createRemovedItem(listing.getItem());
+                transaction.remove(listing.getListingId()).deliver(listing.getSellerId(), returned);
+                returns.add(returned);
+            }
+            journal.append(transaction);
+            for (int i = 0; i < expired.size(); i++) {
+                mailbox.addCommittedItem(expired.get(i).getSellerId(), returns.get(i));
+                ItemStackCache.invalidate(expired.get(i).getListingId());
+            }
+            return expired.size();
+        }
+        
+        for (MarketListing listing : expired) {
+            mailbox.addRemovedItemToMailbox(listing.getSellerId(), listing.getItem());
+            ItemStackCache.invalidate(listing.getListingId());
+        }
         saveData();
-        if (mailbox != null) {
-            mailbox.saveMailboxData();
+        return expired.size();
+    }
+    
+    /**
+     * 应用其他服务器写入的变更，listing 为 null 表示该上架已被移除
+     */
+    void applyRemoteChange(UUID listingId, MarketListing listing) {
+        if (listing != null) {
+            listings.put(listingId, listing);
+        } else if (listings.remove(listingId) != null) {
+            ItemStackCache.invalidate(listingId);
         }
     }
     
@@ -224,11 +491,21 @@ public class MarketManager {
         
         UUID listingId = UUID.randomUUID();
         MarketListing listing = new MarketListing(listingId, seller.getUniqueId(), item.clone(), price, System.currentTimeMillis());
+        
+        // 先与出价不低于单价的求购单撮合，剩余部分再上架
+        BuyOrderMatch match = buyOrders.match(listing);
+        if (match != null) {
+            commitBuyOrderMatch(seller, match);
+            return listingId;
+        }
+        
         listings.put(listingId, listing);
 
-        // 如果启用数据库，实时保存
+        // 如果启用数据库，提交到后台实时保存
         if (databaseManager.isDatabaseEnabled()) {
-            databaseStorage.saveListing(listing);
+            asyncStorage.saveListing(listing);
+        } else if (journal != null) {
+            journal.appendCreate(listing); // YAML模式追加日志
         } else {
             saveData(); // YAML模式保存
         }
@@ -236,6 +513,128 @@ public class MarketManager {
         return listingId;
     }
     
+    /**
+     * 写入撮合结果：剩余部分上架，物品和退回的托管金币给买家，收入给卖家；
+     * 数据库模式下求购单更新、剩余上架、邮件和交易记录在同一事务中提交
+     */
+    private void commitBuyOrderMatch(Player seller, BuyOrderMatch match) {
+        MarketListing remainder = match.getRemainder();
+        if (remainder != null) {
+            listings.put(remainder.getListingId(), remainder);
+        }
+        
+        if (databaseManager.isDatabaseEnabled()) {
+            asyncStorage.supplyOrdered(() -> {
+                databaseStorage.commitBuyOrderMatch(match);
+                return null;
+            }).whenCompleteAsync((ignored, error) -> {
+                if (error != null) {
+                    // 事务已回滚，求购单恢复原样，上架没有写入，物品整个退回卖家邮箱
+                    plugin.getLogger().severe("求购撮合事务失败: " + error.getMessage());
+                    buyOrders.restore(match);
+                    UUID listingId = match.getListing().getListingId();
+                    if (remainder != null && listings.get(listingId) == remainder) {
+                        listings.remove(listingId);
+                    }
+                    mailbox.addRemovedItemToMailbox(seller.getUniqueId(), match.getListing().getItem());
+                    seller.sendMessage(ChatColor.RED + "上架失败，物品已退回邮箱!");
+                    return;
+                }
+                buyOrders.discardRejected(match);
+                completeBuyOrderMatch(seller, match, true);
+            }, asyncStorage.mainThread());
+            return;
+        }
+        
+        if (journal != null) {
+            // 求购单变更、剩余上架和所有邮件写成一条日志，回放时一起生效
+            YamlListingJournal.Transaction transaction = new YamlListingJournal.Transaction();
+            for (BuyOrderMatch.Fill fill : match.getFills()) {
+                if (fill.getAfter() != null) {
+                    transaction.putOrder(fill.getAfter());
+                } else {
+                    transaction.removeOrder(fill.getOrder().getOrderId());
+                }
+            }
+            if (remainder != null) {
+                transaction.create(remainder);
+            }
+            transaction.deliver(seller.getUniqueId(), match.getSellerDelivery());
+            for (Mailbox.MailboxItem returned : match.getReturnedItems()) {
+                transaction.deliver(seller.getUniqueId(), returned);
+            }
+            for (BuyOrderMatch.Fill fill : match.getFills()) {
+                transaction.deliver(fill.getOrder().getBuyerId(), fill.getBuyerDelivery());
+            }
+            journal.append(transaction);
+            completeBuyOrderMatch(seller, match, true);
+            return;
+        }
+        
+        if (remainder != null) {
+            saveData();
+        }
+        completeBuyOrderMatch(seller, match, false);
+    }
+    
+    /**
+     * 撮合生效后投递邮件，卖家和每个买家各通知一次
+     */
+    private void completeBuyOrderMatch(Player seller, BuyOrderMatch match, boolean committed) {
+        List<Mailbox.MailboxItem> sellerItems = new ArrayList<>();
+        if (match.getSellerDelivery() != null) {
+            sellerItems.add(match.getSellerDelivery());
+        }
+        sellerItems.addAll(match.getReturnedItems());
+        if (!sellerItems.isEmpty()) {
+            mailbox.addItemsToMailbox(seller.getUniqueId(), sellerItems, committed);
+        }
+        
+        Map<UUID, List<Mailbox.MailboxItem>> buyerItems = new HashMap<>();
+        for (BuyOrderMatch.Fill fill : match.getFills()) {
+            buyerItems.computeIfAbsent(fill.getOrder().getBuyerId(), k -> new ArrayList<>()).add(fill.getBuyerDelivery());
+        }
+        for (Map.Entry<UUID, List<Mailbox.MailboxItem>> entry : buyerItems.entrySet()) {
+            mailbox.addItemsToMailbox(entry.getKey(), entry.getValue(), committed);
+        }
+        
+        if (!match.getRejected().isEmpty()) {
+            seller.sendMessage(ChatColor.YELLOW + "部分求购单已被其他玩家成交或撤销，未成交的物品已退回邮箱");
+        }
+        if (match.isEmpty()) {
+            return;
+        }
+        
+        for (BuyOrderMatch.Fill fill : match.getFills()) {
+            recordTrade(match.getListing().getSellerId(), match.getListing().getMaterial(), fill.getQuantity(), fill.getPrice());
+        }
+        
+        String itemName = match.getListing().getMaterial().name();
+        seller.sendMessage(ChatColor.GOLD + "[求购] 你的物品已按求购单成交 " + match.getTotalAmount() + " 个 " + itemName
+            + " 成交额: $" + match.getTotalPrice() + ChatColor.GRAY + " 收入已存入邮箱!");
+        if (match.getRemainder() != null) {
+            seller.sendMessage(ChatColor.GRAY + "剩余 " + match.getRemainder().getAmount() + " 个继续上架");
+        }
+        
+        for (BuyOrderMatch.Fill fill : match.getFills()) {
+            Player buyer = plugin.getServer().getPlayer(fill.getOrder().getBuyerId());
+            if (buyer != null) {
+                buyer.sendMessage(ChatColor.GREEN + "[求购] 你的求购单成交 " + fill.getQuantity() + " 个 " + itemName
+                    + " 花费: $" + fill.getPrice() + ChatColor.GRAY + " 物品已存入邮箱!");
+            }
+        }
+        
+        if (plugin.getConfig().getBoolean("log-transactions", true)) {
+            plugin.getLogger().info(String.format("求购成交: %s 向 %d 个求购单出售了 %d 个 %s 总价: %.2f",
+                seller.getName(),
+                match.getFills().size(),
+                match.getTotalAmount(),
+                itemName,
+                match.getTotalPrice()
+            ));
+        }
+    }
+    
     public boolean removeListing(UUID listingId, Player player) {
         MarketListing listing = listings.get(listingId);
         if (listing == null) {
@@ -247,9 +646,22 @@ public class MarketManager {
         }
         
         listings.remove(listingId);
+        ItemStackCache.invalidate(listingId);
         
         if (databaseManager.isDatabaseEnabled()) {
-            databaseStorage.removeListing(listingId);
+            // 与购买一样按删除行数认领，已被其他服务器售出时不会重复删除
+            asyncStorage.supplyOrdered(() -> databaseStorage.commitRemoval(listing, null))
+                .whenCompleteAsync((claimed, error) -> {
+                    if (error != null) {
+                        plugin.getLogger().severe("下架事务失败: " + error.getMessage());
+                        // 事务已回滚，上架仍在数据库中
+                        if (!listings.containsKey(listingId)) {
+                            listings.put(listingId, listing);
+                        }
+                    }
+                }, asyncStorage.mainThread());
+        } else if (journal != null) {
+            journal.appendRemove(listingId); // YAML模式追加日志
         } else {
             saveData(); // YAML模式保存
         }
@@ -275,54 +687,118 @@ public class MarketManager {
         
         // 立即从内存中移除，防止重复下架
         listings.remove(listingId);
+        ItemStackCache.invalidate(listingId);
         
-        // 同步移除数据库记录 - 强制立即执行
         if (databaseManager.isDatabaseEnabled()) {
-            databaseStorage.removeListing(listingId);
-            Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                Map<UUID, MarketListing> freshListings = databaseStorage.loadListings();
-                this.listings.clear();
-                this.listings.putAll(freshListings);
-            }, 30L);
+            // 删除上架和写入邮箱在同一事务中完成，删除失败说明已被其他服务器售出，不能再退回物品
+            Mailbox.MailboxItem returned = Mailbox.createRemovedItem(listing.getItem());
+            asyncStorage.supplyOrdered(() -> databaseStorage.commitRemoval(listing, returned))
+                .whenCompleteAsync((claimed, error) -> {
+                    if (error == null && claimed) {
+                        mailbox.addCommittedItem(listing.getSellerId(), returned);
+                        player.sendMessage(ChatColor.GREEN + "物品已下架并存入邮箱!");
+                        return;
+                    }
+                    
+                    if (error != null) {
+                        plugin.getLogger().severe("下架事务失败: " + error.getMessage());
+                        // 事务已回滚，上架仍在数据库中
+                        if (!listings.containsKey(listingId)) {
+                            listings.put(listingId, listing);
+                        }
+                        player.sendMessage(ChatColor.RED + "下架失败，请稍后重试!");
+                    } else {
+                        player.sendMessage(ChatColor.RED + "该物品已被其他玩家购买或已下架!");
+                    }
+                }, asyncStorage.mainThread());
+            player.sendMessage(ChatColor.YELLOW + "正在下架...");
+            return true;
+        }
+        
+        // 内存列表已是最新状态，无需重新加载
+        if (journal != null) {
+            // 下架和退回邮件写成一条日志，回放时一起生效
+            Mailbox.MailboxItem returned = Mailbox.createRemovedItem(listing.getItem());
+            journal.append(new YamlListingJournal.Transaction()
+                .remove(listingId)
+                .deliver(player.getUniqueId(), returned));
+            mailbox.addCommittedItem(player.getUniqueId(), returned);
         } else {
             saveData();
-            
-            Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                loadData();
-                
-                Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                    loadData();
-                }, 10L);
-            }, 50L);
+            // 使用专门的下架方法（添加标记避免交易记录）
+            mailbox.addRemovedItemToMailbox(player.getUniqueId(), listing.getItem());
         }
         
-        // 使用专门的下架方法（添加标记避免交易记录）
-        mailbox.addRemovedItemToMailbox(player.getUniqueId(), listing.getItem());
-        
         player.sendMessage(ChatColor.GREEN + "物品已下架并存入邮箱!");
         return true;
     }
     
+    /**
+     * 获取当前内存中市场列表的浅拷贝（主线程调用）
+     */
+    public Map<UUID, MarketListing> getListingsSnapshot() {
+        return listings.toMap();
+    }
+    
     public MarketListing getListing(UUID listingId) {
         return listings.get(listingId);
     }
     
     public Map<UUID, MarketListing> getAllListings() {
-        if (databaseManager.isDatabaseEnabled()) {
-            Map<UUID, MarketListing> freshListings = databaseStorage.loadListings();
-            this.listings.clear();
-            this.listings.putAll(freshListings);
-            return new HashMap<>(freshListings);
+        // 内存中的列表即为最新数据，所有写入都会同步更新，读取不再访问存储
+        return listings.toMap();
+    }
+    
+    /**
+     * 按排序方式获取一页上架，material 和 sellerId 为 null 时不筛选
+     */
+    public List<MarketListing> getListingPage(Material material, UUID sellerId, GUIManager.SortType sortType, int offset, int limit) {
+        if (material != null) {
+            return listings.getPageByMaterial(material, sortType, offset, limit);
         }
-        
-        // 确保数据已加载
-        if (listings.isEmpty()) {
-            loadData();
+        if (sellerId != null) {
+            return listings.getPageBySeller(sellerId, sortType, offset, limit);
         }
-        
-        // 调试输出
-        // 市场数据已加载
-        return new HashMap<>(listings);
+        return listings.getPage(sortType, offset, limit);
+    }
+    
+    /**
+     * 符合筛选条件的上架数量，参数含义同 getListingPage
+     */
+    public int getListingCount(Material material, UUID sellerId) {
+        if (material != null) {
+            return listings.countByMaterial(material);
+        }
+        if (sellerId != null) {
+            return listings.countBySeller(sellerId);
+        }
+        return listings.size();
+    }
+    
+    /**
+     * 物品类型的卖单簿（按单价、上架时间排序），没有上架时返回 null
+     */
+    public OrderBook getOrderBook(Material material) {
+        return listings.getOrderBook(material);
+    }
+    
+    /**
+     * 物品类型当前单价最低的上架，没有时返回 null
+     */
+    public MarketListing getBestAsk(Material material) {
+        OrderBook book = listings.getOrderBook(material);
+        return book != null ? book.getBestAsk() : null;
+    }
+    
+    public BuyOrderManager getBuyOrderManager() {
+        return buyOrders;
+    }
+    
+    /**
+     * 上架列表变化时通知打开中的界面
+     */
+    public void setListingChangeListener(ListingIndex.ChangeListener listener) {
+        listings.setChangeListener(listener);
     }
     
     public boolean purchaseListing(Player buyer, UUID listingId) {
@@ -348,42 +824,84 @@ public class MarketManager {
         
         // 创建交易记录
         Mailbox.TransactionRecord record = new Mailbox.TransactionRecord(
-            listing.getItem().getType().name(),
-            listing.getItem().getAmount(),
+            listing.getMaterial().name(),
+            listing.getAmount(),
             listing.getPrice(),
             taxAmount,
             sellerAmount
         );
         
-        // 获取卖家信息
-        OfflinePlayer seller = plugin.getServer().getOfflinePlayer(listing.getSellerId());
-        String sellerName = seller.getName();
-        String itemName = listing.getItem().getType().name();
-        int amount = listing.getItem().getAmount();
-        
-        // 将资金和交易记录添加到卖家邮箱（卖家不应收到物品，只收到资金）
-        mailbox.addItemToMailbox(listing.getSellerId(), null, sellerAmount, record);
-        
-        // 将购买的物品添加到买家邮箱（买家只收到物品，不收到交易记录）
-        mailbox.addItemToMailbox(buyer.getUniqueId(), listing.getItem().clone(), 0, null);
+        // 卖家只收到资金和交易记录，买家只收到物品
+        Mailbox.MailboxItem sellerDelivery = sellerAmount > 0 ? new Mailbox.MailboxItem(null, sellerAmount, record) : null;
+        Mailbox.MailboxItem buyerDelivery = new Mailbox.MailboxItem(listing.getItem(), 0, null);
         
-        // **关键修复：立即从所有存储中移除商品**
+        // **关键修复：立即从内存中移除商品，防止本服重复购买**
         listings.remove(listingId);
+        ItemStackCache.invalidate(listingId);
         
-        // **强制立即同步移除**
         if (databaseManager.isDatabaseEnabled()) {
-            databaseStorage.removeListing(listingId);
-            // **强制刷新数据**
-            this.listings.clear();
-            this.listings.putAll(databaseStorage.loadListings());
-        } else {
-            saveData();
-            // **YAML模式：立即重新加载确保数据同步**
-            loadData();
+            // 删除上架、写入双方邮箱和交易记录在同一事务中完成，删除失败说明已被其他服务器售出
+            UUID buyerId = buyer.getUniqueId();
+            String buyerName = buyer.getName();
+            asyncStorage.supplyOrdered(() -> databaseStorage.commitPurchase(listing, buyerId, buyerName, sellerDelivery, buyerDelivery))
+                .whenCompleteAsync((claimed, error) -> {
+                    if (error == null && claimed) {
+                        completePurchase(buyer, listing, sellerDelivery, buyerDelivery, taxAmount, sellerAmount);
+                        return;
+                    }
+                    
+                    // 购买未生效，退还金币
+                    plugin.getEconomyManager().deposit(buyer, listing.getPrice());
+                    if (error != null) {
+                        plugin.getLogger().severe("购买事务失败: " + error.getMessage());
+                        // 事务已回滚，上架仍在数据库中
+                        if (!listings.containsKey(listingId)) {
+                            listings.put(listingId, listing);
+                        }
+                        buyer.sendMessage(ChatColor.RED + "购买失败，金币已退还!");
+                    } else {
+                        buyer.sendMessage(ChatColor.RED + "该物品已被其他玩家购买，金币已退还!");
+                    }
+                }, asyncStorage.mainThread());
+            return true;
+        }
+        
+        if (journal != null) {
+            // YAML模式：下架和双方邮件写成一条日志，与扣款后的状态一起落盘，回放时一起生效
+            journal.append(new YamlListingJournal.Transaction()
+                .remove(listingId)
+                .deliver(listing.getSellerId(), sellerDelivery)
+                .deliver(buyer.getUniqueId(), buyerDelivery));
+            completePurchase(buyer, listing, sellerDelivery, buyerDelivery, taxAmount, sellerAmount);
+            return true;
+        }
+        
+        mailbox.addItemToMailbox(listing.getSellerId(), null, sellerAmount, record);
+        mailbox.addItemToMailbox(buyer.getUniqueId(), buyerDelivery.getItem(), 0, null);
+        saveData();
+        completePurchase(buyer, listing, null, null, taxAmount, sellerAmount);
+        return true;
+    }
+    
+    /**
+     * 购买生效后通知双方并记录日志；数据库模式和日志模式下邮箱物品已随事务写入，这里只加入内存
+     */
+    private void completePurchase(Player buyer, MarketListing listing, Mailbox.MailboxItem sellerDelivery,
+                                  Mailbox.MailboxItem buyerDelivery, double taxAmount, double sellerAmount) {
+        if (sellerDelivery != null) {
+            mailbox.addCommittedItem(listing.getSellerId(), sellerDelivery);
         }
+        if (buyerDelivery != null) {
+            mailbox.addCommittedItem(buyer.getUniqueId(), buyerDelivery);
+        }
+        
+        recordTrade(listing.getSellerId(), listing.getMaterial(), listing.getAmount(), listing.getPrice());
         
-        // 发送交易通知
-        String itemDisplay = amount + "个" + itemName;
+        // 获取卖家信息
+        Player sellerPlayer = plugin.getServer().getPlayer(listing.getSellerId());
+        String sellerName = plugin.getPlayerNameCache().getDisplayName(listing.getSellerId());
+        String itemName = listing.getMaterial().name();
+        int amount = listing.getAmount();
         
         // 获取配置消息
         String buyerMsg = plugin.getConfig().getString("messages.purchase-notification-buyer", 
@@ -400,8 +918,7 @@ public class MarketManager {
         buyer.sendMessage(ChatColor.translateAlternateColorCodes('&', buyerMsg));
         
         // 通知卖家（如果在线）
-        if (seller.isOnline()) {
-            Player sellerPlayer = (Player) seller;
+        if (sellerPlayer != null) {
             sellerMsg = sellerMsg.replace("%buyer%", buyer.getName())
                                .replace("%amount%", String.valueOf(amount))
                                .replace("%item%", itemName)
@@ -420,23 +937,257 @@ public class MarketManager {
                 taxAmount
             ));
         }
+    }
+    
+    /**
+     * 从卖单簿最低单价开始依次买下整个上架，直到达到数量或超过最高单价；开启部分购买时最后一个上架只买需要的数量，
+     * 剩余部分原地保留；整批只扣一次款、写入一次存储，每个卖家只收到一封邮件和一条通知
+     */
+    public boolean bulkPurchase(Player buyer, Material material, int quantity, double maxUnitPrice) {
+        double taxRate = plugin.getConfig().getDouble("transaction-tax", 0) / 100.0;
+        BulkPurchase purchase = new BulkPurchase(buyer.getUniqueId(), buyer.getName(), material, taxRate);
         
-        return true;
+        OrderBook book = listings.getOrderBook(material);
+        boolean partialEnabled = plugin.getConfig().getBoolean("partial-purchases", true);
+        int remaining = quantity;
+        if (book != null) {
+            for (MarketListing listing : book.getAsks()) {
+                if (remaining <= 0 || listing.getUnitPrice() > maxUnitPrice) {
+                    break;
+                }
+                if (listing.getSellerId().equals(buyer.getUniqueId())) {
+                    continue;
+                }
+                if (listing.getAmount() > remaining) {
+                    // 拆分最后一个上架：先取出买家的部分，再生成剩余上架；任一部分不足一分时不拆分
+                    if (partialEnabled) {
+                        ItemStack bought = listing.getItem();
+                        bought.setAmount(remaining);
+                        MarketListing remainder = listing.withAmount(listing.getAmount() - remaining);
+                        if (remainder != null) {
+                            purchase.addPartialFill(listing, remainder, new Mailbox.MailboxItem(bought, 0, null));
+                        }
+                    }
+                    break;
+                }
+                purchase.addFill(listing, new Mailbox.MailboxItem(listing.getItem(), 0, null));
+                remaining -= listing.getAmount();
+            }
+        }
+        
+        if (purchase.isEmpty()) {
+            buyer.sendMessage(ChatColor.RED + "没有符合条件的上架!");
+            return false;
+        }
+        return executeBulkPurchase(buyer, purchase);
     }
     
-    // 获取玩家上架数量
-    public int getPlayerListingCount(UUID playerUUID) {
+    /**
+     * 从指定上架中只买 amount 个，剩余部分原地保留，与批量购买使用同一提交流程；买下全部时与整个购买相同
+     */
+    public boolean purchaseListing(Player buyer, UUID listingId, int amount) {
+        MarketListing listing = listings.get(listingId);
+        if (listing == null || amount <= 0) {
+            return false;
+        }
+        if (amount >= listing.getAmount()) {
+            return purchaseListing(buyer, listingId);
+        }
+        if (!plugin.getConfig().getBoolean("partial-purchases", true)) {
+            buyer.sendMessage(ChatColor.RED + "服务器未开启部分购买!");
+            return false;
+        }
+        if (listing.getSellerId().equals(buyer.getUniqueId())) {
+            return false;
+        }
+        
+        ItemStack bought = listing.getItem();
+        bought.setAmount(amount);
+        MarketListing remainder = listing.withAmount(listing.getAmount() - amount);
+        if (remainder == null) {
+            buyer.sendMessage(ChatColor.RED + "该上架单价过低，无法拆分购买!");
+            return false;
+        }
+        
+        double taxRate = plugin.getConfig().getDouble("transaction-tax", 0) / 100.0;
+        BulkPurchase purchase = new BulkPurchase(buyer.getUniqueId(), buyer.getName(), listing.getMaterial(), taxRate);
+        purchase.addPartialFill(listing, remainder, new Mailbox.MailboxItem(bought, 0, null));
+        return executeBulkPurchase(buyer, purchase);
+    }
+    
+    /**
+     * 扣款后提交选中的上架，整批只扣一次款、写入一次存储
+     */
+    private boolean executeBulkPurchase(Player buyer, BulkPurchase purchase) {
+        double totalPrice = purchase.getTotalPrice();
+        if (!plugin.getEconomyManager().hasBalance(buyer, totalPrice)) {
+            buyer.sendMessage(ChatColor.RED + "你没有足够的金币! 需要: " + plugin.getEconomyManager().formatCurrency(totalPrice));
+            return false;
+        }
+        if (!plugin.getEconomyManager().withdraw(buyer, totalPrice).transactionSuccess()) {
+            return false;
+        }
+        
+        // 先从内存中移除（部分购买的换成剩余部分），防止本服重复购买
+        for (BulkPurchase.Fill fill : purchase.getFills()) {
+            UUID listingId = fill.getListing().getListingId();
+            if (fill.getRemainder() != null) {
+                listings.put(listingId, fill.getRemainder());
+            } else {
+                listings.remove(listingId);
+                ItemStackCache.invalidate(listingId);
+            }
+        }
+        
         if (databaseManager.isDatabaseEnabled()) {
-            return databaseStorage.getPlayerListingCount(playerUUID);
+            List<BulkPurchase.Fill> selected = new ArrayList<>(purchase.getFills());
+            asyncStorage.supplyOrdered(() -> databaseStorage.commitBulkPurchase(purchase))
+                .whenCompleteAsync((claimed, error) -> {
+                    if (error != null) {
+                        // 事务已回滚，上架仍在数据库中
+                        plugin.getEconomyManager().deposit(buyer, totalPrice);
+                        plugin.getLogger().severe("批量购买事务失败: " + error.getMessage());
+                        for (BulkPurchase.Fill fill : selected) {
+                            MarketListing listing = fill.getListing();
+                            MarketListing current = listings.get(listing.getListingId());
+                            if (current == null || current == fill.getRemainder()) {
+                                listings.put(listing.getListingId(), listing);
+                            }
+                        }
+                        buyer.sendMessage(ChatColor.RED + "购买失败，金币已退还!");
+                        return;
+                    }
+                    
+                    // 没有抢到的部分买下：数量已被其他服务器改变或上架已不存在，内存中放入的剩余部分数量和价格都不对
+                    List<BulkPurchase.Fill> rejected = new ArrayList<>(selected);
+                    rejected.removeAll(purchase.getFills());
+                    for (BulkPurchase.Fill fill : rejected) {
+                        if (fill.getRemainder() != null) {
+                            reloadListing(fill.getListing().getListingId(), fill.getRemainder());
+                        }
+                    }
+                    
+                    // 已被其他服务器售出的部分退款
+                    double refund = totalPrice - purchase.getTotalPrice();
+                    if (refund > 0) {
+                        plugin.getEconomyManager().deposit(buyer, refund);
+                        buyer.sendMessage(ChatColor.YELLOW + "部分物品已被其他玩家购买，已退还: " + plugin.getEconomyManager().formatCurrency(refund));
+                    }
+                    if (claimed) {
+                        completeBulkPurchase(buyer, purchase, true);
+                    }
+                }, asyncStorage.mainThread());
+            return true;
         }
         
-        int count = 0;
-        for (MarketListing listing : listings.values()) {
-            if (listing.getSellerId().equals(playerUUID)) {
-                count++;
+        if (journal != null) {
+            // 整批成交和所有邮件写成一条日志；部分购买以同一ID写入剩余部分，替换原上架
+            YamlListingJournal.Transaction transaction = new YamlListingJournal.Transaction();
+            for (BulkPurchase.Fill fill : purchase.getFills()) {
+                if (fill.getRemainder() != null) {
+                    transaction.create(fill.getRemainder());
+                } else {
+                    transaction.remove(fill.getListing().getListingId());
+                }
+            }
+            for (Mailbox.MailboxItem delivery : purchase.getBuyerDeliveries()) {
+                transaction.deliver(buyer.getUniqueId(), delivery);
             }
+            for (Map.Entry<UUID, Mailbox.MailboxItem> entry : purchase.getSellerDeliveries().entrySet()) {
+                transaction.deliver(entry.getKey(), entry.getValue());
+            }
+            journal.append(transaction);
+            completeBulkPurchase(buyer, purchase, true);
+            return true;
         }
-        return count;
+        
+        saveData();
+        completeBulkPurchase(buyer, purchase, false);
+        return true;
+    }
+    
+    /**
+     * 内存中的上架仍是 stale 时移除，再从数据库读取当前状态，上架仍存在时加回
+     */
+    private void reloadListing(UUID listingId, MarketListing stale) {
+        if (listings.get(listingId) != stale) {
+            return;
+        }
+        listings.remove(listingId);
+        ItemStackCache.invalidate(listingId);
+        asyncStorage.supply(() -> databaseStorage.queryListing(listingId))
+            .whenCompleteAsync((listing, error) -> {
+                if (error != null) {
+                    plugin.getLogger().warning("重新读取上架失败: " + error.getMessage());
+                    return;
+                }
+                if (listing != null && !listings.containsKey(listingId)) {
+                    listings.put(listingId, listing);
+                }
+            }, asyncStorage.mainThread());
+    }
+    
+    /**
+     * 批量购买生效后投递邮件，买家和每个卖家各通知一次
+     */
+    private void completeBulkPurchase(Player buyer, BulkPurchase purchase, boolean committed) {
+        mailbox.addItemsToMailbox(buyer.getUniqueId(), purchase.getBuyerDeliveries(), committed);
+        for (Map.Entry<UUID, Mailbox.MailboxItem> entry : purchase.getSellerDeliveries().entrySet()) {
+            mailbox.addItemsToMailbox(entry.getKey(), Collections.singletonList(entry.getValue()), committed);
+        }
+        
+        for (BulkPurchase.Fill fill : purchase.getFills()) {
+            recordTrade(fill.getListing().getSellerId(), purchase.getMaterial(), fill.getAmount(), fill.getPrice());
+        }
+        
+        String itemName = purchase.getMaterial().name();
+        String buyerMsg = plugin.getConfig().getString("messages.purchase-notification-buyer", 
+            "&a[成功] 你购买了 %amount% 个 %item% &a总价: %price% &7物品已存入邮箱!");
+        buyerMsg = buyerMsg.replace("%amount%", String.valueOf(purchase.getTotalAmount()))
+                          .replace("%item%", itemName)
+                          .replace("%price%", "$" + purchase.getTotalPrice());
+        buyer.sendMessage(ChatColor.translateAlternateColorCodes('&', buyerMsg));
+        
+        // 每个在线卖家一条合并通知
+        for (Map.Entry<UUID, Mailbox.MailboxItem> entry : purchase.getSellerDeliveries().entrySet()) {
+            Player sellerPlayer = plugin.getServer().getPlayer(entry.getKey());
+            if (sellerPlayer == null) {
+                continue;
+            }
+            Mailbox.TransactionRecord record = entry.getValue().getRecord();
+            String sellerMsg = plugin.getConfig().getString("messages.purchase-notification-seller", 
+                "&6[交易] %buyer% 购买了你上架的 %amount% 个 %item% &6售价: %price% &a实际收入: %net% &7物品已存入邮箱!");
+            sellerMsg = sellerMsg.replace("%buyer%", buyer.getName())
+                               .replace("%amount%", String.valueOf(record.getAmount()))
+                               .replace("%item%", itemName)
+                               .replace("%price%", "$" + record.getSellPrice())
+                               .replace("%net%", "$" + record.getActualIncome());
+            sellerPlayer.sendMessage(ChatColor.translateAlternateColorCodes('&', sellerMsg));
+        }
+        
+        if (plugin.getConfig().getBoolean("log-transactions", true)) {
+            plugin.getLogger().info(String.format("批量交易完成: %s 从 %d 个上架购买了 %d 个 %s 总价: %.2f",
+                buyer.getName(),
+                purchase.getFills().size(),
+                purchase.getTotalAmount(),
+                itemName,
+                purchase.getTotalPrice()
+            ));
+        }
+    }
+    
+    /**
+     * 成交生效后记入价格历史和市场统计，price 为这笔成交的总价
+     */
+    private void recordTrade(UUID sellerId, Material material, int amount, double price) {
+        long now = System.currentTimeMillis();
+        plugin.getPriceHistory().record(material, amount, price, now);
+        plugin.getMarketStatistics().recordTrade(sellerId, amount, price, now);
+    }
+    
+    // 获取玩家上架数量
+    public int getPlayerListingCount(UUID playerUUID) {
+        return listings.countBySeller(playerUUID);
     }
     
     public Mailbox getMailbox() {
@@ -459,13 +1210,18 @@ public class MarketManager {
      * 打开玩家搜索GUI - 实时显示指定玩家的所有上架物品
      */
     public void openPlayerSearchGUI(Player player, String targetPlayerName) {
-        @SuppressWarnings("deprecation")
-        OfflinePlayer targetPlayer = plugin.getServer().getOfflinePlayer(targetPlayerName);
-        if (targetPlayer == null || !targetPlayer.hasPlayedBefore()) {
-            player.sendMessage(ChatColor.RED + "找不到玩家: " + targetPlayerName);
-            return;
-        }
-        plugin.getGuiManager().openPlayerSearchGUI(player, targetPlayer.getUniqueId(), targetPlayerName, 0);
+        // 未知名称在后台查询，不阻塞主线程
+        plugin.getPlayerNameCache().resolveId(targetPlayerName).thenAccept(targetPlayerId -> {
+            if (!player.isOnline()) {
+                return;
+            }
+            if (targetPlayerId == null) {
+                player.sendMessage(ChatColor.RED + "找不到玩家: " + targetPlayerName);
+                return;
+            }
+            String name = plugin.getPlayerNameCache().getName(targetPlayerId);
+            plugin.getGuiManager().openPlayerSearchGUI(player, targetPlayerId, name != null ? name : targetPlayerName, 0);
+        });
     }
     
     public void openMailbox(Player player) {
@@ -0,0 +1,262 @@
+package com.globalmarket;
+
+import org.bukkit.Material;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 市场统计
+ * 随上架索引的增删和每笔成交增量维护汇总数据：上架总数、各物品上架数量和总价值、最近24小时成交量和卖家成交额，
+ * 每次事件只做常数次更新，查询直接读取汇总值，可以频繁轮询。
+ * 24小时数据按分钟分槽滚动，过期的槽在下次访问时扣除；只在主线程访问。
+ * 上架统计随共享的上架索引覆盖所有服务器，成交统计只包含本服完成的成交
+ */
+public class MarketStatistics implements ListingIndex.ContentListener {
+    
+    private static final int WINDOW_MINUTES = 24 * 60;
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    
+    // 当前上架
+    private int totalListings;
+    private long totalItemsListed;
+    private double totalValueListed;
+    private final Map<Material, MaterialStats> materials = new EnumMap<>(Material.class);
+    
+    // 最近24小时成交
+    private final TradeSlot[] slots = new TradeSlot[WINDOW_MINUTES];
+    private long currentMinute = Long.MIN_VALUE;
+    private long volume24h;
+    private double turnover24h;
+    private int trades24h;
+    private final Map<UUID, Double> sellerTurnover24h = new HashMap<>();
+    
+    // 启动以来成交
+    private long lifetimeTrades;
+    private double lifetimeTurnover;
+    
+    @Override
+    public void listingAdded(MarketListing listing) {
+        totalListings++;
+        totalItemsListed += listing.getAmount();
+        totalValueListed += listing.getPrice();
+        MaterialStats stats = materials.computeIfAbsent(listing.getMaterial(), k -> new MaterialStats());
+        stats.listings++;
+        stats.quantity += listing.getAmount();
+        stats.value += listing.getPrice();
+    }
+    
+    @Override
+    public void listingRemoved(MarketListing listing) {
+        totalListings--;
+        totalItemsListed -= listing.getAmount();
+        totalValueListed -= listing.getPrice();
+        MaterialStats stats = materials.get(listing.getMaterial());
+        if (stats != null) {
+            stats.listings--;
+            stats.quantity -= listing.getAmount();
+            stats.value -= listing.getPrice();
+            if (stats.listings <= 0) {
+                materials.remove(listing.getMaterial());
+            }
+        }
+    }
+    
+    @Override
+    public void listingsCleared() {
+        totalListings = 0;
+        totalItemsListed = 0;
+        totalValueListed = 0;
+        materials.clear();
+    }
+    
+    /**
+     * 记录一笔成交，price 为这笔成交的总价
+     */
+    public void recordTrade(UUID sellerId, int amount, double price, long time) {
+        TradeSlot slot = slotAt(time);
+        if (slot != null) {
+            slot.volume += amount;
+            slot.turnover += price;
+            slot.trades++;
+            volume24h += amount;
+            turnover24h += price;
+            trades24h++;
+            if (sellerId != null) {
+                slot.sellers.merge(sellerId, price, Double::sum);
+                sellerTurnover24h.merge(sellerId, price, Double::sum);
+            }
+        }
+        lifetimeTrades++;
+        lifetimeTurnover += price;
+    }
+    
+    /**
+     * 用价格历史补上启动前24小时内的成交量（卖家成交额无法恢复）
+     */
+    public void seed(PriceHistory history) {
+        long now = System.currentTimeMillis();
+        for (Material material : history.getMaterials()) {
+            for (PriceHistory.Candle candle : history.getCandles(material, PriceHistory.Resolution.MINUTE, now - (WINDOW_MINUTES - 1) * MINUTE_MILLIS, now)) {
+                TradeSlot slot = slotAt(candle.getStart());
+                if (slot != null) {
+                    slot.volume += candle.getVolume();
+                    slot.turnover += candle.getTurnover();
+                    slot.trades += candle.getTrades();
+                    volume24h += candle.getVolume();
+                    turnover24h += candle.getTurnover();
+                    trades24h += candle.getTrades();
+                }
+            }
+        }
+    }
+    
+    /**
+     * 时间所在分钟的槽，早于24小时窗口时返回 null
+     */
+    private TradeSlot slotAt(long time) {
+        advance(Math.max(time, System.currentTimeMillis()));
+        long minute = Math.floorDiv(time, MINUTE_MILLIS);
+        if (minute <= currentMinute - WINDOW_MINUTES) {
+            return null;
+        }
+        int index = (int) Math.floorMod(minute, (long) WINDOW_MINUTES);
+        TradeSlot slot = slots[index];
+        if (slot == null || slot.minute != minute) {
+            if (slot != null) {
+                expire(slot);
+            }
+            slot = new TradeSlot(minute);
+            slots[index] = slot;
+        }
+        return slot;
+    }
+    
+    /**
+     * 窗口向前滚动到 time 所在分钟，扣除滑出窗口的槽；每个槽只会被扣除一次
+     */
+    private void advance(long time) {
+        long minute = Math.floorDiv(time, MINUTE_MILLIS);
+        if (minute <= currentMinute) {
+            return;
+        }
+        long from = currentMinute == Long.MIN_VALUE ? minute : Math.max(currentMinute + 1, minute - WINDOW_MINUTES + 1);
+        for (long m = from; m <= minute; m++) {
+            int index = (int) Math.floorMod(m, (long) WINDOW_MINUTES);
+            TradeSlot expired = slots[index];
+            if (expired != null) {
+                expire(expired);
+                slots[index] = null;
+            }
+        }
+        currentMinute = minute;
+    }
+    
+    private void expire(TradeSlot slot) {
+        volume24h -= slot.volume;
+        turnover24h -= slot.turnover;
+        trades24h -= slot.trades;
+        for (Map.Entry<UUID, Double> entry : slot.sellers.entrySet()) {
+            Double remaining = sellerTurnover24h.computeIfPresent(entry.getKey(), (k, v) -> v - entry.getValue());
+            // 浮点误差接近0时视为没有成交
+            if (remaining != null && remaining <= 1e-6) {
+                sellerTurnover24h.remove(entry.getKey());
+            }
+        }
+    }
+    
+    public int getTotalListings() {
+        return totalListings;
+    }
+    
+    public long getTotalItemsListed() {
+        return totalItemsListed;
+    }
+    
+    public double getTotalValueListed() {
+        return totalValueListed;
+    }
+    
+    /**
+     * 物品类型的上架统计，没有上架时返回 null
+     */
+    public MaterialStats getMaterialStats(Material material) {
+        return materials.get(material);
+    }
+    
+    /**
+     * 各物品类型的上架统计（只读视图）
+     */
+    public Map<Material, MaterialStats> getMaterialStats() {
+        return Collections.unmodifiableMap(materials);
+    }
+    
+    public long getVolume24h() {
+        advance(System.currentTimeMillis());
+        return volume24h;
+    }
+    
+    public double getTurnover24h() {
+        advance(System.currentTimeMillis());
+        return turnover24h;
+    }
+    
+    public int getTrades24h() {
+        advance(System.currentTimeMillis());
+        return trades24h;
+    }
+    
+    public long getLifetimeTrades() {
+        return lifetimeTrades;
+    }
+    
+    public double getLifetimeTurnover() {
+        return lifetimeTurnover;
+    }
+    
+    /**
+     * 最近24小时成交额最高的卖家，按成交额从高到低排列
+     */
+    public List<Map.Entry<UUID, Double>> getTopSellers(int limit) {
+        advance(System.currentTimeMillis());
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        // 只保留前 limit 名，O(n log limit)
+        PriorityQueue<Map.Entry<UUID, Double>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Map.Entry<UUID, Double> entry : sellerTurnover24h.entrySet()) {
+            top.offer(new AbstractMap.SimpleImmutableEntry<>(entry));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+        List<Map.Entry<UUID, Double>> result = new ArrayList<>(top);
+        result.sort(Map.Entry.<UUID, Double>comparingByValue().reversed());
+        return result;
+    }
+    
+    /**
+     * 一个物品类型的上架汇总
+     */
+    public static final class MaterialStats {
+        private int listings;
+        private long quantity;
+        private double value;
+        
+        public int getListings() { return listings; }
+        public long getQuantity() { return quantity; }
+        public double getValue() { return value; }
+    }
+    
+    private static final class TradeSlot {
+        private final long minute;
+        private long volume;
+        private double turnover;
+        private int trades;
+        private final Map<UUID, Double> sellers = new HashMap<>(4);
+        
+        private TradeSlot(long minute) {
+            this.minute = minute;
+        }
+    }
+}
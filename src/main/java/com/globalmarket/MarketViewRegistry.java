@@ -0,0 +1,207 @@
+package com.globalmarket;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+
+import java.util.*;
+
+/**
+ * 打开中的市场界面登记表
+ * 记录每个玩家正在看的界面（筛选条件、页码、每格显示的上架），上架变化时只标记受影响的界面，
+ * 由维护调度器分批刷新，刷新时只重绘内容发生变化的格子，不再关闭重开界面
+ */
+public class MarketViewRegistry implements ListingIndex.ChangeListener {
+    
+    public static final int PAGE_SIZE = 45;
+    
+    // 每个调度分片最多刷新的界面数量
+    private static final int REFRESH_SLICE_SIZE = 20;
+    
+    private final GlobalMarket plugin;
+    private final GUIManager guiManager;
+    private final Map<UUID, MarketView> views = new HashMap<>();
+    
+    // 按筛选条件分组，上架变化时只需找出可能受影响的界面
+    private final Set<UUID> unfilteredViewers = new HashSet<>();
+    private final Map<Material, Set<UUID>> materialViewers = new EnumMap<>(Material.class);
+    private final Map<UUID, Set<UUID>> sellerViewers = new HashMap<>();
+    
+    // 待刷新的界面，值为 true 表示需要全部重绘（如更新上架时间文字）
+    private final Map<UUID, Boolean> dirtyViewers = new LinkedHashMap<>();
+    
+    public MarketViewRegistry(GlobalMarket plugin, GUIManager guiManager) {
+        this.plugin = plugin;
+        this.guiManager = guiManager;
+    }
+    
+    /**
+     * 注册刷新任务：每 tick 处理待刷新的界面，并按 gui.auto-refresh 定期全部重绘
+     */
+    public void start() {
+        MaintenanceScheduler scheduler = plugin.getMaintenanceScheduler();
+        scheduler.scheduleRepeating("market-view-refresh", 1L, () -> this::refreshSlice);
+        
+        long autoRefreshTicks = plugin.getConfig().getLong("gui.auto-refresh", 30) * 20L;
+        if (autoRefreshTicks > 0) {
+            scheduler.scheduleRepeating("market-view-auto-refresh", autoRefreshTicks, () -> () -> {
+                for (UUID viewerId : views.keySet()) {
+                    dirtyViewers.put(viewerId, true);
+                }
+                return true;
+            });
+        }
+    }
+    
+    public void close() {
+        MaintenanceScheduler scheduler = plugin.getMaintenanceScheduler();
+        scheduler.cancelRepeating("market-view-refresh");
+        scheduler.cancelRepeating("market-view-auto-refresh");
+    }
+    
+    public MarketView get(Player player) {
+        MarketView view = views.get(player.getUniqueId());
+        // 玩家已切换到其他界面时视为没有打开市场
+        if (view != null && player.getOpenInventory().getTopInventory() != view.inventory) {
+            return null;
+        }
+        return view;
+    }
+    
+    public void register(MarketView view) {
+        unregister(view.viewerId);
+        views.put(view.viewerId, view);
+        viewerGroup(view, true).add(view.viewerId);
+    }
+    
+    public void unregister(UUID viewerId) {
+        MarketView view = views.remove(viewerId);
+        if (view == null) {
+            return;
+        }
+        dirtyViewers.remove(viewerId);
+        Set<UUID> group = viewerGroup(view, false);
+        if (group != null) {
+            group.remove(viewerId);
+            if (group.isEmpty()) {
+                if (view.material != null) {
+                    materialViewers.remove(view.material);
+                } else if (view.sellerId != null) {
+                    sellerViewers.remove(view.sellerId);
+                }
+            }
+        }
+    }
+    
+    /**
+     * 界面关闭时移除登记（只处理当前登记的那个界面）
+     */
+    public void inventoryClosed(UUID viewerId, Inventory inventory) {
+        MarketView view = views.get(viewerId);
+        if (view != null && view.inventory == inventory) {
+            unregister(viewerId);
+        }
+    }
+    
+    @Override
+    public void listingChanged(MarketListing listing) {
+        // 被替换或移除的上架不再需要旧的展示物品
+        guiManager.getRenderCache().invalidate(listing.getListingId());
+        markDirty(unfilteredViewers);
+        markDirty(materialViewers.get(listing.getMaterial()));
+        markDirty(sellerViewers.get(listing.getSellerId()));
+    }
+    
+    @Override
+    public void allChanged() {
+        markDirty(views.keySet());
+    }
+    
+    private void markDirty(Set<UUID> viewerIds) {
+        if (viewerIds == null) {
+            return;
+        }
+        for (UUID viewerId : viewerIds) {
+            dirtyViewers.putIfAbsent(viewerId, false);
+        }
+    }
+    
+    private Set<UUID> viewerGroup(MarketView view, boolean create) {
+        if (view.material != null) {
+            return create ? materialViewers.computeIfAbsent(view.material, k -> new HashSet<>()) : materialViewers.get(view.material);
+        }
+        if (view.sellerId != null) {
+            return create ? sellerViewers.computeIfAbsent(view.sellerId, k -> new HashSet<>()) : sellerViewers.get(view.sellerId);
+        }
+        return unfilteredViewers;
+    }
+    
+    /**
+     * 刷新一部分待刷新的界面，返回是否已全部刷新
+     */
+    private boolean refreshSlice() {
+        Iterator<Map.Entry<UUID, Boolean>> iterator = dirtyViewers.entrySet().iterator();
+        int refreshed = 0;
+        while (iterator.hasNext() && refreshed < REFRESH_SLICE_SIZE) {
+            Map.Entry<UUID, Boolean> entry = iterator.next();
+            iterator.remove();
+            
+            MarketView view = views.get(entry.getKey());
+            Player player = plugin.getServer().getPlayer(entry.getKey());
+            if (view == null || player == null || player.getOpenInventory().getTopInventory() != view.inventory) {
+                unregister(entry.getKey());
+                continue;
+            }
+            guiManager.renderView(player, view, entry.getValue());
+            refreshed++;
+        }
+        return dirtyViewers.isEmpty();
+    }
+    
+    /**
+     * 一个玩家打开的市场界面，material 和 sellerId 都为 null 时为全部上架
+     */
+    public static final class MarketView {
+        private final UUID viewerId;
+        private final Inventory inventory;
+        private final Material material;
+        private final UUID sellerId;
+        private final String sellerName;
+        private int page;
+        
+        // 每个格子当前显示的上架对象，按引用比较判断是否需要重绘
+        private final MarketListing[] shown = new MarketListing[PAGE_SIZE];
+        private int shownPages = -1;
+        private GUIManager.SortType shownSort;
+        private List<String> shownSummary;
+        
+        public MarketView(UUID viewerId, Inventory inventory, Material material, UUID sellerId, String sellerName, int page) {
+            this.viewerId = viewerId;
+            this.inventory = inventory;
+            this.material = material;
+            this.sellerId = sellerId;
+            this.sellerName = sellerName;
+            this.page = page;
+        }
+        
+        public Inventory getInventory() { return inventory; }
+        public Material getMaterial() { return material; }
+        public UUID getSellerId() { return sellerId; }
+        public String getSellerName() { return sellerName; }
+        public int getPage() { return page; }
+        public void setPage(int page) { this.page = page; }
+        
+        MarketListing getShown(int slot) { return shown[slot]; }
+        void setShown(int slot, MarketListing listing) { shown[slot] = listing; }
+        int getShownPages() { return shownPages; }
+        GUIManager.SortType getShownSort() { return shownSort; }
+        
+        List<String> getShownSummary() { return shownSummary; }
+        void setShownSummary(List<String> summary) { this.shownSummary = summary; }
+        
+        void setShownNavigation(int pages, GUIManager.SortType sortType) {
+            this.shownPages = pages;
+            this.shownSort = sortType;
+        }
+    }
+}
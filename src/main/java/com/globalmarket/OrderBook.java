@@ -0,0 +1,125 @@
+package com.globalmarket;
+
+import org.bukkit.Material;
+
+import java.util.*;
+
+/**
+ * 单个物品类型的卖单簿
+ * 上架按单价从低到高、同价按上架时间从早到晚排序（价格优先、时间优先），并按单价汇总每个价位的挂单数量，
+ * 随上架变化增量维护；最低价、某价位深度查询为 O(log n)，从最低价开始遍历每步 O(1)
+ */
+public class OrderBook {
+    
+    public static final Comparator<MarketListing> PRICE_TIME_ORDER = Comparator
+        .comparingDouble(MarketListing::getUnitPrice)
+        .thenComparingLong(MarketListing::getCreatedAt)
+        .thenComparing(MarketListing::getListingId);
+    
+    private final Material material;
+    private final TreeSet<MarketListing> asks = new TreeSet<>(PRICE_TIME_ORDER);
+    private final TreeMap<Double, PriceLevel> levels = new TreeMap<>();
+    private final NavigableSet<MarketListing> asksView = Collections.unmodifiableNavigableSet(asks);
+    private long totalQuantity;
+    
+    public OrderBook(Material material) {
+        this.material = material;
+    }
+    
+    void add(MarketListing listing) {
+        if (!asks.add(listing)) {
+            return;
+        }
+        PriceLevel level = levels.computeIfAbsent(listing.getUnitPrice(), k -> new PriceLevel());
+        level.listings++;
+        level.quantity += listing.getAmount();
+        totalQuantity += listing.getAmount();
+    }
+    
+    void remove(MarketListing listing) {
+        if (!asks.remove(listing)) {
+            return;
+        }
+        PriceLevel level = levels.get(listing.getUnitPrice());
+        if (level != null) {
+            level.listings--;
+            level.quantity -= listing.getAmount();
+            if (level.listings <= 0) {
+                levels.remove(listing.getUnitPrice());
+            }
+        }
+        totalQuantity -= listing.getAmount();
+    }
+    
+    public Material getMaterial() {
+        return material;
+    }
+    
+    /**
+     * 当前单价最低（同价最早）的上架，没有时返回 null
+     */
+    public MarketListing getBestAsk() {
+        return asks.isEmpty() ? null : asks.first();
+    }
+    
+    /**
+     * 最低单价，没有上架时返回 -1
+     */
+    public double getBestAskPrice() {
+        return levels.isEmpty() ? -1 : levels.firstKey();
+    }
+    
+    /**
+     * 指定单价上挂单的物品总数
+     */
+    public long getDepthAt(double unitPrice) {
+        PriceLevel level = levels.get(unitPrice);
+        return level != null ? level.quantity : 0;
+    }
+    
+    /**
+     * 指定单价上的上架数量
+     */
+    public int getListingCountAt(double unitPrice) {
+        PriceLevel level = levels.get(unitPrice);
+        return level != null ? level.listings : 0;
+    }
+    
+    /**
+     * 从最低价开始按价格优先、时间优先顺序排列的只读视图
+     */
+    public NavigableSet<MarketListing> getAsks() {
+        return asksView;
+    }
+    
+    /**
+     * 单价不高于 maxUnitPrice 的上架，按成交顺序排列
+     */
+    public List<MarketListing> getAsksUpTo(double maxUnitPrice) {
+        List<MarketListing> result = new ArrayList<>();
+        for (MarketListing listing : asks) {
+            if (listing.getUnitPrice() > maxUnitPrice) {
+                break;
+            }
+            result.add(listing);
+        }
+        return result;
+    }
+    
+    public long getTotalQuantity() {
+        return totalQuantity;
+    }
+    
+    public int size() {
+        return asks.size();
+    }
+    
+    public boolean isEmpty() {
+        return asks.isEmpty();
+    }
+    
+    private static final class PriceLevel {
+        private int listings;
+        private long quantity;
+    }
+}
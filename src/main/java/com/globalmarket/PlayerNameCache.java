@@ -0,0 +1,185 @@
+package com.globalmarket;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 玩家UUID与名称的双向索引
+ * 由保存的名称文件、数据库中的卖家名称、玩家登录和服务器用户缓存共同填充，查询为O(1)；
+ * 未知的UUID或名称在后台线程中解析，避免主线程阻塞在离线玩家档案查询上
+ */
+public class PlayerNameCache {
+    
+    private static final long SAVE_INTERVAL_TICKS = 20L * 60 * 5;
+    
+    private final GlobalMarket plugin;
+    private final File file;
+    private final Map<UUID, String> names = new ConcurrentHashMap<>();
+    // 名称统一转为小写作为键
+    private final Map<String, UUID> ids = new ConcurrentHashMap<>();
+    private final Set<UUID> resolving = ConcurrentHashMap.newKeySet();
+    private volatile boolean dirty;
+    
+    public PlayerNameCache(GlobalMarket plugin) {
+        this.plugin = plugin;
+        this.file = new File(plugin.getDataFolder(), "player_names.yml");
+        load();
+        
+        // 服务器用户缓存可能很大，在后台读取
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            for (OfflinePlayer player : Bukkit.getOfflinePlayers()) {
+                remember(player.getUniqueId(), player.getName());
+            }
+        });
+        plugin.getMaintenanceScheduler().scheduleRepeating("player-name-save", SAVE_INTERVAL_TICKS, () -> () -> {
+            saveAsync();
+            return true;
+        });
+    }
+    
+    /**
+     * 记录一个名称，同一UUID改名后旧名称不再指向它
+     */
+    public void remember(UUID playerId, String name) {
+        if (playerId == null || name == null || name.isEmpty()) {
+            return;
+        }
+        String previous = names.put(playerId, name);
+        if (name.equals(previous)) {
+            return;
+        }
+        if (previous != null) {
+            ids.remove(previous.toLowerCase(Locale.ROOT), playerId);
+        }
+        ids.put(name.toLowerCase(Locale.ROOT), playerId);
+        dirty = true;
+    }
+    
+    /**
+     * 查询玩家名称，未知时返回 null 并在后台解析，解析完成后再次查询即可得到
+     */
+    public String getName(UUID playerId) {
+        String name = names.get(playerId);
+        if (name == null && resolving.add(playerId)) {
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                try {
+                    remember(playerId, Bukkit.getOfflinePlayer(playerId).getName());
+                } finally {
+                    resolving.remove(playerId);
+                }
+            });
+        }
+        return name;
+    }
+    
+    /**
+     * 查询玩家名称，未知时返回 "未知"
+     */
+    public String getDisplayName(UUID playerId) {
+        String name = getName(playerId);
+        return name != null ? name : "未知";
+    }
+    
+    /**
+     * 按名称查询UUID（不区分大小写），只查已知名称
+     */
+    public UUID getId(String name) {
+        return name != null ? ids.get(name.toLowerCase(Locale.ROOT)) : null;
+    }
+    
+    /**
+     * 按名称查询UUID，未知时在后台查询离线玩家档案；结果在主线程返回，找不到时为 null
+     */
+    public CompletableFuture<UUID> resolveId(String name) {
+        UUID playerId = getId(name);
+        if (playerId != null) {
+            return CompletableFuture.completedFuture(playerId);
+        }
+        
+        CompletableFuture<UUID> future = new CompletableFuture<>();
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            UUID resolved = null;
+            try {
+                @SuppressWarnings("deprecation")
+                OfflinePlayer player = Bukkit.getOfflinePlayer(name);
+                if (player.hasPlayedBefore() || player.isOnline()) {
+                    resolved = player.getUniqueId();
+                    remember(resolved, player.getName() != null ? player.getName() : name);
+                }
+            } catch (Exception e) {
+                plugin.getLogger().warning("查询玩家失败: " + name + " - " + e.getMessage());
+            }
+            UUID result = resolved;
+            if (plugin.isEnabled()) {
+                Bukkit.getScheduler().runTask(plugin, () -> future.complete(result));
+            }
+        });
+        return future;
+    }
+    
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        FileConfiguration config = YamlConfiguration.loadConfiguration(file);
+        ConfigurationSection section = config.getConfigurationSection("names");
+        if (section == null) {
+            return;
+        }
+        for (String key : section.getKeys(false)) {
+            try {
+                remember(UUID.fromString(key), section.getString(key));
+            } catch (IllegalArgumentException e) {
+                plugin.getLogger().warning("无效的玩家UUID: " + key);
+            }
+        }
+        dirty = false;
+    }
+    
+    private void saveAsync() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        Map<UUID, String> snapshot = new HashMap<>(names);
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> write(snapshot));
+    }
+    
+    /**
+     * 关闭时同步保存
+     */
+    public void close() {
+        plugin.getMaintenanceScheduler().cancelRepeating("player-name-save");
+        if (dirty) {
+            dirty = false;
+            write(new HashMap<>(names));
+        }
+    }
+    
+    private synchronized void write(Map<UUID, String> snapshot) {
+        try {
+            FileConfiguration config = new YamlConfiguration();
+            for (Map.Entry<UUID, String> entry : snapshot.entrySet()) {
+                config.set("names." + entry.getKey(), entry.getValue());
+            }
+            
+            // 先写临时文件再替换，避免写到一半损坏
+            File tempFile = new File(plugin.getDataFolder(), "player_names.yml.tmp");
+            config.save(tempFile);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            dirty = true;
+            plugin.getLogger().severe("保存玩家名称失败: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.globalmarket;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 成交价格历史
+ * 每个物品类型按分钟、小时、天三种粒度各保存一个环形缓冲区，每笔成交同时累加到三个桶中（开高低收、成交量、成交额），
+ * 缓冲区写满后覆盖最旧的桶，粒度越粗保留越久；查询只遍历时间范围内的桶。
+ * 定期以压缩的二进制格式保存到 price_history.dat。
+ * 只记录本服完成的成交，多服务器共享数据库时不包含其他服务器的成交
+ */
+public class PriceHistory {
+    
+    private static final int FILE_MAGIC = 0x474D5048;
+    private static final int FILE_VERSION = 1;
+    
+    public enum Resolution {
+        MINUTE("分钟", TimeUnit.MINUTES.toMillis(1), "minute-buckets", 1440),
+        HOUR("小时", TimeUnit.HOURS.toMillis(1), "hour-buckets", 720),
+        DAY("天", TimeUnit.DAYS.toMillis(1), "day-buckets", 730);
+        
+        private final String displayName;
+        private final long millis;
+        private final String configKey;
+        private final int defaultBuckets;
+        
+        Resolution(String displayName, long millis, String configKey, int defaultBuckets) {
+            this.displayName = displayName;
+            this.millis = millis;
+            this.configKey = configKey;
+            this.defaultBuckets = defaultBuckets;
+        }
+        
+        public String getDisplayName() { return displayName; }
+        public long getMillis() { return millis; }
+    }
+    
+    private final GlobalMarket plugin;
+    private final File file;
+    // 只在主线程访问
+    private final Map<Material, Series> series = new EnumMap<>(Material.class);
+    private final int[] capacities = new int[Resolution.values().length];
+    private volatile boolean dirty;
+    
+    public PriceHistory(GlobalMarket plugin) {
+        this.plugin = plugin;
+        this.file = new File(plugin.getDataFolder(), "price_history.dat");
+        for (Resolution resolution : Resolution.values()) {
+            capacities[resolution.ordinal()] = Math.max(1,
+                plugin.getConfig().getInt("price-history." + resolution.configKey, resolution.defaultBuckets));
+        }
+        load();
+        
+        long intervalTicks = Math.max(1, plugin.getConfig().getLong("price-history.save-interval", 300)) * 20L;
+        plugin.getMaintenanceScheduler().scheduleRepeating("price-history-save", intervalTicks, () -> () -> {
+            saveAsync();
+            return true;
+        });
+    }
+    
+    public boolean isEnabled() {
+        return plugin.getConfig().getBoolean("price-history.enabled", true);
+    }
+    
+    /**
+     * 记录一笔成交，price 为这笔成交的总价
+     */
+    public void record(Material material, int amount, double price, long time) {
+        if (!isEnabled() || material == null || amount <= 0) {
+            return;
+        }
+        Series entry = series.computeIfAbsent(material, k -> new Series());
+        double unitPrice = price / amount;
+        for (Resolution resolution : Resolution.values()) {
+            entry.ring(resolution).bucket(time, true).add(unitPrice, amount, price);
+        }
+        dirty = true;
+    }
+    
+    /**
+     * 时间范围 [from, to] 内有成交的桶，按时间从早到晚排列；超出保留期的部分不返回
+     */
+    public List<Candle> getCandles(Material material, Resolution resolution, long from, long to) {
+        Series entry = series.get(material);
+        if (entry == null) {
+            return Collections.emptyList();
+        }
+        return entry.ring(resolution).range(from, to);
+    }
+    
+    /**
+     * 截至现在最近 count 个桶内的成交
+     */
+    public List<Candle> getRecentCandles(Material material, Resolution resolution, int count) {
+        long now = System.currentTimeMillis();
+        return getCandles(material, resolution, now - (count - 1L) * resolution.millis, now);
+    }
+    
+    /**
+     * 把多个桶合并为一个，没有成交时返回 null
+     */
+    public static Candle merge(List<Candle> candles) {
+        if (candles.isEmpty()) {
+            return null;
+        }
+        Candle merged = new Candle(candles.get(0).start);
+        for (Candle candle : candles) {
+            merged.merge(candle);
+        }
+        return merged;
+    }
+    
+    /**
+     * 有成交记录的物品类型
+     */
+    public Set<Material> getMaterials() {
+        return Collections.unmodifiableSet(series.keySet());
+    }
+    
+    /**
+     * 按本地时区对齐桶的起始时间，按天的桶从本地零点开始
+     */
+    private static long localOffset(long time) {
+        return ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochMilli(time)).getTotalSeconds() * 1000L;
+    }
+    
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                plugin.getLogger().warning("价格历史文件格式不支持，已忽略");
+                return;
+            }
+            int materials = in.readInt();
+            for (int i = 0; i < materials; i++) {
+                Material material = Material.matchMaterial(in.readUTF());
+                Series entry = new Series();
+                for (Resolution resolution : Resolution.values()) {
+                    int count = in.readInt();
+                    Ring ring = entry.ring(resolution);
+                    // 按时间顺序写入，缓冲区容量调小后只保留最新的桶
+                    for (int j = 0; j < count; j++) {
+                        ring.put(Candle.read(in));
+                    }
+                }
+                if (material != null) {
+                    series.put(material, entry);
+                }
+            }
+        } catch (IOException e) {
+            plugin.getLogger().severe("加载价格历史失败: " + e.getMessage());
+        }
+    }
+    
+    private void saveAsync() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        Map<Material, List<List<Candle>>> snapshot = snapshot();
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> write(snapshot));
+    }
+    
+    /**
+     * 关闭时同步保存
+     */
+    public void close() {
+        plugin.getMaintenanceScheduler().cancelRepeating("price-history-save");
+        if (dirty) {
+            dirty = false;
+            write(snapshot());
+        }
+    }
+    
+    private Map<Material, List<List<Candle>>> snapshot() {
+        Map<Material, List<List<Candle>>> snapshot = new EnumMap<>(Material.class);
+        for (Map.Entry<Material, Series> entry : series.entrySet()) {
+            List<List<Candle>> rings = new ArrayList<>();
+            for (Resolution resolution : Resolution.values()) {
+                rings.add(entry.getValue().ring(resolution).all());
+            }
+            snapshot.put(entry.getKey(), rings);
+        }
+        return snapshot;
+    }
+    
+    private synchronized void write(Map<Material, List<List<Candle>>> snapshot) {
+        // 先写临时文件再替换，避免写到一半损坏
+        File tempFile = new File(plugin.getDataFolder(), "price_history.dat.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tempFile))))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<Material, List<List<Candle>>> entry : snapshot.entrySet()) {
+                out.writeUTF(entry.getKey().name());
+                for (List<Candle> candles : entry.getValue()) {
+                    out.writeInt(candles.size());
+                    for (Candle candle : candles) {
+                        candle.write(out);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            dirty = true;
+            plugin.getLogger().severe("保存价格历史失败: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            dirty = true;
+            plugin.getLogger().severe("保存价格历史失败: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 一个物品类型三种粒度的缓冲区
+     */
+    private final class Series {
+        private final Ring[] rings = new Ring[Resolution.values().length];
+        
+        private Ring ring(Resolution resolution) {
+            Ring ring = rings[resolution.ordinal()];
+            if (ring == null) {
+                ring = new Ring(resolution.millis, capacities[resolution.ordinal()]);
+                rings[resolution.ordinal()] = ring;
+            }
+            return ring;
+        }
+    }
+    
+    /**
+     * 固定容量的环形缓冲区，桶按起始时间映射到槽位，槽位中是更早的桶时视为已过期
+     */
+    private static final class Ring {
+        private final long resolution;
+        private final Candle[] slots;
+        
+        private Ring(long resolution, int capacity) {
+            this.resolution = resolution;
+            this.slots = new Candle[capacity];
+        }
+        
+        private long indexOf(long time) {
+            return Math.floorDiv(time + localOffset(time), resolution);
+        }
+        
+        private int slotOf(long index) {
+            return (int) Math.floorMod(index, (long) slots.length);
+        }
+        
+        private Candle bucket(long time, boolean create) {
+            long index = indexOf(time);
+            long start = index * resolution - localOffset(time);
+            int slot = slotOf(index);
+            Candle candle = slots[slot];
+            if (candle == null || candle.start != start) {
+                if (!create) {
+                    return null;
+                }
+                candle = new Candle(start);
+                slots[slot] = candle;
+            }
+            return candle;
+        }
+        
+        private void put(Candle candle) {
+            slots[slotOf(indexOf(candle.start))] = candle;
+        }
+        
+        private List<Candle> range(long from, long to) {
+            long first = Math.max(indexOf(from), indexOf(to) - slots.length + 1);
+            long last = indexOf(to);
+            List<Candle> result = new ArrayList<>();
+            for (long index = first; index <= last; index++) {
+                Candle candle = slots[slotOf(index)];
+                if (candle != null && indexOf(candle.start) == index) {
+                    result.add(candle.copy());
+                }
+            }
+            return result;
+        }
+        
+        /**
+         * 所有未过期的桶，按时间顺序排列
+         */
+        private List<Candle> all() {
+            List<Candle> result = new ArrayList<>();
+            for (Candle candle : slots) {
+                if (candle != null) {
+                    result.add(candle.copy());
+                }
+            }
+            result.sort(Comparator.comparingLong(Candle::getStart));
+            return result;
+        }
+    }
+    
+    /**
+     * 一个时间桶内的成交汇总：开盘、最高、最低、收盘单价，成交数量和成交额
+     */
+    public static final class Candle {
+        private final long start;
+        private double open;
+        private double high;
+        private double low;
+        private double close;
+        private long volume;
+        private double turnover;
+        private int trades;
+        
+        private Candle(long start) {
+            this.start = start;
+        }
+        
+        private void add(double unitPrice, int amount, double price) {
+            if (trades == 0) {
+                open = unitPrice;
+                high = unitPrice;
+                low = unitPrice;
+            } else {
+                high = Math.max(high, unitPrice);
+                low = Math.min(low, unitPrice);
+            }
+            close = unitPrice;
+            volume += amount;
+            turnover += price;
+            trades++;
+        }
+        
+        private void merge(Candle other) {
+            if (other.trades == 0) {
+                return;
+            }
+            if (trades == 0) {
+                open = other.open;
+                high = other.high;
+                low = other.low;
+            } else {
+                high = Math.max(high, other.high);
+                low = Math.min(low, other.low);
+            }
+            close = other.close;
+            volume += other.volume;
+            turnover += other.turnover;
+            trades += other.trades;
+        }
+        
+        private Candle copy() {
+            Candle copy = new Candle(start);
+            copy.merge(this);
+            return copy;
+        }
+        
+        private void write(DataOutputStream out) throws IOException {
+            out.writeLong(start);
+            out.writeDouble(open);
+            out.writeDouble(high);
+            out.writeDouble(low);
+            out.writeDouble(close);
+            out.writeLong(volume);
+            out.writeDouble(turnover);
+            out.writeInt(trades);
+        }
+        
+        private static Candle read(DataInputStream in) throws IOException {
+            Candle candle = new Candle(in.readLong());
+            candle.open = in.readDouble();
+            candle.high = in.readDouble();
+            candle.low = in.readDouble();
+            candle.close = in.readDouble();
+            candle.volume = in.readLong();
+            candle.turnover = in.readDouble();
+            candle.trades = in.readInt();
+            return candle;
+        }
+        
+        public long getStart() { return start; }
+        public double getOpen() { return open; }
+        public double getHigh() { return high; }
+        public double getLow() { return low; }
+        public double getClose() { return close; }
+        public long getVolume() { return volume; }
+        public double getTurnover() { return turnover; }
+        public int getTrades() { return trades; }
+        
+        /**
+         * 成交量加权平均单价
+         */
+        public double getVwap() {
+            return volume > 0 ? turnover / volume : 0;
+        }
+    }
+}
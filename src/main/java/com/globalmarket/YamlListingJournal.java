@@ -0,0 +1,642 @@
+package com.globalmarket;
+
+import com.globalmarket.util.ItemCodec;
+import org.bukkit.Material;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * YAML模式的追加式变更日志
+ * 每次上架/下架/购买只向 market_data.journal 追加一行，由后台线程组提交落盘；
+ * 定期将日志合并为 market_data.yml 快照，启动时按“快照 + 日志”回放恢复数据。
+ * 一笔交易涉及的上架、求购单和邮件写成一行 TXN 记录，回放时整行生效或整行跳过；
+ * 邮箱分片和求购单文件只在日志落盘后写出，压缩清空日志前先写出
+ */
+public class YamlListingJournal {
+    
+    private static final String OP_CREATE = "CREATE";
+    private static final String OP_REMOVE = "REMOVE";
+    // 旧版本写入的购买记录，只在回放时识别
+    private static final String OP_PURCHASE = "PURCHASE";
+    private static final String OP_TXN = "TXN";
+    private static final String OP_MAIL_ADD = "MAIL_ADD";
+    private static final String OP_MAIL_CLAIM = "MAIL_CLAIM";
+    private static final String OP_ORDER_PUT = "ORDER_PUT";
+    private static final String OP_ORDER_REMOVE = "ORDER_REMOVE";
+    private static final String SEPARATOR = "|";
+    
+    private final GlobalMarket plugin;
+    private final File snapshotFile;
+    private final File journalFile;
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final long groupCommitMillis;
+    private final int compactThreshold;
+    private final List<Checkpoint> checkpoints = new ArrayList<>();
+    
+    private MarketManager marketManager;
+    private Thread writerThread;
+    private volatile boolean running;
+    
+    // 以下字段仅由写入线程访问
+    private FileOutputStream journalOut;
+    private Writer journalWriter;
+    private boolean dirty;
+    // 单独保存的数据写出失败的次数，之前截取的压缩不能再清空日志
+    private volatile int checkpointFailures;
+    
+    // 自上次压缩以来追加的记录数（主线程）
+    private int recordsSinceCompaction;
+    
+    public YamlListingJournal(GlobalMarket plugin, File snapshotFile) {
+        this.plugin = plugin;
+        this.snapshotFile = snapshotFile;
+        this.journalFile = new File(snapshotFile.getParentFile(), "market_data.journal");
+        this.groupCommitMillis = Math.max(0, plugin.getConfig().getLong("yaml-journal.group-commit-ms", 50));
+        this.compactThreshold = Math.max(1, plugin.getConfig().getInt("yaml-journal.compact-threshold", 1000));
+    }
+    
+    /**
+     * 启动写入线程和定期压缩任务
+     */
+    public boolean start(MarketManager marketManager) {
+        if (running) {
+            return true;
+        }
+        
+        try {
+            openJournal(true);
+        } catch (IOException e) {
+            plugin.getLogger().severe("无法打开市场日志文件: " + e.getMessage());
+            return false;
+        }
+        
+        this.marketManager = marketManager;
+        running = true;
+        writerThread = new Thread(this::runWriter, "GlobalMarket-Journal");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        
+        long intervalTicks = Math.max(1, plugin.getConfig().getLong("yaml-journal.compact-interval", 300)) * 20L;
+        // 快照必须一次截取完整，作为单个分片执行
+        plugin.getMaintenanceScheduler().scheduleRepeating("journal-compact", intervalTicks, () -> () -> {
+            if (recordsSinceCompaction > 0) {
+                compact(marketManager.getListingsSnapshot());
+            }
+            return true;
+        });
+        return true;
+    }
+    
+    /**
+     * 记录新上架
+     */
+    public void appendCreate(MarketListing listing) {
+        append(String.join(SEPARATOR,
+            OP_CREATE,
+            listing.getListingId().toString(),
+            listing.getSellerId().toString(),
+            String.valueOf(listing.getPrice()),
+            String.valueOf(listing.getCreatedAt()),
+            stripLineBreaks(listing.getItemBase64())));
+    }
+    
+    /**
+     * 记录下架
+     */
+    public void appendRemove(UUID listingId) {
+        append(OP_REMOVE + SEPARATOR + listingId);
+    }
+    
+    /**
+     * 原子写入一组变更，返回的 future 在整行落盘后（写入线程中）完成
+     */
+    public CompletableFuture<Void> append(Transaction transaction) {
+        return append(OP_TXN + SEPARATOR + String.join(SEPARATOR, transaction.entries));
+    }
+    
+    private CompletableFuture<Void> append(String record) {
+        if (!running) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("市场日志未运行"));
+            return failed;
+        }
+        Record entry = new Record(record + SEPARATOR + checksum(record));
+        queue.add(entry);
+        
+        recordsSinceCompaction++;
+        if (recordsSinceCompaction >= compactThreshold) {
+            compact(marketManager.getListingsSnapshot());
+        }
+        return entry.durable;
+    }
+    
+    /**
+     * 注册压缩时需要先写出的数据
+     */
+    public void addCheckpoint(Checkpoint checkpoint) {
+        checkpoints.add(checkpoint);
+    }
+    
+    /**
+     * 在已入队的日志记录落盘之后执行写入，保证单独保存的数据不会领先于日志；日志未运行时返回 false
+     */
+    public boolean submit(CheckpointWrite write) {
+        if (!running) {
+            return false;
+        }
+        queue.add(write);
+        return true;
+    }
+    
+    /**
+     * 提交一次压缩：写入快照并清空日志（在写入线程中执行）
+     * 快照必须在主线程中截取，保证与之前入队的日志记录一致
+     */
+    public CompletableFuture<Void> compact(Map<UUID, MarketListing> snapshot) {
+        if (!running || snapshot == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        recordsSinceCompaction = 0;
+        List<CheckpointWrite> writes = new ArrayList<>();
+        for (Checkpoint checkpoint : checkpoints) {
+            writes.add(checkpoint.capture());
+        }
+        Compaction compaction = new Compaction(snapshot, writes, checkpointFailures);
+        queue.add(compaction);
+        return compaction.done;
+    }
+    
+    /**
+     * 阻塞等待所有已入队的记录落盘
+     */
+    public void sync() {
+        if (!running) {
+            return;
+        }
+        CompletableFuture<Void> barrier = new CompletableFuture<>();
+        queue.add(barrier);
+        try {
+            barrier.get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            plugin.getLogger().warning("等待市场日志落盘超时: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 将日志回放到已从快照加载的列表和邮箱上
+     */
+    public void replay(Map<UUID, MarketListing> listings, Mailbox mailbox) {
+        replay(listings, mailbox, null);
+    }
+    
+    /**
+     * 将日志中的求购单变更回放到已从 buy_orders.yml 加载的求购单上
+     */
+    public void replayBuyOrders(Map<UUID, BuyOrder> orders) {
+        sync();
+        replay(null, null, orders);
+    }
+    
+    /**
+     * 只回放目标不为 null 的部分
+     */
+    private void replay(Map<UUID, MarketListing> listings, Mailbox mailbox, Map<UUID, BuyOrder> orders) {
+        if (!journalFile.exists()) {
+            return;
+        }
+        
+        int applied = 0;
+        try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    applyRecord(line, listings, mailbox, orders);
+                    applied++;
+                } catch (Exception e) {
+                    // 崩溃时最后一行可能只写了一半，跳过即可
+                    plugin.getLogger().warning("市场日志第 " + lineNumber + " 行无法解析，已跳过");
+                }
+            }
+        } catch (IOException e) {
+            plugin.getLogger().severe("回放市场日志失败: " + e.getMessage());
+        }
+        
+        if (applied > 0) {
+            plugin.getLogger().info("[YAML模式] 已回放 " + applied + " 条市场日志");
+        }
+    }
+    
+    private void applyRecord(String line, Map<UUID, MarketListing> listings, Mailbox mailbox, Map<UUID, BuyOrder> orders) {
+        int checksumIndex = line.lastIndexOf(SEPARATOR);
+        String record = line.substring(0, checksumIndex);
+        if (!checksum(record).equals(line.substring(checksumIndex + 1))) {
+            throw new IllegalArgumentException("日志记录校验失败");
+        }
+        
+        String[] parts = record.split("\\|", -1);
+        if (OP_TXN.equals(parts[0])) {
+            // 先解码整行，全部有效后再应用，不会只回放一半
+            List<String[]> operations = new ArrayList<>();
+            for (int i = 1; i < parts.length; i++) {
+                operations.add(decodeEntry(parts[i]));
+            }
+            List<Runnable> actions = new ArrayList<>();
+            for (String[] operation : operations) {
+                actions.add(toAction(operation, listings, mailbox, orders));
+            }
+            actions.forEach(Runnable::run);
+            return;
+        }
+        toAction(parts, listings, mailbox, orders).run();
+    }
+    
+    private Runnable toAction(String[] parts, Map<UUID, MarketListing> listings, Mailbox mailbox, Map<UUID, BuyOrder> orders) {
+        Runnable skip = () -> { };
+        switch (parts[0]) {
+            case OP_CREATE: {
+                UUID listingId = UUID.fromString(parts[1]);
+                UUID sellerId = UUID.fromString(parts[2]);
+                double price = Double.parseDouble(parts[3]);
+                long createdAt = Long.parseLong(parts[4]);
+                MarketListing listing = new MarketListing(listingId, sellerId, parts[5], price, createdAt);
+                return listings == null ? skip : () -> listings.put(listingId, listing);
+            }
+            case OP_REMOVE:
+            case OP_PURCHASE: {
+                UUID listingId = UUID.fromString(parts[1]);
+                return listings == null ? skip : () -> listings.remove(listingId);
+            }
+            case OP_MAIL_ADD: {
+                UUID playerId = UUID.fromString(parts[1]);
+                Mailbox.MailboxItem item = decodeMailItem(parts);
+                return mailbox == null ? skip : () -> mailbox.replayDelivery(playerId, item);
+            }
+            case OP_MAIL_CLAIM: {
+                UUID playerId = UUID.fromString(parts[1]);
+                UUID itemId = UUID.fromString(parts[2]);
+                return mailbox == null ? skip : () -> mailbox.replayClaim(playerId, itemId);
+            }
+            case OP_ORDER_PUT: {
+                BuyOrder order = new BuyOrder(UUID.fromString(parts[1]), UUID.fromString(parts[2]), parts[3],
+                    Material.valueOf(parts[4]), Double.parseDouble(parts[5]), Integer.parseInt(parts[6]), Long.parseLong(parts[7]));
+                return orders == null ? skip : () -> orders.put(order.getOrderId(), order);
+            }
+            case OP_ORDER_REMOVE: {
+                UUID orderId = UUID.fromString(parts[1]);
+                return orders == null ? skip : () -> orders.remove(orderId);
+            }
+            default:
+                throw new IllegalArgumentException("未知的日志操作: " + parts[0]);
+        }
+    }
+    
+    /**
+     * 关闭日志：写入最终快照并停止写入线程
+     */
+    public void close(Map<UUID, MarketListing> finalSnapshot) {
+        if (!running) {
+            return;
+        }
+        plugin.getMaintenanceScheduler().cancelRepeating("journal-compact");
+        
+        CompletableFuture<Void> done = compact(finalSnapshot);
+        running = false;
+        try {
+            done.get(30, TimeUnit.SECONDS);
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (Exception e) {
+            plugin.getLogger().severe("关闭市场日志失败: " + e.getMessage());
+        }
+        closeJournal();
+    }
+    
+    private void runWriter() {
+        List<Object> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Object first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                
+                // 组提交：稍等片刻，把这段时间内的变更合并为一次落盘
+                if (groupCommitMillis > 0 && first instanceof Record) {
+                    Thread.sleep(groupCommitMillis);
+                }
+                queue.drainTo(batch);
+                processBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void processBatch(List<Object> batch) {
+        List<Record> written = new ArrayList<>();
+        try {
+            for (Object entry : batch) {
+                if (entry instanceof Record) {
+                    journalWriter.write(((Record) entry).line);
+                    journalWriter.write('\n');
+                    written.add((Record) entry);
+                    dirty = true;
+                } else if (entry instanceof CheckpointWrite) {
+                    commit(written);
+                    runCheckpoint((CheckpointWrite) entry);
+                } else if (entry instanceof Compaction) {
+                    commit(written);
+                    runCompaction((Compaction) entry);
+                } else if (entry instanceof CompletableFuture) {
+                    commit(written);
+                    ((CompletableFuture<Void>) entry).complete(null);
+                }
+            }
+            commit(written);
+        } catch (IOException e) {
+            plugin.getLogger().severe("写入市场日志失败: " + e.getMessage());
+            for (Record record : written) {
+                record.durable.completeExceptionally(e);
+            }
+            for (Object entry : batch) {
+                if (entry instanceof Compaction) {
+                    ((Compaction) entry).done.completeExceptionally(e);
+                } else if (entry instanceof CompletableFuture) {
+                    ((CompletableFuture<Void>) entry).completeExceptionally(e);
+                }
+            }
+        }
+    }
+    
+    private boolean runCheckpoint(CheckpointWrite write) {
+        try {
+            write.write();
+            return true;
+        } catch (Exception e) {
+            checkpointFailures++;
+            plugin.getLogger().severe("写出市场数据失败，日志将保留到下次压缩: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * 先写出单独保存的数据，全部成功后再写快照并清空日志；
+     * 截取之后有写出失败时，截取的数据可能缺少失败后重新标记的部分，本次不清空日志
+     */
+    private void runCompaction(Compaction compaction) throws IOException {
+        boolean complete = compaction.failuresAtCapture == checkpointFailures;
+        for (CheckpointWrite write : compaction.writes) {
+            complete &= runCheckpoint(write);
+        }
+        if (!complete) {
+            compaction.done.completeExceptionally(new IOException("部分数据写出失败，日志未压缩"));
+            return;
+        }
+        writeSnapshot(compaction.listings);
+        openJournal(false);
+        compaction.done.complete(null);
+    }
+    
+    /**
+     * 落盘后通知已写入的记录
+     */
+    private void commit(List<Record> written) throws IOException {
+        if (dirty) {
+            journalWriter.flush();
+            journalOut.getFD().sync();
+            dirty = false;
+        }
+        for (Record record : written) {
+            record.durable.complete(null);
+        }
+        written.clear();
+    }
+    
+    private void writeSnapshot(Map<UUID, MarketListing> listings) throws IOException {
+        FileConfiguration config = new YamlConfiguration();
+        for (Map.Entry<UUID, MarketListing> entry : listings.entrySet()) {
+            MarketListing listing = entry.getValue();
+            String path = entry.getKey().toString();
+            config.set(path + ".seller_id", listing.getSellerId().toString());
+            config.set(path + ".price", listing.getPrice());
+            config.set(path + ".created_at", listing.getCreatedAt());
+            config.set(path + ".item_base64", listing.getItemBase64());
+        }
+        
+        // 先写临时文件再原子替换，避免写到一半崩溃损坏快照
+        File tempFile = new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".tmp");
+        config.save(tempFile);
+        try {
+            Files.move(tempFile.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    private void openJournal(boolean append) throws IOException {
+        closeJournal();
+        journalOut = new FileOutputStream(journalFile, append);
+        journalWriter = new BufferedWriter(new OutputStreamWriter(journalOut, StandardCharsets.UTF_8));
+        dirty = false;
+    }
+    
+    private void closeJournal() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException e) {
+                plugin.getLogger().warning("关闭市场日志文件失败: " + e.getMessage());
+            }
+            journalWriter = null;
+            journalOut = null;
+        }
+    }
+    
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+    
+    private static String stripLineBreaks(String data) {
+        return data == null ? "" : data.replace("\r", "").replace("\n", "");
+    }
+    
+    /**
+     * TXN 中的每个操作以制表符分隔字段后整体Base64编码，不会与行内分隔符冲突
+     */
+    private static String encodeEntry(String... fields) {
+        return Base64.getEncoder().encodeToString(String.join("\t", fields).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static String[] decodeEntry(String entry) {
+        return new String(Base64.getDecoder().decode(entry), StandardCharsets.UTF_8).split("\t", -1);
+    }
+    
+    private static String encodeMailItem(UUID playerId, Mailbox.MailboxItem item) {
+        List<String> fields = new ArrayList<>(Arrays.asList(
+            OP_MAIL_ADD,
+            playerId.toString(),
+            item.getId().toString(),
+            item.getItem() != null ? ItemCodec.encodeToText(item.getItem()) : "",
+            String.valueOf(item.getMoney()),
+            String.valueOf(item.isRemovedItem()),
+            String.valueOf(item.isSentItem()),
+            item.getSenderName() != null ? item.getSenderName() : ""));
+        Mailbox.TransactionRecord record = item.getRecord();
+        if (record != null) {
+            fields.addAll(Arrays.asList(
+                record.getItemName(),
+                String.valueOf(record.getAmount()),
+                String.valueOf(record.getSellPrice()),
+                String.valueOf(record.getTax()),
+                String.valueOf(record.getActualIncome()),
+                String.valueOf(record.getTimestamp())));
+        }
+        return encodeEntry(fields.toArray(new String[0]));
+    }
+    
+    private static Mailbox.MailboxItem decodeMailItem(String[] parts) {
+        Mailbox.TransactionRecord record = null;
+        if (parts.length > 8) {
+            record = new Mailbox.TransactionRecord(parts[8], Integer.parseInt(parts[9]), Double.parseDouble(parts[10]),
+                Double.parseDouble(parts[11]), Double.parseDouble(parts[12]), Long.parseLong(parts[13]));
+        }
+        ItemStack item = parts[3].isEmpty() ? null : ItemCodec.decodeText(parts[3]);
+        Mailbox.MailboxItem mailboxItem = new Mailbox.MailboxItem(UUID.fromString(parts[2]), item,
+            Double.parseDouble(parts[4]), record);
+        mailboxItem.setRemovedItem(Boolean.parseBoolean(parts[5]));
+        mailboxItem.setSentItem(Boolean.parseBoolean(parts[6]));
+        mailboxItem.setSenderName(parts[7].isEmpty() ? null : parts[7]);
+        return mailboxItem;
+    }
+    
+    /**
+     * 需要一起生效的一组变更（如购买时的下架和双方邮件），整组写成一行日志
+     */
+    public static class Transaction {
+        private final List<String> entries = new ArrayList<>();
+        
+        /**
+         * 新上架，或以同一ID替换原上架（部分成交后的剩余部分）
+         */
+        public Transaction create(MarketListing listing) {
+            entries.add(encodeEntry(
+                OP_CREATE,
+                listing.getListingId().toString(),
+                listing.getSellerId().toString(),
+                String.valueOf(listing.getPrice()),
+                String.valueOf(listing.getCreatedAt()),
+                stripLineBreaks(listing.getItemBase64())));
+            return this;
+        }
+        
+        public Transaction remove(UUID listingId) {
+            entries.add(encodeEntry(OP_REMOVE, listingId.toString()));
+            return this;
+        }
+        
+        /**
+         * 投递到邮箱，item 为 null 时忽略
+         */
+        public Transaction deliver(UUID playerId, Mailbox.MailboxItem item) {
+            if (item != null) {
+                entries.add(encodeMailItem(playerId, item));
+            }
+            return this;
+        }
+        
+        public Transaction claim(UUID playerId, UUID itemId) {
+            entries.add(encodeEntry(OP_MAIL_CLAIM, playerId.toString(), itemId.toString()));
+            return this;
+        }
+        
+        /**
+         * 挂出求购单，或以同一ID替换部分成交后的求购单
+         */
+        public Transaction putOrder(BuyOrder order) {
+            entries.add(encodeEntry(
+                OP_ORDER_PUT,
+                order.getOrderId().toString(),
+                order.getBuyerId().toString(),
+                order.getBuyerName(),
+                order.getMaterial().name(),
+                String.valueOf(order.getMaxUnitPrice()),
+                String.valueOf(order.getQuantity()),
+                String.valueOf(order.getCreatedAt())));
+            return this;
+        }
+        
+        public Transaction removeOrder(UUID orderId) {
+            entries.add(encodeEntry(OP_ORDER_REMOVE, orderId.toString()));
+            return this;
+        }
+    }
+    
+    /**
+     * 日志之外单独保存的数据（邮箱分片、求购单文件），压缩清空日志前必须先写出
+     */
+    public interface Checkpoint {
+        /**
+         * 在主线程截取需要写出的数据，返回在写入线程中执行的写入
+         */
+        CheckpointWrite capture();
+    }
+    
+    /**
+     * 在写入线程中执行的写出，失败时抛出异常
+     */
+    public interface CheckpointWrite {
+        void write() throws IOException;
+    }
+    
+    /**
+     * 一行日志记录，落盘后完成 durable
+     */
+    private static class Record {
+        private final String line;
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+        
+        private Record(String line) {
+            this.line = line;
+        }
+    }
+    
+    /**
+     * 压缩请求
+     */
+    private static class Compaction {
+        private final Map<UUID, MarketListing> listings;
+        private final List<CheckpointWrite> writes;
+        private final int failuresAtCapture;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        
+        private Compaction(Map<UUID, MarketListing> listings, List<CheckpointWrite> writes, int failuresAtCapture) {
+            this.listings = listings;
+            this.writes = writes;
+            this.failuresAtCapture = failuresAtCapture;
+        }
+    }
+}
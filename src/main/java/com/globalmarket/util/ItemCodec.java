@@ -0,0 +1,121 @@
+package com.globalmarket.util;
+
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.util.io.BukkitObjectInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.util.Base64;
+
+/**
+ * 物品编解码器
+ * 统一使用Paper的字节级物品序列化，数据首字节为格式版本号；
+ * 同时兼容读取旧版 BukkitObjectOutputStream + Base64 数据
+ */
+public final class ItemCodec {
+    
+    /**
+     * 当前格式：版本号 + ItemStack.serializeAsBytes()
+     */
+    public static final byte FORMAT_PAPER_V1 = 1;
+    
+    // Java对象序列化流的魔数 0xACED，用于识别旧版数据
+    private static final byte JAVA_STREAM_MAGIC_0 = (byte) 0xAC;
+    private static final byte JAVA_STREAM_MAGIC_1 = (byte) 0xED;
+    
+    private ItemCodec() {
+    }
+    
+    /**
+     * 将物品编码为二进制数据
+     */
+    public static byte[] encode(ItemStack item) {
+        if (item == null) {
+            return null;
+        }
+        try {
+            byte[] payload = item.serializeAsBytes();
+            byte[] data = new byte[payload.length + 1];
+            data[0] = FORMAT_PAPER_V1;
+            System.arraycopy(payload, 0, data, 1, payload.length);
+            return data;
+        } catch (Exception e) {
+            throw new IllegalStateException("无法序列化物品", e);
+        }
+    }
+    
+    /**
+     * 将二进制数据解码为物品，自动识别新旧格式
+     */
+    public static ItemStack decode(byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        if (isLegacy(data)) {
+            return decodeLegacy(data);
+        }
+        if (data[0] != FORMAT_PAPER_V1) {
+            throw new IllegalStateException("未知的物品数据格式: " + data[0]);
+        }
+        try {
+            byte[] payload = new byte[data.length - 1];
+            System.arraycopy(data, 1, payload, 0, payload.length);
+            return ItemStack.deserializeBytes(payload);
+        } catch (Exception e) {
+            throw new IllegalStateException("无法反序列化物品", e);
+        }
+    }
+    
+    /**
+     * 是否为旧版Java对象序列化数据
+     */
+    public static boolean isLegacy(byte[] data) {
+        return data != null && data.length >= 2
+            && data[0] == JAVA_STREAM_MAGIC_0 && data[1] == JAVA_STREAM_MAGIC_1;
+    }
+    
+    /**
+     * 将旧版数据转换为当前格式，已是当前格式时原样返回
+     */
+    public static byte[] upgrade(byte[] data) {
+        return isLegacy(data) ? encode(decodeLegacy(data)) : data;
+    }
+    
+    /**
+     * 二进制数据转为单行Base64文本（用于YAML等文本存储）
+     */
+    public static String toText(byte[] data) {
+        return data == null ? null : Base64.getEncoder().encodeToString(data);
+    }
+    
+    /**
+     * 文本转回二进制数据，兼容旧版带换行的Base64
+     */
+    public static byte[] fromText(String text) {
+        if (text == null || text.isEmpty()) {
+            return null;
+        }
+        return Base64.getMimeDecoder().decode(text);
+    }
+    
+    /**
+     * 物品直接编码为文本
+     */
+    public static String encodeToText(ItemStack item) {
+        return toText(encode(item));
+    }
+    
+    /**
+     * 文本直接解码为物品
+     */
+    public static ItemStack decodeText(String text) {
+        return decode(fromText(text));
+    }
+    
+    private static ItemStack decodeLegacy(byte[] data) {
+        try (BukkitObjectInputStream dataInput = new BukkitObjectInputStream(new ByteArrayInputStream(data))) {
+            return (ItemStack) dataInput.readObject();
+        } catch (Exception e) {
+            throw new IllegalStateException("无法从Base64转换物品", e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.globalmarket.util;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 已解码物品缓存
+ * 按上架ID缓存物品模板，总大小按编码后字节数计算，超出预算时淘汰最久未使用的条目；
+ * 部分购买后的剩余上架与原上架ID相同，条目同时记下来源的编码数据，只返回给编码数据是同一数组的上架
+ */
+public final class ItemStackCache {
+    
+    private static final long DEFAULT_BUDGET_BYTES = 16L * 1024 * 1024;
+    
+    private static final Map<UUID, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private static long budgetBytes = DEFAULT_BUDGET_BYTES;
+    private static long usedBytes;
+    
+    private ItemStackCache() {
+    }
+    
+    /**
+     * 设置缓存预算（MB），0 表示不缓存
+     */
+    public static synchronized void configure(long budgetMegabytes) {
+        budgetBytes = Math.max(0, budgetMegabytes) * 1024 * 1024;
+        trim();
+    }
+    
+    /**
+     * 获取由 itemData 解码出的物品模板，调用方不得修改返回的对象
+     */
+    public static synchronized ItemStack get(UUID listingId, byte[] itemData) {
+        Entry entry = entries.get(listingId);
+        return entry != null && entry.source == itemData ? entry.item : null;
+    }
+    
+    /**
+     * 缓存由 itemData 解码出的物品模板，weight 为编码后的字节数
+     */
+    public static synchronized void put(UUID listingId, byte[] itemData, ItemStack item) {
+        int weight = itemData.length;
+        if (item == null || weight > budgetBytes) {
+            return;
+        }
+        Entry previous = entries.put(listingId, new Entry(itemData, item));
+        if (previous != null) {
+            usedBytes -= previous.weight;
+        }
+        usedBytes += weight;
+        trim();
+    }
+    
+    /**
+     * 上架被移除时释放对应缓存
+     */
+    public static synchronized void invalidate(UUID listingId) {
+        Entry entry = entries.remove(listingId);
+        if (entry != null) {
+            usedBytes -= entry.weight;
+        }
+    }
+    
+    public static synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+    
+    private static void trim() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (usedBytes > budgetBytes && iterator.hasNext()) {
+            usedBytes -= iterator.next().weight;
+            iterator.remove();
+        }
+    }
+    
+    private static final class Entry {
+        private final byte[] source;
+        private final ItemStack item;
+        private final int weight;
+        
+        private Entry(byte[] source, ItemStack item) {
+            this.source = source;
+            this.item = item;
+            this.weight = source.length;
+        }
+    }
+}